@@ -0,0 +1,124 @@
+package com.bluetooth.ble_terminal;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Notifications per second delivered to a consumer thread through a system broadcast, the way BLEService
+ * sent ACTION_DATA_RECEIVED with the UUID and a copy of the value as extras, and through the in-process
+ * RxListener. Both consumers run on the same handler thread. The broadcast cost is in the system server,
+ * so this runs on a device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RxDeliveryBenchmark {
+
+    private static final String TAG = "RxDeliveryBenchmark";
+    private static final String ACTION = "com.bluetooth.ble_terminal.BENCHMARK_DATA_RECEIVED";
+    private static final UUID CHARACTERISTIC = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
+    private static final int NOTIFICATIONS = 2000;
+    private static final int VALUE_LENGTH  = 20;
+
+    private HandlerThread consumer;
+    private Handler handler;
+
+    @Before
+    public void setUp() {
+        consumer = new HandlerThread("RX consumer");
+        consumer.start();
+        handler = new Handler(consumer.getLooper());
+    }
+
+    @After
+    public void tearDown() {
+        consumer.quit();
+    }
+
+    @Test
+    public void broadcast() throws InterruptedException {
+        Context context = InstrumentationRegistry.getTargetContext();
+        final CountDownLatch received = new CountDownLatch(NOTIFICATIONS);
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context c, Intent intent) {
+                if (intent.getSerializableExtra("CHAR").equals(CHARACTERISTIC)
+                        && intent.getByteArrayExtra("DATA").length == VALUE_LENGTH) {
+                    received.countDown();
+                }
+            }
+        };
+        context.registerReceiver(receiver, new IntentFilter(ACTION), null, handler);
+        try {
+            byte[] value = new byte[VALUE_LENGTH];
+            long start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < NOTIFICATIONS; i++) {
+                Intent intent = new Intent(ACTION);
+                intent.setPackage(context.getPackageName());
+                intent.putExtra("CHAR", CHARACTERISTIC);
+                intent.putExtra("DATA", value);
+                context.sendBroadcast(intent);
+            }
+            assertTrue("Broadcasts lost", received.await(60, TimeUnit.SECONDS));
+            report("broadcast", SystemClock.elapsedRealtimeNanos() - start);
+        } finally {
+            context.unregisterReceiver(receiver);
+        }
+    }
+
+    @Test
+    public void listener() throws InterruptedException {
+        BLEService service = new BLEService();
+        final CountDownLatch received = new CountDownLatch(NOTIFICATIONS);
+        final int[] order = new int[1];
+        BLEService.RxListener listener = new BLEService.RxListener() {
+            @Override
+            public void onDataReceived(UUID uuid, byte[] data, long timestampNanos) {
+                if (uuid.equals(CHARACTERISTIC) && (data[0] & 0xFF) == (order[0]++ & 0xFF)) {
+                    received.countDown();
+                }
+            }
+        };
+        service.addRxListener(listener, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        });
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < NOTIFICATIONS; i++) {
+            // The stack creates a new array for every callback
+            byte[] value = new byte[VALUE_LENGTH];
+            value[0] = (byte) i;
+            service.dispatchReceived(CHARACTERISTIC, value, SystemClock.elapsedRealtimeNanos());
+        }
+        assertTrue("Notifications lost", received.await(60, TimeUnit.SECONDS));
+        report("listener", SystemClock.elapsedRealtimeNanos() - start);
+        service.removeRxListener(listener);
+        assertEquals(NOTIFICATIONS, order[0]);
+    }
+
+    private static void report(String path, long nanos) {
+        Log.i(TAG, String.format("%s: %d notifications in %.1f ms, %.0f notifications/s", path, NOTIFICATIONS,
+                nanos / 1e6, NOTIFICATIONS * 1e9 / nanos));
+    }
+}
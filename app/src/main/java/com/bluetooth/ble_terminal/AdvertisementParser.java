@@ -0,0 +1,162 @@
+package com.bluetooth.ble_terminal;
+
+import java.util.UUID;
+
+/**
+ * Single pass classifier for raw BLE advertising records. Walks the AD structures of a scan record
+ * once and records the offsets of the fields the application cares about, so no copies or strings
+ * are created while classifying.
+ *
+ * An instance keeps the results of the last call to {@link #classify(byte[], int)} and is reused for
+ * every scan result, it is therefore not thread safe.
+ */
+final class AdvertisementParser {
+
+    /// Record could not be parsed or is neither a beacon nor a discoverable device
+    static final int ADV_OTHER          = 0;
+    /// Manufacturer specific data of the configured company ID with the expected beacon length
+    static final int ADV_COMPANY_BEACON = DeviceSelection.BLE_BEACON;
+    /// Apple iBeacon frame
+    static final int ADV_IBEACON        = DeviceSelection.iBEACON;
+    /// Discoverable device which is not a beacon
+    static final int ADV_CONNECTABLE    = 3;
+
+    // AD types (Bluetooth Core Specification Supplement, Part A)
+    private static final int AD_FLAGS              = 0x01;
+    private static final int AD_INCOMPLETE_UUID128 = 0x06;
+    private static final int AD_COMPLETE_UUID128   = 0x07;
+    private static final int AD_SHORT_LOCAL_NAME   = 0x08;
+    private static final int AD_COMPLETE_LOCAL_NAME = 0x09;
+    private static final int AD_MANUFACTURER_DATA  = 0xFF;
+
+    // LE Limited / General Discoverable Mode flags
+    private static final int FLAGS_DISCOVERABLE    = 0x03;
+
+    // iBeacon: company ID (2) + type 0x02 + length 0x15 + UUID (16) + major (2) + minor (2) + power (1)
+    private static final int IBEACON_DATA_LENGTH   = 25;
+    private static final int IBEACON_TYPE          = 0x02;
+    private static final int IBEACON_LENGTH        = 0x15;
+
+    /// Length of the company beacon payload, without the company ID
+    static final int COMPANY_BEACON_LENGTH         = 24;
+
+    int type;
+    int flags;
+    /// Offset and length of the local name, or -1 / 0 if not advertised
+    int nameOffset, nameLength;
+    /// Company ID of the manufacturer specific data, or -1 if not advertised
+    int companyId;
+    /// Offset and length of the manufacturer specific data following the company ID
+    int payloadOffset, payloadLength;
+    /// Offset and length of the 128-bit service UUID list, or -1 / 0 if not advertised
+    int uuidOffset, uuidLength;
+
+    /**
+     * Classifies an advertising record.
+     * @param record    Raw advertising data as returned by ScanRecord.getBytes()
+     * @param company   Company ID that identifies our own beacons
+     * @return One of the ADV_* constants, also stored in {@link #type}
+     */
+    int classify(byte[] record, int company) {
+        type = ADV_OTHER;
+        flags = 0;
+        nameOffset = -1;
+        nameLength = 0;
+        companyId = -1;
+        payloadOffset = -1;
+        payloadLength = 0;
+        uuidOffset = -1;
+        uuidLength = 0;
+
+        if (record == null) {
+            return type;
+        }
+
+        int i = 0;
+        while (i < record.length) {
+            int length = record[i] & 0xFF;
+            if (length == 0) {
+                // Remaining bytes are padding
+                break;
+            }
+            int end = i + 1 + length;
+            if (end > record.length) {
+                // Truncated structure, treat the whole record as invalid
+                return type;
+            }
+            int data = i + 2;
+            int dataLength = length - 1;
+
+            switch (record[i + 1] & 0xFF) {
+                case AD_FLAGS:
+                    if (dataLength > 0) {
+                        flags = record[data] & 0xFF;
+                    }
+                    break;
+                case AD_SHORT_LOCAL_NAME:
+                case AD_COMPLETE_LOCAL_NAME:
+                    nameOffset = data;
+                    nameLength = dataLength;
+                    break;
+                case AD_INCOMPLETE_UUID128:
+                case AD_COMPLETE_UUID128:
+                    uuidOffset = data;
+                    uuidLength = dataLength;
+                    break;
+                case AD_MANUFACTURER_DATA:
+                    if (dataLength >= 2 && companyId < 0) {
+                        companyId = (record[data] & 0xFF) | ((record[data + 1] & 0xFF) << 8);
+                        payloadOffset = data + 2;
+                        payloadLength = dataLength - 2;
+                    }
+                    break;
+            }
+            i = end;
+        }
+
+        if (companyId >= 0) {
+            // The iBeacon check does not look at the company ID, same as the previous prefix match
+            if (payloadLength + 2 == IBEACON_DATA_LENGTH
+                    && (record[payloadOffset] & 0xFF) == IBEACON_TYPE
+                    && (record[payloadOffset + 1] & 0xFF) == IBEACON_LENGTH) {
+                type = ADV_IBEACON;
+                return type;
+            }
+            if (companyId == company && payloadLength == COMPANY_BEACON_LENGTH) {
+                type = ADV_COMPANY_BEACON;
+                return type;
+            }
+        }
+
+        if ((flags & FLAGS_DISCOVERABLE) != 0) {
+            type = ADV_CONNECTABLE;
+        }
+        return type;
+    }
+
+    /**
+     * Checks the service UUID list of the last classified record
+     * @param record Record passed to the last call to {@link #classify(byte[], int)}
+     * @param uuid   128-bit service UUID to look for
+     * @return True if the record advertises the service
+     */
+    boolean hasServiceUuid(byte[] record, UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        for (int i = uuidOffset; i + 16 <= uuidOffset + uuidLength; i += 16) {
+            // UUIDs are advertised little endian
+            if (readLong(record, i) == lsb && readLong(record, i + 8) == msb) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -19,14 +19,23 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.bluetooth.ble_terminal.Terminal.BATTERY_LEVEL_UUID;
 import static com.bluetooth.ble_terminal.Terminal.INDICATION_CHARACTERISTIC_UUID;
@@ -48,6 +57,65 @@ public class BLEService extends Service {
     private List<ScanFilter> filterList;
     private IBinder mBinder = new LocalBinder();
 
+    // Scan profile, applied on the next call to startScan
+    private int scanMode = ScanSettings.SCAN_MODE_LOW_LATENCY;
+    private long reportDelayMillis = 0;
+    private ScanCallback activeScanCallback;
+    // Settings of the scan running on the radio, used to flush batched results when it stops
+    private ScanSettings radioSettings;
+    // Duty cycles the scan when adaptive scanning is enabled, the scan mode of the profile is then ignored
+    private ScanScheduler scanScheduler;
+    private boolean adaptiveScan = false;
+
+    // GATT requests are serialized on their own thread, the next one starts on the completion callback of the previous one
+    private HandlerThread gattThread;
+    private GattOperationQueue gattQueue;
+    // Latencies and counts of the characteristic writes, kept across connections until reset
+    private final TxStats txStats = new TxStats();
+
+    /**
+     * Receiver of notification and indication data, see addRxListener
+     */
+    interface RxListener {
+        /**
+         * @param uuid           Characteristic the value was received on
+         * @param data           Value, shared by all listeners and must not be modified
+         * @param timestampNanos SystemClock.elapsedRealtimeNanos() when the GATT callback received it
+         */
+        void onDataReceived(UUID uuid, byte[] data, long timestampNanos);
+    }
+
+    /**
+     * Listener and the executor it is called on
+     */
+    private static final class RxRegistration {
+        final RxListener listener;
+        final Executor executor;
+
+        RxRegistration(RxListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
+    // Registrations change rarely and are iterated for every notification
+    private final CopyOnWriteArrayList<RxRegistration> rxListeners = new CopyOnWriteArrayList<>();
+
+    /// ATT MTU of a new connection
+    static final int DEFAULT_MTU = 23;
+    /// Largest ATT MTU, requested after service discovery
+    static final int MAX_MTU = 517;
+    // Header of a write request: opcode and attribute handle
+    private static final int ATT_WRITE_HEADER = 3;
+    /// Largest attribute value, a write never carries more whatever the MTU
+    static final int MAX_ATTRIBUTE_LENGTH = 512;
+    private volatile int mtu = DEFAULT_MTU;
+    // Connection priority and PHY, requested on connection and relaxed while the link is idle
+    private LinkProfile linkProfile;
+
+    // Capture of the GATT traffic, null when not recording
+    private volatile SessionRecorder recorder;
+
     /**
      * @brief Intent on successful connection to GATT server hosted on remote device
      * \hideinitializer
@@ -63,16 +131,6 @@ public class BLEService extends Service {
      * \hideinitializer
      */
     public static final String ACTION_GATT_SERVICES     = "com.bluetooth.ble_terminal.ACTION_GATT_SERVICES";
-    /**
-     * @brief Intent broadcast on data received from remote device
-     * \hideinitializer
-     */
-    public static final String ACTION_DATA_RECEIVED     = "com.bluetooth.ble_terminal.ACTION_DATA_RECEIVED";
-    /**
-     * @brief Intent broadcast when descriptor wrote
-     * \hideinitializer
-     */
-    public static final String ACTION_DESCRIPTOR_WROTE = "com.bluetooth.ble_terminal.ACTION_DESCRIPTOR_WROTE";
 
 
 
@@ -85,6 +143,25 @@ public class BLEService extends Service {
         }
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        gattThread = new HandlerThread("GATT Operations");
+        gattThread.start();
+        Handler gattHandler = new Handler(gattThread.getLooper());
+        gattQueue = new GattOperationQueue(gattHandler, txStats);
+        linkProfile = new LinkProfile(gattHandler);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        gattQueue.setGatt(null);
+        linkProfile.setGatt(null);
+        gattThread.quitSafely();
+        stopRecording();
+    }
+
     /**
      * Function called when application binds to this service
      * @param intent Explicit intent referencing this class
@@ -138,38 +215,190 @@ public class BLEService extends Service {
 
 
         mLEScanner = mBluetoothAdapter.getBluetoothLeScanner();
-        settings = new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY).build();
-        filterList = new ArrayList<>();
+        settings = buildScanSettings(scanMode);
+        if (scanScheduler == null) {
+            scanScheduler = new ScanScheduler(new Handler(Looper.getMainLooper()), new ScanScheduler.Radio() {
+                @Override
+                public void startRadio(int scanMode) {
+                    startScanner(activeScanCallback, buildScanSettings(scanMode));
+                }
+
+                @Override
+                public void stopRadio() {
+                    stopScanner(activeScanCallback);
+                }
+            });
+        }
+        if (filterList == null) {
+            filterList = new ArrayList<>();
+        }
         Log.d(TAG, "Bluetooth OK");
         return true;
     }
 
     /**
-     * Initiates scanning for discoverable Bluetooth devices. No timeout.
+     * Select how scanning is performed. Takes effect immediately if a scan is running.
+     * @param scanMode          One of the ScanSettings.SCAN_MODE_* values
+     * @param reportDelayMillis Time the controller buffers results before delivering them through
+     *                          ScanCallback.onBatchScanResults. 0 delivers every result immediately.
+     *                          Ignored if the controller does not support batching.
+     */
+    public void setScanProfile(int scanMode, long reportDelayMillis){
+        this.scanMode = scanMode;
+        this.reportDelayMillis = reportDelayMillis;
+        settings = buildScanSettings(scanMode);
+        restartScan();
+    }
+
+    /**
+     * Let the scan scheduler pick the scan mode and duty cycle from the discovery rate instead of
+     * scanning continuously with the scan mode of the profile. Takes effect immediately if a scan is running.
+     * Callbacks and discoveries must be reported through reportScanResults and reportDiscoveries.
+     * @param enabled True to duty cycle the scan
+     */
+    public void setAdaptiveScan(boolean enabled){
+        if (adaptiveScan != enabled){
+            adaptiveScan = enabled;
+            restartScan();
+        }
+    }
+
+    /**
+     * Report a scan callback to the scan scheduler
+     * @param resultCount Number of results delivered by the callback
+     */
+    public void reportScanResults(int resultCount){
+        if (adaptiveScan && scanScheduler != null){
+            scanScheduler.onScanResults(resultCount);
+        }
+    }
+
+    /**
+     * Report devices seen for the first time to the scan scheduler
+     * @param discovered Number of new devices
+     */
+    public void reportDiscoveries(int discovered){
+        if (adaptiveScan && scanScheduler != null){
+            scanScheduler.onDiscoveries(discovered);
+        }
+    }
+
+    /**
+     * @return Scan scheduler, holding radio on time and callback counts per scan level
+     */
+    ScanScheduler getScanScheduler(){
+        return scanScheduler;
+    }
+
+    private void restartScan(){
+        if (activeScanCallback != null){
+            // Settings can only be changed by restarting the scan
+            ScanCallback scanCallback = activeScanCallback;
+            stopScan(scanCallback);
+            startScan(scanCallback);
+        }
+    }
+
+    /**
+     * @return Scan mode of the current scan profile
+     */
+    public int getScanMode(){
+        return scanMode;
+    }
+
+    /**
+     * @return Report delay of the current scan profile in milliseconds, 0 if batching is not used
+     */
+    public long getReportDelay(){
+        return settings != null ? settings.getReportDelayMillis() : 0;
+    }
+
+    /**
+     * @return True if the controller can buffer scan results (batch scan mode)
+     */
+    public boolean isBatchScanSupported(){
+        return mBluetoothAdapter != null && mBluetoothAdapter.isOffloadedScanBatchingSupported();
+    }
+
+    /**
+     * Restrict scanning to the advertisements the application uses, so other results never reach
+     * the process. Takes effect immediately if a scan is running.
+     * @param filters Filters built by ScanFilters.build, or null to scan without filtering
+     */
+    public void setScanFilters(List<ScanFilter> filters){
+        filterList = filters != null ? filters : new ArrayList<ScanFilter>();
+        restartScan();
+    }
+
+    /**
+     * @return True if the running scan, or the next one, uses scan filters
+     */
+    public boolean isScanFiltered(){
+        return filterList != null && !filterList.isEmpty();
+    }
+
+    private ScanSettings buildScanSettings(int scanMode){
+        ScanSettings.Builder builder = new ScanSettings.Builder().setScanMode(scanMode);
+        if (reportDelayMillis > 0){
+            if (isBatchScanSupported()){
+                builder.setReportDelay(reportDelayMillis);
+            } else {
+                Log.w(TAG, "Batch scan not supported, results are delivered immediately");
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Initiates scanning for discoverable Bluetooth devices using the current scan profile. No timeout,
+     * with adaptive scanning the scan scheduler turns the radio on and off until stopScan is called.
      * @param scanCallback: Callback object to notify on device discovery
      */
     @TargetApi(23)
     public void startScan(final ScanCallback scanCallback){
 
         Log.d(TAG , "START SCAN");
-        final ScanFilter scanFilter =new ScanFilter.Builder().build();
-        ScanSettings settings =new ScanSettings.Builder()
-                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY).build();
         if(mLEScanner != null) {
-            mLEScanner.startScan(Arrays.asList(scanFilter), settings, scanCallback);
+            activeScanCallback = scanCallback;
+            if (adaptiveScan){
+                scanScheduler.start();
+            } else {
+                startScanner(scanCallback, settings);
+            }
         }
     }
 
     /**
-     * Stop a previously initiated scan.
+     * Stop a previously initiated scan. Results still buffered by the controller are delivered first.
      * @param scanCallback Callback object used to initiate scan
      */
     @TargetApi(23)
     public void stopScan(final ScanCallback scanCallback){
         Log.d(TAG, "STOP SCAN");
-        if(mLEScanner != null) {
+        if (scanScheduler != null){
+            scanScheduler.stop();
+        }
+        stopScanner(scanCallback);
+        activeScanCallback = null;
+    }
+
+    private void startScanner(ScanCallback scanCallback, ScanSettings scanSettings){
+        List<ScanFilter> filters = filterList;
+        if (filters == null || filters.isEmpty()){
+            filters = Arrays.asList(new ScanFilter.Builder().build());
+        }
+        mLEScanner.startScan(filters, scanSettings, scanCallback);
+        radioSettings = scanSettings;
+    }
+
+    private void stopScanner(ScanCallback scanCallback){
+        if (mLEScanner != null && radioSettings != null) {
+            if (radioSettings.getReportDelayMillis() > 0){
+                mLEScanner.flushPendingScanResults(scanCallback);
+            }
             mLEScanner.stopScan(scanCallback);
         }
+        radioSettings = null;
     }
 
     /**
@@ -194,6 +423,7 @@ public class BLEService extends Service {
         // Callback is local to the service so it can broadcast to activities on connection/device events
 //        mBluetoothGatt = mDevice.connectGatt(this, false, mGattCallback);
         mBluetoothGatt = mDevice.connectGatt(this, true, mGattCallback);
+        gattQueue.setGatt(mBluetoothGatt);
         return mBluetoothGatt;
     }
 
@@ -205,6 +435,201 @@ public class BLEService extends Service {
             mBluetoothGatt.disconnect();
             mBluetoothGatt = null;
         }
+        gattQueue.setGatt(null);
+        linkProfile.setGatt(null);
+        mtu = DEFAULT_MTU;
+    }
+
+    /**
+     * Select the connection parameters of the link, applied immediately when connected
+     * @param profile LinkProfile.THROUGHPUT, LinkProfile.BALANCED or LinkProfile.LOW_POWER
+     */
+    public void setLinkProfile(int profile){
+        linkProfile.select(profile);
+    }
+
+    /**
+     * @param millis Time without traffic before a throughput link falls back to balanced, 0 to never fall back
+     */
+    public void setLinkIdleTimeout(long millis){
+        linkProfile.setIdleTimeout(millis);
+    }
+
+    /**
+     * @return Link profile, holding the active profile and the reported PHY
+     */
+    LinkProfile getLinkProfile(){
+        return linkProfile;
+    }
+
+    /**
+     * @return ATT MTU negotiated with the connected device
+     */
+    public int getMtu(){
+        return mtu;
+    }
+
+    /**
+     * @return Largest value that fits in a single write of the current connection (ATT MTU - 3, at most 512)
+     */
+    public int getMaxWriteLength(){
+        return Math.min(mtu - ATT_WRITE_HEADER, MAX_ATTRIBUTE_LENGTH);
+    }
+
+    /**
+     * Queue a write of the characteristic using its write type. Writes are sent one at a time, the
+     * next one starts as soon as the stack reports the previous one complete.
+     * @param characteristic Characteristic of the connected device
+     * @param value          Value to write, must not be modified until the callback is invoked
+     * @param callback       Invoked on the GATT operation thread with the result, may be null
+     */
+    public void writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value, GattOperationQueue.Callback callback){
+        linkProfile.onTraffic();
+        SessionRecorder capture = recorder;
+        if (capture != null){
+            capture.record(SessionRecorder.TX, characteristic.getUuid(), value, SystemClock.elapsedRealtimeNanos());
+        }
+        gattQueue.write(characteristic, value, callback);
+    }
+
+    /**
+     * Queue a read of the characteristic, the value is available from the characteristic in the callback
+     */
+    public void readCharacteristic(BluetoothGattCharacteristic characteristic, GattOperationQueue.Callback callback){
+        gattQueue.read(characteristic, callback);
+    }
+
+    /**
+     * Enable notifications or indications of a characteristic by queueing a write of its CCCD
+     * @param characteristic Characteristic of the connected device
+     * @param cccd           UUID of the Client Characteristic Configuration Descriptor
+     * @param indication     True for indications, false for notifications
+     * @param callback       Invoked on the GATT operation thread with the result, may be null
+     * @return False if the characteristic has no such descriptor or there is no connection
+     */
+    public boolean enableNotification(BluetoothGattCharacteristic characteristic, UUID cccd, boolean indication,
+                                      GattOperationQueue.Callback callback){
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(cccd);
+        if (mBluetoothGatt == null || descriptor == null){
+            return false;
+        }
+        mBluetoothGatt.setCharacteristicNotification(characteristic, true);
+        gattQueue.writeDescriptor(descriptor, indication ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE
+                : BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, callback);
+        return true;
+    }
+
+    /**
+     * Queue an ATT MTU exchange
+     */
+    public void requestMtu(int mtu, GattOperationQueue.Callback callback){
+        gattQueue.requestMtu(mtu, callback);
+    }
+
+    /**
+     * @return Queue of the GATT operations, holding completion, retry and timeout counts
+     */
+    GattOperationQueue getGattQueue(){
+        return gattQueue;
+    }
+
+    /**
+     * Deliver received data to a listener in process. Data reaches listeners in the order it was received,
+     * provided the executor runs tasks in order (e.g. a Handler or a single thread executor).
+     * @param executor Executor the listener is called on, null to call it on the GATT callback thread
+     */
+    void addRxListener(RxListener listener, Executor executor){
+        rxListeners.add(new RxRegistration(listener, executor));
+    }
+
+    void removeRxListener(RxListener listener){
+        for (RxRegistration registration : rxListeners) {
+            if (registration.listener == listener) {
+                rxListeners.remove(registration);
+            }
+        }
+    }
+
+    /**
+     * Hand received data to the RX listeners, from the GATT callback or a session replay
+     * @param timestampNanos SystemClock.elapsedRealtimeNanos() when the data was received
+     */
+    void dispatchReceived(UUID uuid, byte[] data, long timestampNanos){
+        dispatchReceived(uuid, data, timestampNanos, null);
+    }
+
+    /**
+     * Hand received data to the RX listeners and report when all of them processed it
+     * @param processed Run on the thread of the last listener to return, or immediately without listeners.
+     *                  May be null.
+     */
+    void dispatchReceived(final UUID uuid, final byte[] data, final long timestampNanos, final Runnable processed){
+        // One count per listener plus one for the dispatch itself, released after the loop
+        final AtomicInteger remaining = processed != null ? new AtomicInteger(1) : null;
+        for (RxRegistration registration : rxListeners) {
+            final RxListener listener = registration.listener;
+            if (remaining != null){
+                remaining.incrementAndGet();
+            }
+            if (registration.executor == null) {
+                listener.onDataReceived(uuid, data, timestampNanos);
+                if (remaining != null && remaining.decrementAndGet() == 0){
+                    processed.run();
+                }
+            } else {
+                registration.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onDataReceived(uuid, data, timestampNanos);
+                        if (remaining != null && remaining.decrementAndGet() == 0){
+                            processed.run();
+                        }
+                    }
+                });
+            }
+        }
+        if (remaining != null && remaining.decrementAndGet() == 0){
+            processed.run();
+        }
+    }
+
+    /**
+     * @return Write path instrumentation of the current connection: per-chunk latency histograms, rates,
+     *         busy refusals and retries
+     */
+    TxStats getTxStats(){
+        return txStats;
+    }
+
+    /**
+     * Start capturing the GATT traffic into a session directory, replaces a running capture
+     * @param directory New directory receiving the segments and the index, it must not exist
+     * @return False if the capture could not be created
+     */
+    boolean startRecording(File directory){
+        stopRecording();
+        try {
+            recorder = new SessionRecorder(directory);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot record to " + directory, e);
+            return false;
+        }
+    }
+
+    void stopRecording(){
+        SessionRecorder capture = recorder;
+        recorder = null;
+        if (capture != null){
+            capture.close();
+        }
+    }
+
+    /**
+     * @return Running capture, null when not recording
+     */
+    SessionRecorder getRecorder(){
+        return recorder;
     }
 
     /**
@@ -212,36 +637,41 @@ public class BLEService extends Service {
      */
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
 
-        // Broadcasts that descriptor write event is finished
+        // Hands the descriptor write completion to the queue
         @Override
         public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status){
             UUID characteristic_uuid = descriptor.getCharacteristic().getUuid();
 
             if(characteristic_uuid.equals(NOTIFICATION_CHARACTERISTIC_UUID)){
                 Log.i(TAG, "Wrote descriptor: " + NOTIFICATION_CHARACTERISTIC_UUID.toString());
-                Intent intent = new Intent(ACTION_DESCRIPTOR_WROTE);
-                intent.putExtra("Type","Notification");
-                sendBroadcast(intent);
             } else if(characteristic_uuid.equals(INDICATION_CHARACTERISTIC_UUID)){
                 Log.i(TAG, "Wrote descriptor: " + INDICATION_CHARACTERISTIC_UUID);
-                Intent intent = new Intent(ACTION_DESCRIPTOR_WROTE);
-                intent.putExtra("Type","Indication");
-                sendBroadcast(intent);
             } else if(characteristic_uuid.equals(BATTERY_LEVEL_UUID)){
                 Log.i(TAG, "Wrote descriptor: " + BATTERY_LEVEL_UUID);
             }
-
+            SessionRecorder capture = recorder;
+            if (capture != null){
+                capture.recordDescriptor(characteristic_uuid, status, descriptor.getValue());
+            }
+            gattQueue.onDescriptorWrite(descriptor, status);
         }
 
         // Broadcasts connected/disconnected events
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int state) {
+            SessionRecorder capture = recorder;
+            if (capture != null){
+                capture.recordConnection(state, status);
+            }
 
             if (state == BluetoothProfile.STATE_CONNECTED) {
                 // Alert application that we have connected to a device
                 // Begin service discovery on device
                 Log.i(TAG, "Connected to GATT server.");
                 sendBroadcast(new Intent(ACTION_GATT_CONNECTED));
+                // Statistics describe one connection, its MTU and link profile
+                txStats.reset();
+                linkProfile.setGatt(gatt);
                 mBluetoothGatt.discoverServices();
 
             } else if (state == BluetoothProfile.STATE_DISCONNECTED) {
@@ -249,6 +679,9 @@ public class BLEService extends Service {
                 Log.i(TAG, "Disconnected from GATT server.");
                 sendBroadcast(new Intent(ACTION_GATT_DISCONNECTED));
                 mBluetoothGatt=null;
+                gattQueue.setGatt(null);
+                linkProfile.setGatt(null);
+                mtu = DEFAULT_MTU;
             }
 
         }
@@ -260,6 +693,9 @@ public class BLEService extends Service {
                 for (BluetoothGattService svc : gatt.getServices()){
                     Log.d(TAG,svc.getUuid().toString());
                 }
+                // Ask for the largest MTU first, the device answers with the largest it supports.
+                // Queued before any request of the activities so their writes use the new size
+                gattQueue.requestMtu(MAX_MTU, null);
                 sendBroadcast(new Intent(ACTION_GATT_SERVICES));
             } else {
                 Log.w(TAG, "onServicesDiscovered received: " + status);
@@ -270,12 +706,16 @@ public class BLEService extends Service {
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
-            Log.i(TAG, "onCharacteristicChanged UUID: " + characteristic.getUuid().toString());
-            Intent intent = new Intent(ACTION_DATA_RECEIVED);
-            intent.putExtra("CHAR", characteristic.getUuid());  // Characteristic UUID
-            intent.putExtra("DATA", characteristic.getValue()); // Data received for this UUID
-            Log.d(TAG, "Rx: " + characteristic.getStringValue(0));
-            sendBroadcast(intent);
+            // Hot path: handed to the listeners without copying or logging, getValue() is a new array per callback
+            long timestamp = SystemClock.elapsedRealtimeNanos();
+            UUID uuid = characteristic.getUuid();
+            byte[] data = characteristic.getValue();
+            linkProfile.onTraffic();
+            SessionRecorder capture = recorder;
+            if (capture != null){
+                capture.record(SessionRecorder.RX, uuid, data, timestamp);
+            }
+            dispatchReceived(uuid, data, timestamp);
         }
 
         @Override
@@ -284,12 +724,36 @@ public class BLEService extends Service {
                                           int status){
 
             if (status != BluetoothGatt.GATT_SUCCESS){
-                Log.e(TAG, "Tx: " + characteristic.getStringValue(0));
-            } else {
-                Log.d(TAG, "Tx: " + characteristic.getStringValue(0));
- 				Log.i(TAG, "onCharacteristicWrite UUID: " + characteristic.getUuid().toString());
+                Log.e(TAG, "Tx failed: " + status);
+            }
+            // Starts the next queued operation
+            gattQueue.onCharacteristicWrite(characteristic, status);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic,
+                                         int status){
+            gattQueue.onCharacteristicRead(characteristic, status);
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status){
+            linkProfile.onPhy(txPhy, rxPhy, status);
+        }
+
+        @Override
+        public void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status){
+            linkProfile.onPhy(txPhy, rxPhy, status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status){
+            Log.i(TAG, "MTU " + mtu + " status " + status);
+            if (status == BluetoothGatt.GATT_SUCCESS){
+                BLEService.this.mtu = mtu;
             }
-         
+            gattQueue.onMtuChanged(status);
         }
     };
 
@@ -1,23 +1,24 @@
 package com.bluetooth.ble_terminal;
 
-import android.app.Activity;
-import android.content.Context;
+import android.app.AlertDialog;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v4.app.Fragment;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SimpleItemAnimator;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.AdapterView;
-import android.widget.BaseAdapter;
-import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.text.DateFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 
@@ -33,45 +34,110 @@ public class BeaconFragment extends Fragment {
 //    private HashMap<String, Integer> RSSI;
 //    private HashMap<String, byte[]> beacon_info;
 
+    // Payload for rows of known beacons, name and address stay the same between advertisements
+    private static final Object PAYLOAD_READINGS = new Object();
+
+    // Readings summarized when a company beacon is selected
+    private static final long HISTORY_SUMMARY_WINDOW = 60 * 60 * 1000;
+    private final SensorHistory.Range historyRange = new SensorHistory.Range();
+
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
         View rootView = inflater.inflate(R.layout.device_list, container, false);
         beaconList = (ArrayList<Beacon>) getArguments().getSerializable("beacondevices");
-        deviceAdapter = new CustomAdapter(getContext(), beaconList);
-        ListView listView = (ListView) rootView.findViewById(R.id.device_list);
+        deviceAdapter = new CustomAdapter(beaconList);
+        RecyclerView listView = (RecyclerView) rootView.findViewById(R.id.device_list);
+        listView.setLayoutManager(new LinearLayoutManager(getContext()));
+        // Partial rebinds reuse the row, the cross-fade of a change animation is not needed
+        ((SimpleItemAnimator) listView.getItemAnimator()).setSupportsChangeAnimations(false);
         listView.setAdapter(deviceAdapter);
-        listView.setOnItemClickListener(listenerItemSelected);
 
         return rootView;
     }
 
-    public void updateBeacons(ArrayList<Beacon> beacons){
+    /**
+     * Refreshes the list after beacons were added or updated
+     * @param changes Rows changed since the last update
+     */
+    public void updateBeacons(ListUpdateScheduler.ChangeSet changes){
         if(deviceAdapter != null){
-            beaconList = beacons;
-            deviceAdapter.notifyDataSetChanged();
+            int known = deviceAdapter.itemCount;
+            for (int i = 0; i < changes.size(); i++) {
+                int row = changes.row(i);
+                if (row < known) {
+                    deviceAdapter.notifyItemChanged(row, PAYLOAD_READINGS);
+                }
+            }
+            int size = beaconList.size();
+            if (size > known) {
+                deviceAdapter.itemCount = size;
+                deviceAdapter.notifyItemRangeInserted(known, size - known);
+            }
         }
     }
 
-    // Listener for when a device is selected from the list. Connects to device and initiates service discovery
-    private AdapterView.OnItemClickListener listenerItemSelected = new AdapterView.OnItemClickListener() {
-        @Override
-        public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-            final Beacon device = beaconList.get(position);
-            Log.d(TAG, "Device " + device.getName() + " selected");
-            // There is no way to determine with reliability whether a device is connectable in earlier Android versions
-            // We can choose to either try to connect to a beacon and hope for the best, or not allow connections
+    // Listener for when a device is selected from the list
+    private void onBeaconSelected(int position, int type) {
+        final Beacon device = beaconList.get(position);
+        Log.d(TAG, "Device " + device.getName() + " selected");
+        // There is no way to determine with reliability whether a device is connectable in earlier Android versions
+        // We can choose to either try to connect to a beacon and hope for the best, or not allow connections
 //            ((DeviceSelection)getActivity()).connectDevice(device.getAddress());
-            switch (parent.getId()){
-                case R.layout.ble_beacon:
-                    break;
-                case R.layout.beacon_device:
-                    Toast.makeText(getActivity().getApplicationContext(), "Connecting to beacons is not allowed",Toast.LENGTH_SHORT).show();
-                    break;
+        switch (type){
+            case DeviceSelection.BLE_BEACON:
+                showHistory(position, device);
+                break;
+            case DeviceSelection.iBEACON:
+                Toast.makeText(getActivity().getApplicationContext(), "Connecting to beacons is not allowed",Toast.LENGTH_SHORT).show();
+                break;
+        }
+    }
+
+    /**
+     * Shows the minimum, mean and maximum readings of a company beacon over the last hour
+     * @param position Position of the beacon in the list, the same as in the sensor history
+     */
+    private void showHistory(int position, Beacon device) {
+        DeviceSelection activity = (DeviceSelection) getActivity();
+        long now = SystemClock.elapsedRealtime();
+        // History times are elapsed realtime, shown as wall clock time
+        long wallOffset = System.currentTimeMillis() - now;
+        StringBuilder summary = new StringBuilder();
+        synchronized (activity.getIngestLock()) {
+            int samples = activity.getSensorHistory().query(position, now - HISTORY_SUMMARY_WINDOW, now + 1, historyRange);
+            summary.append(samples).append(" readings in the last hour");
+            if (samples > 0) {
+                summary.append(", since ").append(DateFormat.getTimeInstance().format(new Date(wallOffset + historyRange.time(0))));
+                appendSummary(summary, "Temperature", SensorHistory.TEMP, 100);
+                appendSummary(summary, "Humidity", SensorHistory.HUM, 1);
+                appendSummary(summary, "Light", SensorHistory.LIGHT, 1);
+                appendSummary(summary, "CO2", SensorHistory.CO2, 1);
             }
         }
-    };
+        AlertDialog.Builder builder = new AlertDialog.Builder(activity);
+        builder.setTitle(device.getName());
+        builder.setMessage(summary.toString());
+        builder.setPositiveButton("Close", null);
+        builder.show();
+    }
+
+    // Appends the minimum, mean and maximum of a field over historyRange, values are divided by scale
+    private void appendSummary(StringBuilder out, String label, int field, int scale) {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        long sum = 0;
+        int size = historyRange.size();
+        for (int i = 0; i < size; i++) {
+            int value = historyRange.value(field, i);
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+        }
+        out.append(String.format(Locale.getDefault(), "\n%s: min %.2f, mean %.2f, max %.2f", label,
+                min / (double) scale, sum / (double) size / scale, max / (double) scale));
+    }
 
     static String turnBytesToHex(byte[] bytes){
         String hexbytes = "";
@@ -82,63 +148,66 @@ public class BeaconFragment extends Fragment {
     }
 
     /**
-     * \brief This class extends the BaseAdapter to hold a list of Bluetooth devices discovered during
-     * scanning. New devices are allocated a 'device' layout which is populated and added to the list.
+     * Cached views of a beacon row, fields not present in the row layout are null
+     */
+    static class BeaconHolder extends RecyclerView.ViewHolder {
+        // Both layouts
+        final TextView name, address, rssi;
+        // iBeacon row (beacon_device)
+        TextView uuid, major, minor, power;
+        // Company beacon row (ble_beacon)
+        TextView time, sequence, temp, hum, light, co2, accX, accY, accZ, electricity, sound, air, txPower;
+
+        BeaconHolder(View itemView, int type) {
+            super(itemView);
+            if (type == DeviceSelection.iBEACON) {
+                name = (TextView) itemView.findViewById(com.bluetooth.ble_terminal.R.id.device_name);
+                address = (TextView) itemView.findViewById(com.bluetooth.ble_terminal.R.id.device_address);
+                rssi = (TextView) itemView.findViewById(com.bluetooth.ble_terminal.R.id.device_rssi);
+                uuid = (TextView) itemView.findViewById(R.id.p_uuid);
+                major = (TextView) itemView.findViewById(R.id.major);
+                minor = (TextView) itemView.findViewById(R.id.minor);
+                power = (TextView) itemView.findViewById(R.id.power);
+            } else {
+                name = (TextView) itemView.findViewById(R.id.ble_beacon_name);
+                address = (TextView) itemView.findViewById(R.id.beacon_mac);
+                rssi = (TextView) itemView.findViewById(R.id.beacon_rssi);
+                time = (TextView) itemView.findViewById(R.id.time_lbl);
+                sequence = (TextView) itemView.findViewById(R.id.beacon_sequence);
+                temp = (TextView) itemView.findViewById(R.id.temp_lbl);
+                hum = (TextView) itemView.findViewById(R.id.hum_lbl);
+                light = (TextView) itemView.findViewById(R.id.light_lbl);
+                co2 = (TextView) itemView.findViewById(R.id.co2_lbl);
+                accX = (TextView) itemView.findViewById(R.id.accx_lbl);
+                accY = (TextView) itemView.findViewById(R.id.accy_lbl);
+                accZ = (TextView) itemView.findViewById(R.id.accZ_lbl);
+                electricity = (TextView) itemView.findViewById(R.id.electricity_lbl);
+                sound = (TextView) itemView.findViewById(R.id.sound_lbl);
+                air = (TextView) itemView.findViewById(R.id.air_lbl);
+                txPower = (TextView) itemView.findViewById(R.id.txpower_lbl);
+            }
+        }
+    }
+
+    /**
+     * \brief This class extends the RecyclerView adapter to hold a list of beacons discovered during
+     * scanning. Rows are recycled per beacon type, a new advertisement only rebinds the readings.
      */
-    public class CustomAdapter extends BaseAdapter {
-        private Context context;
+    public class CustomAdapter extends RecyclerView.Adapter<BeaconHolder> {
         private List<Beacon> deviceList;
-        private String P_UUID;
-        private String Major, Minor;
-        private String Measured_power;
-        private short typeId, sequence_num, temp, hum, light,co2, air, sound, accX, accY, accZ, electric, txpower;
+        // Rows the RecyclerView has been told about, the list may already hold beacons not yet published
+        private int itemCount;
+        // Beacons only store the epoch time, it is formatted when the row is shown
+        private final DateFormat timeFormat = new SimpleDateFormat("HH:mm:ss", Locale.getDefault());
+        private final Date lastSeen = new Date();
+        private final char decimalSeparator = DecimalFormatSymbols.getInstance().getDecimalSeparator();
+        private final StringBuilder text = new StringBuilder(48);
 
 
-        CustomAdapter(Context context, List<Beacon> deviceList) {
-            this.context = context;
+        CustomAdapter(List<Beacon> deviceList) {
             this.deviceList = deviceList;
-        }
-
-        private void parseiBeaconData(byte[] data){
-            int i = 9;
-            P_UUID = "";
-
-            //Proximity UUID
-            while(i < 25){
-                P_UUID += String.format("%02x",data[i]);
-                i++;
-            }
-            //Major
-            Major = String.format("%02x",data[25]);
-            Major += String.format("%02x",data[26]);
-            //Minor
-            Minor = String.format("%02x",data[27]);
-            Minor += String.format("%02x",data[28]);
-            //Measured power
-            Measured_power = String.format("%02x",data[29]);
-        }
-
-
-        private void parseBLEBeaconData(byte[] data){
-//            Log.d(TAG, "Beacon Data " + turnBytesToHex(data));
-            typeId = data[0];
-            sequence_num = parseBytesToInt_LittleEndian(Arrays.copyOfRange(data, 1,2+1));
-            temp = parseBytesToInt_LittleEndian(Arrays.copyOfRange(data, 3,4+1));
-            hum = parseBytesToInt_LittleEndian(Arrays.copyOfRange(data, 5,6+1));
-            light = parseBytesToInt_LittleEndian(Arrays.copyOfRange(data, 7,8+1));
-            co2 = parseBytesToInt_LittleEndian(Arrays.copyOfRange(data, 9,10+1));
-            air = parseBytesToInt_LittleEndian(Arrays.copyOfRange(data, 11,12+1));
-            sound = parseBytesToInt_LittleEndian(Arrays.copyOfRange(data, 13,14+1));
-            accX = parseBytesToInt_LittleEndian(Arrays.copyOfRange(data, 15,16+1));
-            accY = parseBytesToInt_LittleEndian(Arrays.copyOfRange(data, 17,18+1));
-            accZ = parseBytesToInt_LittleEndian(Arrays.copyOfRange(data, 19,20+1));
-            electric = parseBytesToInt_LittleEndian(Arrays.copyOfRange(data, 21,22+1));
-            txpower = data[23];
-        }
-
-        private short parseBytesToInt_LittleEndian(byte[] unparsed){
-            ByteBuffer wrapped = ByteBuffer.wrap(unparsed).order(ByteOrder.LITTLE_ENDIAN);
-            return wrapped.getShort();
+            this.itemCount = deviceList.size();
+            setHasStableIds(true);
         }
 
         @Override
@@ -147,79 +216,99 @@ public class BeaconFragment extends Fragment {
         }
 
         @Override
-        public int getViewTypeCount() {
-            return 2;
+        public long getItemId(int position) {
+            return deviceList.get(position).getMac();
         }
 
         @Override
-        public Beacon getItem(int position) {
-            return this.deviceList.get(position);
+        public int getItemCount() {
+            return itemCount;
         }
 
         @Override
-        public long getItemId(int position) {
-            return position;
+        public BeaconHolder onCreateViewHolder(ViewGroup parent, final int viewType) {
+            int layout = viewType == DeviceSelection.iBEACON ? R.layout.beacon_device : R.layout.ble_beacon;
+            View view = LayoutInflater.from(parent.getContext()).inflate(layout, parent, false);
+            final BeaconHolder holder = new BeaconHolder(view, viewType);
+            view.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    int position = holder.getAdapterPosition();
+                    if (position != RecyclerView.NO_POSITION) {
+                        onBeaconSelected(position, viewType);
+                    }
+                }
+            });
+            return holder;
         }
 
         @Override
-        public int getCount() {
-            return deviceList.size();
+        public void onBindViewHolder(BeaconHolder holder, int position) {
+            Beacon thisDevice = deviceList.get(position);
+            holder.name.setText(thisDevice.getName());
+            holder.address.setText(thisDevice.getMacaddress());
+            bindReadings(holder, thisDevice);
         }
 
         @Override
-        public View getView(final int position, View convertView, ViewGroup parent) {
-            LayoutInflater mInflater = (LayoutInflater) context
-                    .getSystemService(Activity.LAYOUT_INFLATER_SERVICE);
-
-            int type = getItemViewType(position);
-
-            Beacon thisDevice = getItem(position);
-
-            if(type == DeviceSelection.iBEACON) {
-                convertView = mInflater.inflate(R.layout.beacon_device, null);
-
-                byte[] data = thisDevice.getBeacondata();
-
-                // TODO iBeacon Data parsing is done here
-                parseiBeaconData(data);
-
-                ((TextView) convertView.findViewById(com.bluetooth.ble_terminal.R.id.device_name)).setText(thisDevice.getName());
-                ((TextView) convertView.findViewById(com.bluetooth.ble_terminal.R.id.device_address)).setText(thisDevice.getMacaddress());
-                ((TextView) convertView.findViewById(com.bluetooth.ble_terminal.R.id.device_rssi)).setText(String.format(Locale.getDefault(), "%d dBm", thisDevice.getRssi()));
-                ((TextView) convertView.findViewById(R.id.p_uuid)).setText(String.format(Locale.getDefault(), "Proximity UUID: %s", P_UUID));
-                ((TextView) convertView.findViewById(R.id.major)).setText(String.format(Locale.getDefault(), "Major: %d", Integer.valueOf(Major,16)));
-                ((TextView) convertView.findViewById(R.id.minor)).setText(String.format(Locale.getDefault(), "Minor: %d", Integer.valueOf(Minor,16)));
-                ((TextView) convertView.findViewById(R.id.power)).setText(String.format(Locale.getDefault(), "Measured power : %d",Integer.valueOf(Measured_power,16)));
-            }else{
-
-                convertView = mInflater.inflate(R.layout.ble_beacon, null);
-
-                byte[] data = thisDevice.getBeacondata();
+        public void onBindViewHolder(BeaconHolder holder, int position, List<Object> payloads) {
+            if (payloads.isEmpty()) {
+                onBindViewHolder(holder, position);
+            } else {
+                bindReadings(holder, deviceList.get(position));
+            }
+        }
 
+        private void bindReadings(BeaconHolder holder, Beacon thisDevice) {
+            // Beacon data was decoded into BeaconTelemetry when the advert was received
+            BeaconTelemetry data = thisDevice.getTelemetry();
+            holder.rssi.setText(rssiText(thisDevice.getRssi()));
+
+            if (holder.getItemViewType() == DeviceSelection.iBEACON) {
+                holder.uuid.setText(labelText("Proximity UUID: ").append(data.proximityUuidHex()).toString());
+                holder.major.setText(labelText("Major: ").append(data.major).toString());
+                holder.minor.setText(labelText("Minor: ").append(data.minor).toString());
+                holder.power.setText(labelText("Measured power : ").append(data.measuredPower).toString());
+            } else {
+                lastSeen.setTime(thisDevice.getLastSeen());
+                holder.time.setText(timeFormat.format(lastSeen));
+                holder.sequence.setText(String.valueOf(data.sequence));
+                holder.temp.setText(hundredths(data.temp));
+                holder.hum.setText(String.valueOf(data.hum));
+                holder.light.setText(String.valueOf(data.light));
+                holder.co2.setText(String.valueOf(data.co2));
+                holder.accX.setText(hundredths(data.accX));
+                holder.accY.setText(hundredths(data.accY));
+                holder.accZ.setText(hundredths(data.accZ));
+                holder.electricity.setText(String.valueOf(data.electric));
+                holder.sound.setText(String.valueOf(data.sound));
+                holder.air.setText(String.valueOf(data.air));
+                holder.txPower.setText(String.valueOf(data.txPower));
+            }
+        }
 
-                ((TextView) convertView.findViewById(R.id.ble_beacon_name)).setText(thisDevice.getName());
-                ((TextView) convertView.findViewById(R.id.beacon_mac)).setText(thisDevice.getMacaddress());
-                ((TextView) convertView.findViewById(R.id.beacon_rssi)).setText(String.format(Locale.getDefault(), "%d dBm", thisDevice.getRssi()));
+        private StringBuilder labelText(String label) {
+            text.setLength(0);
+            return text.append(label);
+        }
 
-                // TODO Beacon Data parsing is done here
-                parseBLEBeaconData(data);
-                ((TextView) convertView.findViewById(R.id.time_lbl)).setText(thisDevice.getLastbeacontime());
-                ((TextView) convertView.findViewById(R.id.beacon_sequence)).setText(String.format(Locale.getDefault(), "%d", sequence_num));
-                ((TextView) convertView.findViewById(R.id.temp_lbl)).setText(String.format(Locale.getDefault(), "%.2f", (float) temp / 100));
-                ((TextView) convertView.findViewById(R.id.hum_lbl)).setText(String.format(Locale.getDefault(), "%d", hum));
-                ((TextView) convertView.findViewById(R.id.light_lbl)).setText(String.format(Locale.getDefault(), "%d", light));
-                ((TextView) convertView.findViewById(R.id.co2_lbl)).setText(String.format(Locale.getDefault(), "%d", co2));
-                ((TextView) convertView.findViewById(R.id.accx_lbl)).setText(String.format(Locale.getDefault(), "%.2f", (float) accX / 100));
-                ((TextView) convertView.findViewById(R.id.accy_lbl)).setText(String.format(Locale.getDefault(), "%.2f", (float) accY / 100));
-                ((TextView) convertView.findViewById(R.id.accZ_lbl)).setText(String.format(Locale.getDefault(), "%.2f", (float) accZ / 100));
-                ((TextView) convertView.findViewById(R.id.electricity_lbl)).setText(String.format(Locale.getDefault(), "%d", electric));
-                ((TextView) convertView.findViewById(R.id.sound_lbl)).setText(String.format(Locale.getDefault(), "%d", sound));
-                ((TextView) convertView.findViewById(R.id.air_lbl)).setText(String.format(Locale.getDefault(), "%d", air));
-                ((TextView) convertView.findViewById(R.id.txpower_lbl)).setText(String.format(Locale.getDefault(), "%d", txpower));
+        private String rssiText(int rssi) {
+            return labelText("").append(rssi).append(" dBm").toString();
+        }
 
+        // Fixed point value with two decimals, same output as "%.2f" of value / 100
+        private String hundredths(int value) {
+            text.setLength(0);
+            if (value < 0) {
+                text.append('-');
+                value = -value;
             }
-
-            return convertView;
+            int fraction = value % 100;
+            text.append(value / 100).append(decimalSeparator);
+            if (fraction < 10) {
+                text.append('0');
+            }
+            return text.append(fraction).toString();
         }
     }
 
@@ -0,0 +1,142 @@
+package com.bluetooth.ble_terminal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Index of the beacons discovered during scanning, keyed by the 48-bit MAC address packed into a
+ * long. Lookups use an open-addressing (linear probing) table of primitive keys so updating a known
+ * beacon is O(1) and does not allocate. Beacons are kept in insertion order in the list handed to
+ * the BeaconFragment, the table only stores their positions.
+ */
+final class BeaconRegistry {
+
+    /// Marks an unused slot, a 48-bit MAC address can never be negative
+    private static final long EMPTY = -1L;
+    private static final int INITIAL_CAPACITY = 64;   // Must be a power of two
+
+    private final ArrayList<Beacon> beacons;
+    private long[] keys;
+    private int[] positions;
+    private int mask;
+    private int threshold;
+
+    /**
+     * @param beacons List shown by the beacon fragment, new beacons are appended to it
+     */
+    BeaconRegistry(ArrayList<Beacon> beacons) {
+        this.beacons = beacons;
+        allocate(INITIAL_CAPACITY);
+        for (int i = 0; i < beacons.size(); i++) {
+            insert(beacons.get(i).getMac(), i);
+        }
+    }
+
+    /**
+     * Converts a "AA:BB:CC:DD:EE:FF" address as returned by BluetoothDevice.getAddress() to a long
+     * @param address MAC address string
+     * @return Address as a 48-bit value, or -1 if the string is not a valid MAC address
+     */
+    static long parseMac(String address) {
+        if (address == null || address.length() != 17) {
+            return EMPTY;
+        }
+        long mac = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    return EMPTY;
+                }
+                continue;
+            }
+            int nibble = Character.digit(c, 16);
+            if (nibble < 0) {
+                return EMPTY;
+            }
+            mac = (mac << 4) | nibble;
+        }
+        return mac;
+    }
+
+    /**
+     * Get the position of a beacon in the list
+     * @param mac Packed MAC address
+     * @return Position in the beacon list, or -1 if the beacon has not been seen yet
+     */
+    int indexOf(long mac) {
+        int slot = slot(mac);
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == mac) {
+                return positions[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Records an advertisement, creating the beacon if it is not known yet.
+     * @param mac       Packed MAC address
+     * @param name      Device name, only read for new beacons
+     * @param address   MAC address string, only read for new beacons
+     * @param rssi      Signal strength of the advertisement
+     * @param type      Beacon type (DeviceSelection.BLE_BEACON or DeviceSelection.iBEACON)
+     * @param telemetry Decoded beacon payload
+     * @param now       Reception time in epoch milliseconds
+     * @return Position of the beacon in the list
+     */
+    int update(long mac, String name, String address, int rssi, int type, BeaconTelemetry telemetry, long now) {
+        int index = indexOf(mac);
+        if (index >= 0) {
+            Beacon b = beacons.get(index);
+            b.setRssi(rssi);
+            b.setTelemetry(telemetry);
+            b.setLastSeen(now);
+            return index;
+        }
+
+        index = beacons.size();
+        beacons.add(new Beacon(name, address, mac, now, rssi, type, telemetry));
+        if (index >= threshold) {
+            allocate(keys.length << 1);
+            for (int i = 0; i < beacons.size(); i++) {
+                insert(beacons.get(i).getMac(), i);
+            }
+        } else {
+            insert(mac, index);
+        }
+        return index;
+    }
+
+    int size() {
+        return beacons.size();
+    }
+
+    Beacon get(int index) {
+        return beacons.get(index);
+    }
+
+    private void insert(long mac, int index) {
+        int slot = slot(mac);
+        while (keys[slot] != EMPTY && keys[slot] != mac) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = mac;
+        positions[slot] = index;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        positions = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        mask = capacity - 1;
+        threshold = capacity >> 1;   // Keep the load factor at 0.5 so probe chains stay short
+    }
+
+    private int slot(long mac) {
+        // Fibonacci hashing, the low bits of a MAC are not well distributed across vendors
+        long h = mac * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mask;
+    }
+}
@@ -0,0 +1,123 @@
+package com.bluetooth.ble_terminal;
+
+import java.io.Serializable;
+
+/**
+ * Decoded beacon payload. Advertisements are decoded once when they are received, directly from the
+ * raw scan record, so the list only reads fields when a row is shown.
+ *
+ * Company beacons (24 bytes after the company ID, little endian):
+ * type (1), sequence (2), temperature (2), humidity (2), light (2), CO2 (2), air pressure (2),
+ * sound (2), acceleration X/Y/Z (2 each), electricity (2), TX power (1)
+ *
+ * iBeacons (after the company ID, big endian):
+ * 0x02 0x15, proximity UUID (16), major (2), minor (2), measured power (1)
+ */
+final class BeaconTelemetry implements Serializable {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /// DeviceSelection.BLE_BEACON or DeviceSelection.iBEACON
+    final int type;
+
+    // Company beacon fields
+    final short typeId, sequence, temp, hum, light, co2, air, sound, accX, accY, accZ, electric, txPower;
+
+    // iBeacon fields
+    final long uuidMsb, uuidLsb;
+    final int major, minor;
+    final byte measuredPower;
+
+    private BeaconTelemetry(int type, short typeId, short sequence, short temp, short hum, short light, short co2,
+                            short air, short sound, short accX, short accY, short accZ, short electric, short txPower,
+                            long uuidMsb, long uuidLsb, int major, int minor, byte measuredPower) {
+        this.type = type;
+        this.typeId = typeId;
+        this.sequence = sequence;
+        this.temp = temp;
+        this.hum = hum;
+        this.light = light;
+        this.co2 = co2;
+        this.air = air;
+        this.sound = sound;
+        this.accX = accX;
+        this.accY = accY;
+        this.accZ = accZ;
+        this.electric = electric;
+        this.txPower = txPower;
+        this.uuidMsb = uuidMsb;
+        this.uuidLsb = uuidLsb;
+        this.major = major;
+        this.minor = minor;
+        this.measuredPower = measuredPower;
+    }
+
+    /**
+     * Decode a company beacon payload
+     * @param data   Buffer holding the payload, usually the raw scan record
+     * @param offset Start of the payload, after the company ID
+     * @return Decoded telemetry
+     */
+    static BeaconTelemetry decodeCompanyBeacon(byte[] data, int offset) {
+        return new BeaconTelemetry(DeviceSelection.BLE_BEACON,
+                data[offset],
+                readShortLE(data, offset + 1),
+                readShortLE(data, offset + 3),
+                readShortLE(data, offset + 5),
+                readShortLE(data, offset + 7),
+                readShortLE(data, offset + 9),
+                readShortLE(data, offset + 11),
+                readShortLE(data, offset + 13),
+                readShortLE(data, offset + 15),
+                readShortLE(data, offset + 17),
+                readShortLE(data, offset + 19),
+                readShortLE(data, offset + 21),
+                data[offset + 23],
+                0, 0, 0, 0, (byte) 0);
+    }
+
+    /**
+     * Decode an iBeacon frame
+     * @param data   Buffer holding the frame, usually the raw scan record
+     * @param offset Start of the frame at the 0x02 0x15 header, after the company ID
+     * @return Decoded telemetry
+     */
+    static BeaconTelemetry decodeIBeacon(byte[] data, int offset) {
+        short none = 0;
+        return new BeaconTelemetry(DeviceSelection.iBEACON,
+                none, none, none, none, none, none, none, none, none, none, none, none, none,
+                readLongBE(data, offset + 2),
+                readLongBE(data, offset + 10),
+                readUnsignedShortBE(data, offset + 18),
+                readUnsignedShortBE(data, offset + 20),
+                data[offset + 22]);
+    }
+
+    /**
+     * @return Proximity UUID as 32 lower case hex digits
+     */
+    String proximityUuidHex() {
+        char[] text = new char[32];
+        for (int i = 0; i < 16; i++) {
+            text[i] = HEX[(int) (uuidMsb >>> (60 - 4 * i)) & 0xF];
+            text[i + 16] = HEX[(int) (uuidLsb >>> (60 - 4 * i)) & 0xF];
+        }
+        return new String(text);
+    }
+
+    private static short readShortLE(byte[] data, int offset) {
+        return (short) ((data[offset] & 0xFF) | (data[offset + 1] << 8));
+    }
+
+    private static int readUnsignedShortBE(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static long readLongBE(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -6,45 +6,64 @@ import java.io.Serializable;
 
 class Beacon implements Serializable {
 
-//    RSSI, Name, MacAddress, ScanResponse Data, type
+//    RSSI, Name, MacAddress, Decoded advertisement data, type
     int rssi, type;
-    byte[] beacondata;
-    String name, macaddress, lastbeacontime;
+    BeaconTelemetry telemetry;
+    String name, macaddress;
+    // MAC address packed as a long (see BeaconRegistry) and last advertisement time in epoch milliseconds
+    long mac, lastseen;
 
-    Beacon (String name, String macaddress, String lastbeacontime, int rssi, int type, byte[] beacondata){
+    Beacon (String name, String macaddress, long mac, long lastseen, int rssi, int type, BeaconTelemetry telemetry){
         this.name = name;
         this.macaddress = macaddress;
+        this.mac = mac;
         this.rssi = rssi;
-        this.beacondata = beacondata;
+        this.telemetry = telemetry;
         this.type = type;
-        this.lastbeacontime = lastbeacontime;
+        this.lastseen = lastseen;
     }
 
+    /// Copy of the current state of a beacon
+    Beacon (Beacon other){
+        this(other.name, other.macaddress, other.mac, other.lastseen, other.rssi, other.type, other.telemetry);
+    }
+
+    /// Take the readings of a newer copy of the same beacon
+    void update(Beacon other) {
+        this.rssi = other.rssi;
+        this.telemetry = other.telemetry;
+        this.lastseen = other.lastseen;
+    }
 
-    public void setLastbeacontime(String lastbeacontime) {
-        this.lastbeacontime = lastbeacontime;
+
+    public void setLastSeen(long lastseen) {
+        this.lastseen = lastseen;
     }
 
-    public String getLastbeacontime() {
-        return lastbeacontime;
+    public long getLastSeen() {
+        return lastseen;
     }
 
     public void setRssi(int rssi) {
         this.rssi = rssi;
     }
 
-    public void setBeacondata(byte[] beacondata) {
-        this.beacondata = beacondata;
+    public void setTelemetry(BeaconTelemetry telemetry) {
+        this.telemetry = telemetry;
     }
 
-    public byte[] getBeacondata() {
-        return beacondata;
+    public BeaconTelemetry getTelemetry() {
+        return telemetry;
     }
 
     public String getMacaddress() {
         return macaddress;
     }
 
+    public long getMac() {
+        return mac;
+    }
+
     public int getType() {
         return type;
     }
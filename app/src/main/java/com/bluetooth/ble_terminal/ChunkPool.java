@@ -0,0 +1,53 @@
+package com.bluetooth.ble_terminal;
+
+import java.util.ArrayDeque;
+
+/**
+ * Reusable chunk buffers for GATT writes. A characteristic value is set from a whole array, so buffers
+ * are kept per length: full-size chunks and the shorter last chunk of a message each come from their own
+ * free list. Buffers are only allocated until the pool holds as many of a length as are in flight at
+ * once, after that sending does not allocate.
+ *
+ * Thread safe, chunks are taken on the TX thread and returned from GATT completion callbacks.
+ */
+final class ChunkPool {
+
+    private final ArrayDeque<byte[]>[] free;
+    private int allocatedCount;
+
+    /**
+     * @param maxLength Largest chunk length, BLEService.MAX_ATTRIBUTE_LENGTH covers every MTU
+     */
+    @SuppressWarnings("unchecked")
+    ChunkPool(int maxLength) {
+        free = new ArrayDeque[maxLength + 1];
+    }
+
+    /**
+     * @param length Chunk length, 1 to maxLength
+     * @return Buffer of exactly length bytes, contents undefined
+     */
+    synchronized byte[] obtain(int length) {
+        ArrayDeque<byte[]> list = free[length];
+        byte[] chunk = list != null ? list.poll() : null;
+        if (chunk == null) {
+            chunk = new byte[length];
+            allocatedCount++;
+        }
+        return chunk;
+    }
+
+    /// Return a buffer once the stack no longer reads it
+    synchronized void release(byte[] chunk) {
+        ArrayDeque<byte[]> list = free[chunk.length];
+        if (list == null) {
+            list = free[chunk.length] = new ArrayDeque<>();
+        }
+        list.add(chunk);
+    }
+
+    /// Buffers allocated since the pool was created
+    synchronized int getAllocatedCount() {
+        return allocatedCount;
+    }
+}
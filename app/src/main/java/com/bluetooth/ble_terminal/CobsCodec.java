@@ -0,0 +1,90 @@
+package com.bluetooth.ble_terminal;
+
+/**
+ * Consistent Overhead Byte Stuffing: frames contain no zero byte and end with a zero delimiter. The
+ * overhead is one byte per 254 bytes of data plus the delimiter, and the receiver resynchronizes at the
+ * next zero after any corruption.
+ */
+final class CobsCodec extends FrameCodec {
+
+    // Encoder state: position of the pending code byte and its value
+    private int codePos;
+    private int code;
+
+    // Decoder state: data bytes left in the current block, code of the previous block (0 at frame start)
+    private int remaining;
+    private int lastCode;
+
+    CobsCodec(int crcLength) {
+        super(crcLength);
+    }
+
+    @Override
+    protected int maxFrameLength(int frameLength) {
+        return frameLength + frameLength / 254 + 2;
+    }
+
+    @Override
+    protected int beginFrame(byte[] dst, int pos, int frameLength) {
+        codePos = pos;
+        code = 1;
+        return pos + 1;
+    }
+
+    @Override
+    protected int put(byte[] src, int offset, int length, byte[] dst, int pos) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            byte b = src[i];
+            if (b != 0) {
+                dst[pos++] = b;
+                code++;
+            }
+            if (b == 0 || code == 0xFF) {
+                dst[codePos] = (byte) code;
+                codePos = pos++;
+                code = 1;
+            }
+        }
+        return pos;
+    }
+
+    @Override
+    protected int endFrame(byte[] dst, int pos) {
+        dst[codePos] = (byte) code;
+        dst[pos++] = 0;
+        return pos;
+    }
+
+    @Override
+    void decode(byte[] src, int offset, int length, Listener listener) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int b = src[i] & 0xFF;
+            if (b == 0) {
+                // Delimiter, a lone one between frames is idle fill
+                if (discarding || remaining != 0) {
+                    corrupt(listener);
+                } else if (lastCode != 0) {
+                    deliver(frame, 0, frameLength, listener);
+                }
+                reset();
+            } else if (remaining == 0) {
+                // Code byte, the previous block ended with a zero unless it was a full 254 byte block
+                if (lastCode != 0 && lastCode != 0xFF) {
+                    append((byte) 0);
+                }
+                lastCode = b;
+                remaining = b - 1;
+            } else {
+                append((byte) b);
+                remaining--;
+            }
+        }
+    }
+
+    @Override
+    void reset() {
+        super.reset();
+        remaining = 0;
+        lastCode = 0;
+    }
+}
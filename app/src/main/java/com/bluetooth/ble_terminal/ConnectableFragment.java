@@ -1,17 +1,15 @@
 package com.bluetooth.ble_terminal;
 
-import android.app.Activity;
 import android.bluetooth.BluetoothDevice;
-import android.content.Context;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SimpleItemAnimator;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.AdapterView;
-import android.widget.BaseAdapter;
-import android.widget.ListView;
 import android.widget.TextView;
 
 import java.util.ArrayList;
@@ -25,6 +23,9 @@ public class ConnectableFragment extends Fragment {
     private CustomAdapter deviceAdapter;
     private HashMap<String, Integer> RSSI;
 
+    // Payload for rows where only the RSSI reading changed
+    private static final Object PAYLOAD_RSSI = new Object();
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
@@ -32,73 +33,121 @@ public class ConnectableFragment extends Fragment {
         View rootView = inflater.inflate(R.layout.device_list, container, false);
         Log.d(TAG, "Making Connectable Fragment");
         deviceList = getArguments().getParcelableArrayList("connectabledevices");
-        deviceAdapter = new CustomAdapter(getContext(), deviceList);
-        ListView listView = (ListView) rootView.findViewById(R.id.device_list);
+        RSSI = (HashMap<String, Integer>) getArguments().getSerializable("connectablerssi");
+        deviceAdapter = new CustomAdapter(deviceList);
+        RecyclerView listView = (RecyclerView) rootView.findViewById(R.id.device_list);
+        listView.setLayoutManager(new LinearLayoutManager(getContext()));
+        // Partial rebinds reuse the row, the cross-fade of a change animation is not needed
+        ((SimpleItemAnimator) listView.getItemAnimator()).setSupportsChangeAnimations(false);
         listView.setAdapter(deviceAdapter);
-        listView.setOnItemClickListener(listenerItemSelected);
         return rootView;
     }
 
-    public void updateConnectable(ArrayList<BluetoothDevice> newdevices, HashMap<String, Integer> newrssi) {
+    /**
+     * Refreshes the list after the device list or RSSI readings changed
+     * @param changes Rows changed since the last update
+     */
+    public void updateConnectable(ListUpdateScheduler.ChangeSet changes) {
         if (deviceAdapter != null) {
-            deviceList = newdevices;
-            RSSI = newrssi;
-            deviceAdapter.notifyDataSetChanged();
+            int known = deviceAdapter.itemCount;
+            for (int i = 0; i < changes.size(); i++) {
+                int row = changes.row(i);
+                if (row < known) {
+                    // Devices only change their RSSI reading
+                    deviceAdapter.notifyItemChanged(row, PAYLOAD_RSSI);
+                }
+            }
+            int size = deviceList.size();
+            if (size > known) {
+                deviceAdapter.itemCount = size;
+                deviceAdapter.notifyItemRangeInserted(known, size - known);
+            }
         }
     }
 
     // Listener for when a device is selected from the list. Connects to device and initiates service discovery
-    private AdapterView.OnItemClickListener listenerItemSelected = new AdapterView.OnItemClickListener() {
-        @Override
-        public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-            final BluetoothDevice device = deviceList.get(position);
-            Log.d(TAG, "Device " + device.getName() + " selected");
-            ((DeviceSelection)getActivity()).connectDevice(device.getAddress());
+    private void onDeviceSelected(int position) {
+        final BluetoothDevice device = deviceList.get(position);
+        Log.d(TAG, "Device " + device.getName() + " selected");
+        ((DeviceSelection)getActivity()).connectDevice(device.getAddress());
+    }
+
+    /**
+     * Cached views of a device row
+     */
+    static class DeviceHolder extends RecyclerView.ViewHolder {
+        final TextView name, address, rssi;
+
+        DeviceHolder(View itemView) {
+            super(itemView);
+            name = (TextView) itemView.findViewById(com.bluetooth.ble_terminal.R.id.device_name);
+            address = (TextView) itemView.findViewById(com.bluetooth.ble_terminal.R.id.device_address);
+            rssi = (TextView) itemView.findViewById(com.bluetooth.ble_terminal.R.id.device_rssi);
         }
-    };
+    }
 
     /**
-     * \brief This class extends the BaseAdapter to hold a list of Bluetooth devices discovered during
-     * scanning. New devices are allocated a 'device' layout which is populated and added to the list.
+     * \brief This class extends the RecyclerView adapter to hold a list of Bluetooth devices discovered during
+     * scanning. Rows use the 'device' layout and are recycled, an RSSI update only rebinds the RSSI text.
      */
-    public class CustomAdapter extends BaseAdapter {
-        private Context context;
+    public class CustomAdapter extends RecyclerView.Adapter<DeviceHolder> {
         private List<BluetoothDevice> deviceList;
+        // Rows the RecyclerView has been told about, the list may already hold devices not yet published
+        private int itemCount;
 
-        CustomAdapter(Context context, List<BluetoothDevice> deviceList) {
-            this.context = context;
+        CustomAdapter(List<BluetoothDevice> deviceList) {
             this.deviceList = deviceList;
+            this.itemCount = deviceList.size();
+            setHasStableIds(true);
         }
 
         @Override
-        public BluetoothDevice getItem(int position) {
-            return this.deviceList.get(position);
+        public long getItemId(int position) {
+            return BeaconRegistry.parseMac(deviceList.get(position).getAddress());
         }
 
         @Override
-        public long getItemId(int position) {
-            return position;
+        public int getItemCount() {
+            return itemCount;
         }
 
         @Override
-        public int getCount() {
-            return deviceList.size();
+        public DeviceHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            View view = LayoutInflater.from(parent.getContext())
+                    .inflate(com.bluetooth.ble_terminal.R.layout.device, parent, false);
+            final DeviceHolder holder = new DeviceHolder(view);
+            view.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    int position = holder.getAdapterPosition();
+                    if (position != RecyclerView.NO_POSITION) {
+                        onDeviceSelected(position);
+                    }
+                }
+            });
+            return holder;
         }
 
         @Override
-        public View getView(final int position, View convertView, ViewGroup parent) {
-            LayoutInflater mInflater = (LayoutInflater) context
-                    .getSystemService(Activity.LAYOUT_INFLATER_SERVICE);
-            convertView = mInflater.inflate(com.bluetooth.ble_terminal.R.layout.device, null);
-
-            BluetoothDevice thisDevice = getItem(position);
-            Integer rssi = RSSI.get(thisDevice.getAddress());
+        public void onBindViewHolder(DeviceHolder holder, int position) {
+            BluetoothDevice thisDevice = deviceList.get(position);
+            holder.name.setText(thisDevice.getName());
+            holder.address.setText(thisDevice.getAddress());
+            bindRssi(holder, thisDevice);
+        }
 
-            ((TextView) convertView.findViewById(com.bluetooth.ble_terminal.R.id.device_name)).setText(thisDevice.getName());
-            ((TextView) convertView.findViewById(com.bluetooth.ble_terminal.R.id.device_address)).setText(thisDevice.getAddress());
-            ((TextView) convertView.findViewById(com.bluetooth.ble_terminal.R.id.device_rssi)).setText(String.valueOf(rssi) + " dBm");
+        @Override
+        public void onBindViewHolder(DeviceHolder holder, int position, List<Object> payloads) {
+            if (payloads.isEmpty()) {
+                onBindViewHolder(holder, position);
+            } else {
+                bindRssi(holder, deviceList.get(position));
+            }
+        }
 
-            return convertView;
+        private void bindRssi(DeviceHolder holder, BluetoothDevice device) {
+            Integer rssi = RSSI.get(device.getAddress());
+            holder.rssi.setText(String.valueOf(rssi) + " dBm");
         }
     }
 
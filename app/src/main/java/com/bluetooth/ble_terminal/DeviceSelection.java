@@ -2,6 +2,7 @@ package com.bluetooth.ble_terminal;
 
 import android.Manifest;
 import android.annotation.TargetApi;
+import android.app.ActivityManager;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.bluetooth.BluetoothAdapter;
@@ -11,6 +12,7 @@ import android.bluetooth.BluetoothGattService;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
@@ -22,6 +24,7 @@ import android.location.LocationManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.support.design.widget.TabLayout;
 import android.support.v4.app.Fragment;
@@ -31,15 +34,13 @@ import android.support.v4.view.PagerAdapter;
 import android.support.v4.view.ViewPager;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
+import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Toast;
 import android.content.Intent;
 import com.bluetooth.ble_terminal.BLEService.LocalBinder;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 
@@ -79,10 +80,38 @@ public class DeviceSelection extends AppCompatActivity{
 
     private HashMap<String, Integer> RSSI;
 
+    // Scan results are processed by the ingestion worker into its own lists, guarded by ingestLock.
+    // The lists above are only touched on the main thread and receive copies of the changed rows once per frame.
+    private final Object ingestLock = new Object();
+    private ScanIngestion scanIngestion;
+    private ArrayList<BluetoothDevice> scannedDevices;
+    private HashMap<String, Integer> scannedRssi;
+    private ArrayList<Beacon> scannedBeacons;
+    private BeaconRegistry beaconRegistry;
+    private SensorHistory sensorHistory;
+    // Read by the worker, the main thread changes the filters
+    private volatile boolean scanFiltered;
+
     // TODO Add the BLE company ID
     // Please check the ID in the bluetooth website
     static int CompanyID = 0x0000;
 
+    // Scan profile. Set a report delay (ms) to let the controller batch scan results,
+    // 0 delivers every result immediately
+    static int ScanMode = ScanSettings.SCAN_MODE_LOW_LATENCY;
+    static long ScanReportDelay = 0;
+    // Let the Bluetooth stack drop advertisements that are not beacons or terminal devices
+    static boolean ScanFilterEnabled = true;
+    // Duty cycle the scan, backing off to lower power scan modes while no new devices are found
+    static boolean AdaptiveScan = true;
+    // Sensor history of the company beacons: samples kept per beacon, and the memory for all beacons as a
+    // fraction of the app heap (ActivityManager.getMemoryClass()). 7200 samples (2 hours at one reading per
+    // second) take 187 kB per beacon, 1/16 of a 192 MB heap holds 67 beacons. Allocated as beacons are seen
+    static int HistorySamplesPerBeacon = 7200;
+    static int HistoryHeapFraction = 16;
+    // Scan results waiting for the ingestion worker, further results are dropped until it catches up
+    static int ScanQueueCapacity = 1024;
+
     static final int BLE_BEACON = 1;
     static final int iBEACON = 2;
 
@@ -90,6 +119,9 @@ public class DeviceSelection extends AppCompatActivity{
     private FragmentStatePagerAdapter adapterViewPager;
     private ConnectableFragment connectable;
     private BeaconFragment beacon;
+    // Coalesce list changes so the fragments rebind at most once per frame
+    private ListUpdateScheduler connectableUpdates;
+    private ListUpdateScheduler beaconUpdates;
 
     private boolean requestBluetooth = false;
     private boolean bindService = false;
@@ -97,8 +129,9 @@ public class DeviceSelection extends AppCompatActivity{
 
     // Build the alert dialog
     AlertDialog.Builder builder;
-    //iBeacon prefix array
-    private static final short[] ibeacon_prefix = {0x02,0x01,0x06,0x1A,0xff,0x4C,0x00,0x02,0x15};
+    // Reused for every scan result, only used by the ingestion worker
+    private final AdvertisementParser advertisementParser = new AdvertisementParser();
+    private final ScanFilters.Stats scanFilterStats = new ScanFilters.Stats();
 
 
     /**
@@ -115,6 +148,64 @@ public class DeviceSelection extends AppCompatActivity{
         connectabledeviceList = new ArrayList<>();
         beaconsList = new ArrayList<>();
         RSSI = new HashMap<>();
+        scannedDevices = new ArrayList<>();
+        scannedRssi = new HashMap<>();
+        scannedBeacons = new ArrayList<>();
+        beaconRegistry = new BeaconRegistry(scannedBeacons);
+        long heap = ((ActivityManager) getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass() * 1024L * 1024L;
+        sensorHistory = new SensorHistory(heap / HistoryHeapFraction, HistorySamplesPerBeacon);
+        connectableUpdates = new ListUpdateScheduler(ingestLock, new ListUpdateScheduler.Listener() {
+            @Override
+            public void onSnapshot(ListUpdateScheduler.ChangeSet changes) {
+                for (int i = 0; i < changes.size(); i++) {
+                    String address = scannedDevices.get(changes.row(i)).getAddress();
+                    RSSI.put(address, scannedRssi.get(address));
+                }
+                connectabledeviceList.addAll(scannedDevices.subList(connectabledeviceList.size(), scannedDevices.size()));
+            }
+
+            @Override
+            public void onRowsChanged(ListUpdateScheduler.ChangeSet changes) {
+                if (changes.hasInsertions()) {
+                    reportDiscoveries(connectabledeviceList.size() - changes.firstInserted());
+                }
+                if (connectable != null) {
+                    connectable.updateConnectable(changes);
+                }
+            }
+        });
+        beaconUpdates = new ListUpdateScheduler(ingestLock, new ListUpdateScheduler.Listener() {
+            @Override
+            public void onSnapshot(ListUpdateScheduler.ChangeSet changes) {
+                int known = beaconsList.size();
+                for (int i = 0; i < changes.size(); i++) {
+                    int row = changes.row(i);
+                    if (row < known) {
+                        beaconsList.get(row).update(scannedBeacons.get(row));
+                    }
+                }
+                for (int row = known; row < scannedBeacons.size(); row++) {
+                    beaconsList.add(new Beacon(scannedBeacons.get(row)));
+                }
+            }
+
+            @Override
+            public void onRowsChanged(ListUpdateScheduler.ChangeSet changes) {
+                if (changes.hasInsertions()) {
+                    reportDiscoveries(beaconsList.size() - changes.firstInserted());
+                }
+                if (beacon != null) {
+                    beacon.updateBeacons(changes);
+                }
+            }
+        });
+        scanIngestion = new ScanIngestion(ScanQueueCapacity, new ScanIngestion.Consumer() {
+            @Override
+            public void process(ScanResult result) {
+                processScanResult(result);
+            }
+        });
+        scanIngestion.start();
 
         vpPager = (ViewPager) findViewById(R.id.pager);
         vpPager.setOffscreenPageLimit(2);
@@ -123,6 +214,17 @@ public class DeviceSelection extends AppCompatActivity{
         TabLayout tabLayout = (TabLayout) findViewById(R.id.sliding_tabs);
         tabLayout.setupWithViewPager(vpPager);
 
+        // Recorded sessions are replayed in the terminal without connecting to a device
+        findViewById(R.id.btn_replay).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                Intent terminal = new Intent(getApplicationContext(), Terminal.class);
+                terminal.putExtra(Terminal.EXTRA_REPLAY, true);
+                StopScanning();
+                startActivityForResult(terminal, REQUEST_OPEN_TERMINAL);
+            }
+        });
+
         builder = new AlertDialog.Builder(this);
         builder.setTitle("Location Services Not Active");
         builder.setMessage("Location Services are required for BLE scanning");
@@ -190,11 +292,36 @@ public class DeviceSelection extends AppCompatActivity{
         if (mService != null) {
             StopScanning();
         }
+        Log.d(TAG, "Connectable list updates delivered: " + connectableUpdates.getDeliveredCount()
+                + " coalesced: " + connectableUpdates.getCoalescedCount());
+        Log.d(TAG, "Beacon list updates delivered: " + beaconUpdates.getDeliveredCount()
+                + " coalesced: " + beaconUpdates.getCoalescedCount());
+        Log.d(TAG, "Scan results queued: " + scanIngestion.getSubmittedCount()
+                + " dropped: " + scanIngestion.getDroppedCount()
+                + " queue high watermark: " + scanIngestion.getHighWatermark());
+        Log.d(TAG, "Scan callbacks with filters: " + scanFilterStats.getFilteredResults()
+                + " avoided: " + scanFilterStats.getAvoidedCallbacks());
+        synchronized (ingestLock) {
+            Log.d(TAG, "Sensor history bytes: " + sensorHistory.getAllocatedBytes()
+                    + " dropped samples: " + sensorHistory.getDroppedSamples());
+        }
+        ScanScheduler scheduler = mService != null ? mService.getScanScheduler() : null;
+        if (scheduler != null) {
+            for (int level = 0; level < ScanScheduler.LEVEL_COUNT; level++) {
+                Log.d(TAG, "Scan level " + level + " radio on ms: " + scheduler.getRadioOnMillis(level)
+                        + " callbacks: " + scheduler.getCallbackCount(level)
+                        + " results: " + scheduler.getResultCount(level));
+            }
+            Log.d(TAG, "Scan starts postponed by the start limit: " + scheduler.getPostponedStarts());
+        }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        scanIngestion.stop();
+        connectableUpdates.cancel();
+        beaconUpdates.cancel();
 
         try {
             unregisterReceiver(HardwareStatusReceiver);
@@ -338,6 +465,10 @@ public class DeviceSelection extends AppCompatActivity{
                 // There was an error configuring the Bluetooth hardware
                 finish();
             } else {
+                mService.setScanProfile(ScanMode, ScanReportDelay);
+                mService.setAdaptiveScan(AdaptiveScan);
+                mService.setScanFilters(ScanFilterEnabled ? ScanFilters.build(CompanyID, DEVICE_SERVICE_UUID) : null);
+                scanFiltered = mService.isScanFiltered();
                 StartScanning();
             }
         }
@@ -362,67 +493,27 @@ public class DeviceSelection extends AppCompatActivity{
             mService.stopScan(mScanCallback);
     }
 
-    //Check if advertising data matches beacon format
-//    Remake this function
-    private boolean checkiBeacon(byte[] scanRecord){
-        try {
-            for (int i = 0; i < 9; i++) {
-                //Company ID
-                if(i==5||i==6){
-                    continue;
-                }
-                if (!String.format("%02x",scanRecord[i]).equals(String.format("%02x",ibeacon_prefix[i]))) {
-                    return false;
-                }
-            }
-        }catch(ArrayIndexOutOfBoundsException e){
-            return false;
-        }
-
-        return true;
-    }
-
-    @TargetApi(26)
-    // Checks the Beacon data for correctness
-    private boolean checkBLEBeacon(ScanRecord scanRecord){
-        byte[] manufacturerData = scanRecord.getManufacturerSpecificData(CompanyID);
-        if (manufacturerData != null){
-            if(manufacturerData.length == 24){
-                // Specific Beacon contains 24 data
-                return true;
-            }
-        }
-        return false;
-    }
-
-
     // Callback for the scanning
     // API Above 26
     private ScanCallback mScanCallback = new ScanCallback() {
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
-            BluetoothDevice btDevice = result.getDevice();
-            if (btDevice.getName() != null) {
-//                IMPORTANT Cannot check if connectable since it starts on Android 8
-//                Check if iBEACON
-                if (checkiBeacon(result.getScanRecord().getBytes())) {
-                    addBeacon(btDevice, result.getScanRecord().getBytes(), result.getRssi(), iBEACON);
-                } else {
-//                    Check if BLE Beacon
-                    if (checkBLEBeacon(result.getScanRecord())) {
-                        Log.d(TAG, "Beacon");
-                        addBeacon(btDevice, result.getScanRecord().getManufacturerSpecificData(CompanyID), result.getRssi(), BLE_BEACON);
-                    } else {
-                        addDevice(btDevice, result.getRssi());
-                    }
-                }
+            // Only queue the result, it is processed by the ingestion worker
+            scanIngestion.submit(result);
+            if (mService != null) {
+                mService.reportScanResults(1);
             }
         }
 
         @Override
         public void onBatchScanResults(List<ScanResult> results) {
-            for (ScanResult sr : results) {
-                Log.i("ScanResult - Results", sr.toString());
+            // Results buffered by the controller go through the same path as single results,
+            // the list schedulers merge the resulting row changes into one update
+            for (int i = 0; i < results.size(); i++) {
+                scanIngestion.submit(results.get(i));
+            }
+            if (mService != null) {
+                mService.reportScanResults(results.size());
             }
         }
 
@@ -434,6 +525,49 @@ public class DeviceSelection extends AppCompatActivity{
 
 
 
+    // Discoveries reach the scan scheduler when they are published to the lists
+    private void reportDiscoveries(int discovered) {
+        if (mService != null) {
+            mService.reportDiscoveries(discovered);
+        }
+    }
+
+    /**
+     * Classifies a scan result and adds it to the beacon or connectable list. Runs on the ingestion worker,
+     * parsing and decoding happen before the lists are locked.
+     * @param result Result reported by the scanner
+     */
+    private void processScanResult(ScanResult result) {
+        BluetoothDevice btDevice = result.getDevice();
+        ScanRecord scanRecord = result.getScanRecord();
+        if (scanRecord == null) {
+            return;
+        }
+        byte[] record = scanRecord.getBytes();
+        AdvertisementParser adv = advertisementParser;
+        int type = adv.classify(record, CompanyID);
+        boolean wanted = type == AdvertisementParser.ADV_IBEACON || type == AdvertisementParser.ADV_COMPANY_BEACON
+                || adv.hasServiceUuid(record, DEVICE_SERVICE_UUID);
+        scanFilterStats.onResult(scanFiltered, wanted);
+        String name = btDevice.getName();
+        if (name != null) {
+//            IMPORTANT Cannot check if connectable since it starts on Android 8
+            switch (type) {
+                case AdvertisementParser.ADV_IBEACON:
+                    // Decode straight from the scan record, the payload starts at the 0x02 0x15 header
+                    addBeacon(btDevice, name, BeaconTelemetry.decodeIBeacon(record, adv.payloadOffset), result.getRssi(), iBEACON);
+                    break;
+                case AdvertisementParser.ADV_COMPANY_BEACON:
+                    addBeacon(btDevice, name, BeaconTelemetry.decodeCompanyBeacon(record, adv.payloadOffset), result.getRssi(), BLE_BEACON);
+                    break;
+                default:
+                    // Connectability is only reported from Android 8, list every other named device
+                    addDevice(btDevice, result.getRssi());
+                    break;
+            }
+        }
+    }
+
     public void connectDevice(String address){
         mService.connectToDevice(address);
     }
@@ -448,28 +582,53 @@ public class DeviceSelection extends AppCompatActivity{
         // Check if device exists in list already
 //        TODO Check here which of the fragments to send the device list
 //        TODO
-        if (!connectabledeviceList.contains(device)) {
-            connectabledeviceList.add(device);
+        synchronized (ingestLock) {
+            int position = scannedDevices.indexOf(device);
+            scannedRssi.put(device.getAddress(), rssi);       // Single RSSI reading
+            if (position < 0) {
+                scannedDevices.add(device);
+                connectableUpdates.rowInserted(scannedDevices.size() - 1);
+            } else {
+                connectableUpdates.rowChanged(position);
+            }
         }
-        RSSI.put(device.getAddress(), rssi);       // Single RSSI reading
-        connectable.updateConnectable(connectabledeviceList, RSSI);
     }
 
 
-    private void addBeacon(BluetoothDevice device,byte[] beacondata,int rssi, int type){
-        DateFormat dateFormat = new SimpleDateFormat("HH:mm:ss");
-        for (Beacon b : beaconsList){
-            if(b.getName().equals(device.getName()) && b.getMacaddress().equals(device.getAddress())){
-//                Exists
-                b.setRssi(rssi);
-                b.setBeacondata(beacondata);
-                b.setLastbeacontime(dateFormat.format(new Date()));
-                beacon.updateBeacons(beaconsList);
-                return;
+    /**
+     * @return Readings history of the company beacons, indexed by position in the beacon list. Written by
+     * the ingestion worker, read it while holding getIngestLock().
+     */
+    SensorHistory getSensorHistory() {
+        return sensorHistory;
+    }
+
+    /// Lock guarding the scanned device lists and the sensor history
+    Object getIngestLock() {
+        return ingestLock;
+    }
+
+    private void addBeacon(BluetoothDevice device, String name, BeaconTelemetry telemetry, int rssi, int type){
+        long mac = BeaconRegistry.parseMac(device.getAddress());
+        if (mac < 0) {
+            Log.w(TAG, "Invalid beacon address " + device.getAddress());
+            return;
+        }
+        long now = System.currentTimeMillis();
+        // The history needs a clock that is not changed with the wall clock
+        long elapsed = SystemClock.elapsedRealtime();
+        synchronized (ingestLock) {
+            int size = beaconRegistry.size();
+            int position = beaconRegistry.update(mac, name, device.getAddress(), rssi, type, telemetry, now);
+            if (type == BLE_BEACON) {
+                sensorHistory.append(position, elapsed, telemetry);
+            }
+            if (position == size) {
+                beaconUpdates.rowInserted(position);
+            } else {
+                beaconUpdates.rowChanged(position);
             }
         }
-        beaconsList.add(new Beacon(device.getName(), device.getAddress(),dateFormat.format(new Date()), rssi, type, beacondata));
-        beacon.updateBeacons(beaconsList);
     }
 
 
@@ -559,6 +718,7 @@ public class DeviceSelection extends AppCompatActivity{
                     Log.d(TAG, "Creating new Connectable");
                     connectable = new ConnectableFragment();
                     bundle.putParcelableArrayList("connectabledevices", connectabledeviceList);
+                    bundle.putSerializable("connectablerssi", RSSI);
                     connectable.setArguments(bundle);
                     return connectable;
                 case 1: // Fragment # 0 - This will show FirstFragment different title
@@ -0,0 +1,72 @@
+package com.bluetooth.ble_terminal;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Writes received notification data straight to a document. Data goes through a fixed-size buffer, so
+ * memory use does not grow with the amount received.
+ *
+ * Write and close on one background thread, data written after the close is dropped. getReceived() and
+ * describe() may be called from one other thread, e.g. the UI.
+ */
+final class FileReceiver {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final OutputStream output;
+    private final String name;
+    private volatile long received;
+    private boolean closed;
+    private final RateEstimator rate = new RateEstimator();
+
+    private FileReceiver(OutputStream output, String name) {
+        this.output = new BufferedOutputStream(output, BUFFER_SIZE);
+        this.name = name;
+    }
+
+    /**
+     * @param uri  Document created for the data, e.g. with ACTION_CREATE_DOCUMENT
+     * @param name Display name of the document
+     */
+    static FileReceiver open(ContentResolver resolver, Uri uri, String name) throws IOException {
+        OutputStream output = resolver.openOutputStream(uri);
+        if (output == null) {
+            throw new FileNotFoundException(uri.toString());
+        }
+        return new FileReceiver(output, name);
+    }
+
+    void write(byte[] data) throws IOException {
+        if (closed) {
+            return;
+        }
+        output.write(data);
+        received += data.length;
+    }
+
+    /// Flush the buffer and close the document
+    void close() throws IOException {
+        closed = true;
+        output.close();
+    }
+
+    long getReceived() {
+        return received;
+    }
+
+    /**
+     * Progress readout, call periodically for a smoothed rate
+     * @return Text such as "RX log.bin: 48.2 kB, 12.0 kB/s"
+     */
+    String describe() {
+        return String.format(Locale.getDefault(), "RX %s: %.1f kB, %.1f kB/s",
+                name, received / 1000.0, rate.sample(received) / 1000);
+    }
+}
@@ -0,0 +1,199 @@
+package com.bluetooth.ble_terminal;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * Sends a document through the TX executor as one streamed message. The file is read in small blocks on
+ * the TX thread and never held in memory as a whole.
+ *
+ * A transfer can be paused and resumed: pausing ends the message after the block being sent, resuming
+ * reopens the document and continues from the offset of the data the stack accepted. A failed transfer
+ * stops at the first byte not accepted and can be resumed the same way.
+ */
+final class FileTransfer implements TxExecutor.Source, TxExecutor.Callback {
+
+    private static final String TAG = "File Transfer";
+
+    static final int SENDING  = 0;
+    static final int PAUSED   = 1;
+    static final int COMPLETE = 2;
+    static final int FAILED   = 3;
+
+    /**
+     * Invoked on the TX thread when the transfer completed, paused or failed
+     */
+    interface Listener {
+        /**
+         * @param error Cause of a failure, null if the transfer completed or paused
+         */
+        void onTransferStopped(FileTransfer transfer, IOException error);
+    }
+
+    private final ContentResolver resolver;
+    private final Uri uri;
+    private final String name;
+    private final long size;
+    private final GattOperationQueue queue;
+    private final Listener listener;
+
+    private volatile int state = PAUSED;
+    private volatile boolean pauseRequested;
+    // Offset the current run started from, and bytes handed to the TX path so far
+    private volatile long startOffset;
+    private volatile long position;
+    private InputStream input;      // TX thread only
+
+    // Progress readout, UI thread only
+    private final RateEstimator rate = new RateEstimator();
+    private long retryBaseline;
+
+    /**
+     * @param name  Display name of the document
+     * @param size  Document size in bytes, -1 if unknown
+     * @param queue Operation queue of the connection, source of the retry count
+     */
+    FileTransfer(ContentResolver resolver, Uri uri, String name, long size, GattOperationQueue queue, Listener listener) {
+        this.resolver = resolver;
+        this.uri = uri;
+        this.name = name;
+        this.size = size;
+        this.queue = queue;
+        this.listener = listener;
+    }
+
+    /**
+     * Start, or resume from the current offset
+     * @return False if the executor was shut down
+     */
+    boolean start(TxExecutor executor) {
+        if (state == SENDING || state == COMPLETE) {
+            return false;
+        }
+        pauseRequested = false;
+        startOffset = position;
+        state = SENDING;
+        rate.reset(position);
+        retryBaseline = retries();
+        if (!executor.send(this, this)) {
+            state = PAUSED;
+            return false;
+        }
+        return true;
+    }
+
+    /// Stop after the block being sent, resumed by start()
+    void pause() {
+        pauseRequested = true;
+    }
+
+    int getState() {
+        return state;
+    }
+
+    /// Bytes sent, once paused or failed the offset the transfer resumes from
+    long getPosition() {
+        return position;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Progress readout, call periodically from the UI thread for a smoothed rate
+     * @return Text such as "config.bin: 120.5/1024.0 kB, 85.2 kB/s, ETA 0:10, retries 4"
+     */
+    String describe() {
+        long sent = position;
+        switch (state) {
+            case COMPLETE:
+                return String.format(Locale.getDefault(), "%s: %.1f kB sent", name, sent / 1000.0);
+            case PAUSED:
+            case FAILED:
+                return String.format(Locale.getDefault(), "%s: %s at %.1f kB",
+                        name, state == PAUSED ? "paused" : "failed", sent / 1000.0);
+            default:
+                rate.sample(sent);
+                return String.format(Locale.getDefault(), "%s: %.1f/%s kB, %.1f kB/s, ETA %s, retries %d",
+                        name, sent / 1000.0, size >= 0 ? String.format(Locale.getDefault(), "%.1f", size / 1000.0) : "?",
+                        rate.getRate() / 1000, size >= 0 ? rate.eta(size - sent) : "-", retries() - retryBaseline);
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer) throws IOException {
+        if (pauseRequested) {
+            return -1;
+        }
+        if (input == null) {
+            input = open(position);
+        }
+        int length = input.read(buffer);
+        if (length > 0) {
+            position += length;
+        }
+        return length;
+    }
+
+    @Override
+    public void onSent(long startNanos) {
+        close();
+        state = pauseRequested ? PAUSED : COMPLETE;
+        Log.i(TAG, name + (state == COMPLETE ? " sent, " : " paused, ") + position + " bytes");
+        listener.onTransferStopped(this, null);
+    }
+
+    @Override
+    public void onFailed(long sentBytes, IOException e) {
+        close();
+        // Resume from the first byte the stack did not accept
+        position = startOffset + sentBytes;
+        state = FAILED;
+        Log.w(TAG, name + " failed at " + position + ": " + e.getMessage());
+        listener.onTransferStopped(this, e);
+    }
+
+    private InputStream open(long offset) throws IOException {
+        InputStream stream = resolver.openInputStream(uri);
+        if (stream == null) {
+            throw new FileNotFoundException(uri.toString());
+        }
+        long remaining = offset;
+        while (remaining > 0) {
+            long skipped = stream.skip(remaining);
+            if (skipped <= 0) {
+                // skip() may stop early without reaching the end, read to tell the two apart
+                if (stream.read() < 0) {
+                    stream.close();
+                    throw new EOFException("Document shorter than the resume offset");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+        return stream;
+    }
+
+    private void close() {
+        if (input != null) {
+            try {
+                input.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Close failed", e);
+            }
+            input = null;
+        }
+    }
+
+    private long retries() {
+        return queue.getRetryCount() + queue.getBusyCount();
+    }
+}
@@ -0,0 +1,202 @@
+package com.bluetooth.ble_terminal;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Framing of terminal payloads, restoring message boundaries that notifications and write chunks do not
+ * preserve. A codec encodes one payload per frame into a caller-supplied buffer and decodes a byte stream
+ * fed in arbitrary pieces, reporting every complete frame to a listener.
+ *
+ * Each frame can carry a CRC-16 (CCITT-FALSE) or CRC-32 (IEEE) trailer over the payload, big endian. A
+ * frame with a wrong CRC, an invalid encoding or exceeding MAX_FRAME bytes is counted as corrupt and not
+ * reported. Decoding does not allocate: frames are assembled in a reused buffer, or reported in place in
+ * the input when the encoding allows it. The reported bytes are only valid during the callback.
+ *
+ * Not thread safe, use one instance per direction and thread.
+ */
+abstract class FrameCodec {
+
+    static final int COBS          = 0;
+    static final int SLIP          = 1;
+    static final int LENGTH_PREFIX = 2;
+
+    /// Trailer lengths
+    static final int CRC_NONE = 0;
+    static final int CRC_16   = 2;
+    static final int CRC_32   = 4;
+
+    /// Largest decoded frame, including the CRC trailer
+    static final int MAX_FRAME = 64 * 1024;
+
+    /**
+     * Receiver of the decoded frames
+     */
+    interface Listener {
+        /// Payload of a valid frame, the CRC trailer removed
+        void onFrame(byte[] buffer, int offset, int length);
+
+        void onCorruptFrame();
+    }
+
+    private static final short[] CRC16_TABLE = new short[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            CRC16_TABLE[i] = (short) crc;
+        }
+    }
+
+    private final int crcLength;
+    private final CRC32 crc32 = new CRC32();
+    private final byte[] trailer = new byte[4];
+
+    // Frame being decoded, grown up to MAX_FRAME
+    protected byte[] frame = new byte[256];
+    protected int frameLength;
+    // The frame exceeded MAX_FRAME or was malformed, bytes are dropped until the next frame starts
+    protected boolean discarding;
+
+    private long frameCount;
+    private long corruptCount;
+
+    /**
+     * @param crcLength CRC_NONE, CRC_16 or CRC_32
+     */
+    protected FrameCodec(int crcLength) {
+        this.crcLength = crcLength;
+    }
+
+    /**
+     * @param type      COBS, SLIP or LENGTH_PREFIX
+     * @param crcLength CRC_NONE, CRC_16 or CRC_32
+     */
+    static FrameCodec create(int type, int crcLength) {
+        switch (type) {
+            case COBS:
+                return new CobsCodec(crcLength);
+            case SLIP:
+                return new SlipCodec(crcLength);
+            default:
+                return new LengthPrefixCodec(crcLength);
+        }
+    }
+
+    /// Largest frame encode() produces for a payload of length bytes
+    final int maxEncodedLength(int length) {
+        return maxFrameLength(length + crcLength);
+    }
+
+    /**
+     * Encode a payload as one frame
+     * @param dst Output, room for maxEncodedLength(length) bytes from dstOffset
+     * @return Number of bytes written
+     */
+    final int encode(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+        int pos = beginFrame(dst, dstOffset, length + crcLength);
+        pos = put(src, srcOffset, length, dst, pos);
+        if (crcLength > 0) {
+            writeCrc(src, srcOffset, length, trailer);
+            pos = put(trailer, 0, crcLength, dst, pos);
+        }
+        return endFrame(dst, pos) - dstOffset;
+    }
+
+    /**
+     * Feed received bytes, complete frames are reported to the listener before returning
+     */
+    abstract void decode(byte[] src, int offset, int length, Listener listener);
+
+    /// Drop a partially received frame, e.g. after reconnecting
+    void reset() {
+        frameLength = 0;
+        discarding = false;
+    }
+
+    /// Valid frames decoded
+    long getFrameCount() {
+        return frameCount;
+    }
+
+    /// Frames dropped for a CRC mismatch, an invalid encoding or their size
+    long getCorruptCount() {
+        return corruptCount;
+    }
+
+    // Encoding steps of the subclasses, frameLength includes the CRC trailer
+
+    protected abstract int maxFrameLength(int frameLength);
+
+    protected abstract int beginFrame(byte[] dst, int pos, int frameLength);
+
+    protected abstract int put(byte[] src, int offset, int length, byte[] dst, int pos);
+
+    protected abstract int endFrame(byte[] dst, int pos);
+
+    /**
+     * Append a decoded byte to the frame buffer, discards the frame once it exceeds MAX_FRAME
+     */
+    protected final void append(byte b) {
+        if (discarding) {
+            return;
+        }
+        if (frameLength == frame.length) {
+            if (frameLength == MAX_FRAME) {
+                discarding = true;
+                return;
+            }
+            frame = Arrays.copyOf(frame, Math.min(MAX_FRAME, frameLength * 2));
+        }
+        frame[frameLength++] = b;
+    }
+
+    /**
+     * Check the CRC trailer of a complete frame and report its payload
+     */
+    protected final void deliver(byte[] buffer, int offset, int length, Listener listener) {
+        if (length < crcLength) {
+            corrupt(listener);
+            return;
+        }
+        int payload = length - crcLength;
+        if (crcLength > 0) {
+            writeCrc(buffer, offset, payload, trailer);
+            for (int i = 0; i < crcLength; i++) {
+                if (trailer[i] != buffer[offset + payload + i]) {
+                    corrupt(listener);
+                    return;
+                }
+            }
+        }
+        frameCount++;
+        listener.onFrame(buffer, offset, payload);
+    }
+
+    protected final void corrupt(Listener listener) {
+        corruptCount++;
+        listener.onCorruptFrame();
+    }
+
+    private void writeCrc(byte[] data, int offset, int length, byte[] out) {
+        if (crcLength == CRC_16) {
+            int crc = 0xFFFF;
+            for (int i = offset, end = offset + length; i < end; i++) {
+                crc = (crc << 8) ^ (CRC16_TABLE[((crc >> 8) ^ data[i]) & 0xFF] & 0xFFFF);
+            }
+            out[0] = (byte) (crc >> 8);
+            out[1] = (byte) crc;
+        } else {
+            crc32.reset();
+            crc32.update(data, offset, length);
+            long crc = crc32.getValue();
+            out[0] = (byte) (crc >> 24);
+            out[1] = (byte) (crc >> 16);
+            out[2] = (byte) (crc >> 8);
+            out[3] = (byte) crc;
+        }
+    }
+}
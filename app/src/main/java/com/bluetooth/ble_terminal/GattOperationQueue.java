@@ -0,0 +1,411 @@
+package com.bluetooth.ble_terminal;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * Serializes GATT operations. Android only accepts one outstanding operation per connection, a second
+ * request is rejected until the completion callback of the first one has been delivered. Operations are
+ * queued and the next one is started when the GATT callback reports completion of the current one,
+ * so writes go out as fast as the link accepts them.
+ *
+ * Operations that the stack refuses to start are retried with a growing delay. Operations completing
+ * with the transient GATT_ERROR (133) are retried up to the same number of attempts, other error statuses
+ * such as insufficient authentication or write not permitted are permanent and fail at once. An operation
+ * without a completion callback within the timeout is tried once more, then fails and the queue moves on.
+ *
+ * Writes without response are never given up while the stack is busy: they are retried with an
+ * adaptive delay that doubles while the stack keeps refusing and halves after every accepted write,
+ * so a stream of chunks is neither dropped nor reordered.
+ *
+ * All queue state is owned by the thread of the handler. Requests and completions can be reported
+ * from any thread, callbacks are invoked on the handler thread. Operations are recycled once their
+ * callback returned and are posted to the handler themselves, so queuing a write does not allocate.
+ *
+ * Characteristic writes are timed and counted in TxStats.
+ */
+final class GattOperationQueue {
+
+    private static final String TAG = "GATT Queue";
+
+    /**
+     * Receiver of the result of an operation
+     */
+    interface Callback {
+        /**
+         * @param status GATT status of the completion callback, or STATUS_TIMEOUT, STATUS_NOT_STARTED or
+         *               STATUS_DISCONNECTED
+         */
+        void onComplete(int status);
+    }
+
+    /// No completion callback within the timeout
+    static final int STATUS_TIMEOUT      = -1;
+    /// The stack refused to start the operation on every attempt
+    static final int STATUS_NOT_STARTED  = -2;
+    /// The connection was closed before the operation completed
+    static final int STATUS_DISCONNECTED = -3;
+
+    // Operation kinds
+    private static final int WRITE            = 0;
+    private static final int READ             = 1;
+    private static final int WRITE_DESCRIPTOR = 2;
+    private static final int REQUEST_MTU      = 3;
+
+    private static final long TIMEOUT     = 2000;
+    private static final int MAX_ATTEMPTS = 4;     // First attempt and three retries
+    private static final int MAX_TIMEOUTS = 2;     // A timed out operation is tried once more
+    private static final long RETRY_DELAY = 5;     // Doubled after every attempt: 10, 20 and 40 ms
+    private static final long MIN_BUSY_DELAY = 1;
+    private static final long MAX_BUSY_DELAY = 64;
+    // Generic error of the Android stack, reported for transient failures such as a link layer collision
+    private static final int GATT_ERROR = 133;
+
+    private final Handler handler;
+    private final TxStats stats;
+    private final ArrayDeque<Operation> pending = new ArrayDeque<>();
+    // Recycled operations, shared with the threads queuing requests
+    private final ArrayDeque<Operation> free = new ArrayDeque<>();
+    // Written on the handler thread, read by the GATT callback to route the completion
+    private volatile Operation current;
+    private BluetoothGatt gatt;
+    // Delay before retrying a write without response the stack refused
+    private long busyDelay = MIN_BUSY_DELAY;
+
+    // Statistics
+    private long completedCount;
+    private long retryCount;
+    private long timeoutCount;
+    private long busyCount;
+
+    private final Runnable timeout = new Runnable() {
+        @Override
+        public void run() {
+            if (current != null) {
+                timeoutCount++;
+                Log.w(TAG, "Operation " + current.kind + " timed out");
+                if (++current.timeouts < MAX_TIMEOUTS) {
+                    // A late completion of the first attempt is taken for the retry, the operation is the same
+                    retryCount++;
+                    if (current.kind == WRITE) {
+                        stats.onRetry();
+                    }
+                    attempt();
+                } else {
+                    finish(STATUS_TIMEOUT);
+                }
+            }
+        }
+    };
+
+    private final Runnable retry = new Runnable() {
+        @Override
+        public void run() {
+            if (current != null) {
+                attempt();
+            }
+        }
+    };
+
+    /**
+     * @param handler Handler of the thread running the queue
+     * @param stats   Receiver of the write timings
+     */
+    GattOperationQueue(Handler handler, TxStats stats) {
+        this.handler = handler;
+        this.stats = stats;
+    }
+
+    /**
+     * Set the connection the operations are sent to. Pending operations fail with STATUS_DISCONNECTED
+     * when the connection is removed.
+     * @param gatt Connected GATT client, or null after a disconnection
+     */
+    void setGatt(final BluetoothGatt gatt) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                GattOperationQueue.this.gatt = gatt;
+                if (gatt == null) {
+                    failAll();
+                }
+            }
+        });
+    }
+
+    /**
+     * Queue a characteristic write using the write type of the characteristic
+     * @param characteristic Characteristic to write
+     * @param value          Value to write, must not be modified until the callback is invoked
+     * @param callback       Receiver of the result, may be null
+     */
+    void write(BluetoothGattCharacteristic characteristic, byte[] value, Callback callback) {
+        obtain().post(WRITE, characteristic, null, value, 0, callback);
+    }
+
+    /**
+     * Queue a characteristic read, the value is available from the characteristic in the callback
+     */
+    void read(BluetoothGattCharacteristic characteristic, Callback callback) {
+        obtain().post(READ, characteristic, null, null, 0, callback);
+    }
+
+    /**
+     * Queue a descriptor write, e.g. to a Client Characteristic Configuration Descriptor
+     */
+    void writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value, Callback callback) {
+        obtain().post(WRITE_DESCRIPTOR, null, descriptor, value, 0, callback);
+    }
+
+    /**
+     * Queue an ATT MTU exchange
+     */
+    void requestMtu(int mtu, Callback callback) {
+        obtain().post(REQUEST_MTU, null, null, null, mtu, callback);
+    }
+
+    // Completions, called from the GATT callback
+
+    void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
+        complete(WRITE, characteristic, status);
+    }
+
+    void onCharacteristicRead(BluetoothGattCharacteristic characteristic, int status) {
+        complete(READ, characteristic, status);
+    }
+
+    void onDescriptorWrite(BluetoothGattDescriptor descriptor, int status) {
+        complete(WRITE_DESCRIPTOR, descriptor, status);
+    }
+
+    void onMtuChanged(int status) {
+        complete(REQUEST_MTU, null, status);
+    }
+
+    /// Operations completed, including failed ones
+    long getCompletedCount() {
+        return completedCount;
+    }
+
+    /// Attempts repeated after a refused start, a transient error status or a timeout
+    long getRetryCount() {
+        return retryCount;
+    }
+
+    /// Operations failed without a completion callback
+    long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    /// Writes without response refused by the stack because it was busy
+    long getBusyCount() {
+        return busyCount;
+    }
+
+    private Operation obtain() {
+        synchronized (free) {
+            Operation op = free.poll();
+            return op != null ? op : new Operation();
+        }
+    }
+
+    private void recycle(Operation op) {
+        op.clear();
+        synchronized (free) {
+            free.add(op);
+        }
+    }
+
+    private void complete(int kind, Object target, int status) {
+        Operation op = current;
+        if (op == null || op.kind != kind || (target != null && target != op.characteristic && target != op.descriptor)) {
+            Log.w(TAG, "Unexpected completion of operation " + kind);
+            return;
+        }
+        op.completedStatus = status;
+        op.completedGeneration = op.generation;
+        handler.post(op.completion);
+    }
+
+    private void onCompleted(Operation op) {
+        if (op != current || op.completedGeneration != op.generation) {
+            // Timed out or failed before the completion arrived
+            Log.w(TAG, "Late completion of operation " + op.kind);
+            return;
+        }
+        handler.removeCallbacks(timeout);
+        if (op.completedStatus == GATT_ERROR && op.attempts < MAX_ATTEMPTS) {
+            retryCount++;
+            if (op.kind == WRITE) {
+                stats.onRetry();
+            }
+            attempt();
+        } else {
+            finish(op.completedStatus);
+        }
+    }
+
+    private void next() {
+        current = pending.poll();
+        if (current != null) {
+            attempt();
+        }
+    }
+
+    private void attempt() {
+        Operation op = current;
+        if (gatt == null) {
+            failAll();
+            return;
+        }
+        op.attempts++;
+        if (start(op)) {
+            if (op.kind == WRITE) {
+                op.acceptedNanos = System.nanoTime();
+                stats.onAccepted(op.queuedNanos, op.acceptedNanos);
+            }
+            if (op.unacknowledged) {
+                busyDelay = Math.max(MIN_BUSY_DELAY, busyDelay >> 1);
+            }
+            handler.postDelayed(timeout, TIMEOUT);
+        } else if (op.unacknowledged) {
+            // The stack buffers are full, back off harder the longer it stays busy
+            busyCount++;
+            stats.onBusy();
+            handler.postDelayed(retry, busyDelay);
+            busyDelay = Math.min(MAX_BUSY_DELAY, busyDelay << 1);
+        } else if (op.attempts < MAX_ATTEMPTS) {
+            // The stack is still busy with a previous request
+            retryCount++;
+            if (op.kind == WRITE) {
+                stats.onRetry();
+            }
+            handler.postDelayed(retry, RETRY_DELAY << op.attempts);
+        } else {
+            finish(STATUS_NOT_STARTED);
+        }
+    }
+
+    private boolean start(Operation op) {
+        switch (op.kind) {
+            case WRITE:
+                op.characteristic.setValue(op.value);
+                return gatt.writeCharacteristic(op.characteristic);
+            case READ:
+                return gatt.readCharacteristic(op.characteristic);
+            case WRITE_DESCRIPTOR:
+                op.descriptor.setValue(op.value);
+                return gatt.writeDescriptor(op.descriptor);
+            case REQUEST_MTU:
+                return gatt.requestMtu(op.mtu);
+            default:
+                return false;
+        }
+    }
+
+    private void finish(int status) {
+        Operation op = current;
+        current = null;
+        handler.removeCallbacks(timeout);
+        handler.removeCallbacks(retry);
+        notify(op, status);
+        next();
+    }
+
+    private void failAll() {
+        handler.removeCallbacks(timeout);
+        handler.removeCallbacks(retry);
+        Operation op = current;
+        current = null;
+        if (op != null) {
+            notify(op, STATUS_DISCONNECTED);
+        }
+        while ((op = pending.poll()) != null) {
+            notify(op, STATUS_DISCONNECTED);
+        }
+    }
+
+    private void notify(Operation op, int status) {
+        completedCount++;
+        if (op.kind == WRITE) {
+            stats.onCompleted(op.value.length, op.queuedNanos, op.acceptedNanos, System.nanoTime(),
+                    status == BluetoothGatt.GATT_SUCCESS);
+        }
+        Callback callback = op.callback;
+        recycle(op);
+        if (callback != null) {
+            callback.onComplete(status);
+        }
+    }
+
+    /**
+     * Queued GATT request, posted to the handler to enqueue itself
+     */
+    private final class Operation implements Runnable {
+        int kind;
+        BluetoothGattCharacteristic characteristic;
+        BluetoothGattDescriptor descriptor;
+        byte[] value;
+        int mtu;
+        Callback callback;
+        // Write without response, only acknowledged by the local stack
+        boolean unacknowledged;
+        int attempts;
+        int timeouts;
+        // Write timing, System.nanoTime() when queued and when last accepted by the stack
+        long queuedNanos;
+        long acceptedNanos;
+        // Incremented on every reuse, a completion is only applied to the use it was reported for
+        volatile int generation;
+        // Status of the completion callback, handed over to the handler thread by completion
+        volatile int completedStatus;
+        volatile int completedGeneration;
+
+        final Runnable completion = new Runnable() {
+            @Override
+            public void run() {
+                onCompleted(Operation.this);
+            }
+        };
+
+        void post(int kind, BluetoothGattCharacteristic characteristic, BluetoothGattDescriptor descriptor,
+                  byte[] value, int mtu, Callback callback) {
+            this.kind = kind;
+            this.characteristic = characteristic;
+            this.descriptor = descriptor;
+            this.value = value;
+            this.mtu = mtu;
+            this.callback = callback;
+            this.unacknowledged = kind == WRITE
+                    && characteristic.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+            generation++;
+            if (kind == WRITE) {
+                queuedNanos = System.nanoTime();
+            }
+            handler.post(this);
+        }
+
+        @Override
+        public void run() {
+            pending.add(this);
+            if (current == null) {
+                next();
+            }
+        }
+
+        void clear() {
+            characteristic = null;
+            descriptor = null;
+            value = null;
+            callback = null;
+            attempts = 0;
+            timeouts = 0;
+            acceptedNanos = 0;
+        }
+    }
+}
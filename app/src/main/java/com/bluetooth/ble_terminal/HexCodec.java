@@ -0,0 +1,138 @@
+package com.bluetooth.ble_terminal;
+
+/**
+ * Table-driven hexadecimal codec working on caller-supplied buffers.
+ *
+ * Encoding turns every byte into two upper case digits followed by a space, e.g. {0x1F, 0xA0} becomes
+ * "1F A0 ". It is stateless, data can be encoded in any number of chunks.
+ *
+ * Decoding ignores separators (any byte below '0', such as spaces, commas or line breaks, and any byte
+ * from 0x80, so non-ASCII text such as a no-break space is skipped) and rejects every other non-hex
+ * character. An instance keeps the pending high nibble between calls, so a
+ * digit pair split across two chunks decodes to one byte. A lone digit left at the end is emitted as a
+ * byte by finish(), "ABC" decodes to {0xAB, 0x0C}. Error positions count input characters since the
+ * last reset, across chunks.
+ */
+final class HexCodec {
+
+    private static final byte SEPARATOR = -2;
+    private static final byte INVALID   = -1;
+
+    // Digit value of every input byte, SEPARATOR or INVALID
+    private static final byte[] DECODE = new byte[256];
+    // Two ASCII digits of every byte value, high digit first
+    private static final byte[] ENCODE = new byte[512];
+
+    static {
+        byte[] digits = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+        for (int i = 0; i < 256; i++) {
+            // Bytes from 0x80 are separators as they were for the signed comparison of the former parser
+            DECODE[i] = i < '0' || i >= 0x80 ? SEPARATOR : INVALID;
+            ENCODE[2 * i] = digits[i >> 4];
+            ENCODE[2 * i + 1] = digits[i & 0xF];
+        }
+        for (int i = 0; i < 10; i++) {
+            DECODE['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            DECODE['A' + i] = (byte) (10 + i);
+            DECODE['a' + i] = (byte) (10 + i);
+        }
+    }
+
+    // Decoder state
+    private int pending = -1;      // High nibble waiting for its low nibble, -1 if none
+    private long position;         // Input characters consumed since the reset
+    private long errorPosition = -1;
+    private int errorChar;
+
+    /// Output size of encode() for length bytes
+    static int encodedLength(int length) {
+        return 3 * length;
+    }
+
+    /**
+     * Encode bytes as hex digit pairs each followed by a space
+     * @return Number of characters written, encodedLength(length)
+     */
+    static int encode(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+        int d = dstOffset;
+        for (int s = srcOffset, end = srcOffset + length; s < end; s++) {
+            int i = (src[s] & 0xFF) << 1;
+            dst[d] = ENCODE[i];
+            dst[d + 1] = ENCODE[i + 1];
+            dst[d + 2] = ' ';
+            d += 3;
+        }
+        return d - dstOffset;
+    }
+
+    /// Largest output of decode() followed by finish() for length input characters
+    static int maxDecodedLength(int length) {
+        return (length + 2) / 2;
+    }
+
+    /**
+     * Decode a chunk of hex text. Stops at the first invalid character, its position is then available
+     * from getErrorPosition() and decoding stays failed until reset().
+     * @param dst Output, room for maxDecodedLength(length) bytes
+     * @return Number of bytes written, or -1 if an invalid character was found
+     */
+    int decode(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+        if (errorPosition >= 0) {
+            return -1;
+        }
+        int d = dstOffset;
+        int high = pending;
+        for (int s = srcOffset, end = srcOffset + length; s < end; s++) {
+            int value = DECODE[src[s] & 0xFF];
+            if (value >= 0) {
+                if (high < 0) {
+                    high = value;
+                } else {
+                    dst[d++] = (byte) (high << 4 | value);
+                    high = -1;
+                }
+            } else if (value == INVALID) {
+                pending = high;
+                errorPosition = position + s - srcOffset;
+                errorChar = src[s] & 0xFF;
+                position += s - srcOffset;
+                return -1;
+            }
+        }
+        pending = high;
+        position += length;
+        return d - dstOffset;
+    }
+
+    /**
+     * End of input, emits a lone pending digit as the low nibble of a last byte
+     * @return Number of bytes written, 0 or 1
+     */
+    int finish(byte[] dst, int dstOffset) {
+        if (pending < 0 || errorPosition >= 0) {
+            return 0;
+        }
+        dst[dstOffset] = (byte) pending;
+        pending = -1;
+        return 1;
+    }
+
+    /// Clear the nibble state and the error to decode a new stream
+    void reset() {
+        pending = -1;
+        position = 0;
+        errorPosition = -1;
+    }
+
+    /// Position of the invalid character since the reset, -1 if none
+    long getErrorPosition() {
+        return errorPosition;
+    }
+
+    /// The invalid character, valid when getErrorPosition() >= 0
+    int getErrorChar() {
+        return errorChar;
+    }
+}
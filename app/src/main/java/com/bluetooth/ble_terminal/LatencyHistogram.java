@@ -0,0 +1,91 @@
+package com.bluetooth.ble_terminal;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Fixed-memory latency histogram with power of two buckets. Bucket i counts latencies from 2^i to
+ * 2^(i+1) microseconds, bucket 0 everything below 2 us, the last bucket everything above. Recording is
+ * a shift and an array increment, memory does not depend on the number of samples.
+ *
+ * Percentiles are reported as the upper bound of the bucket they fall in, at most twice the exact value.
+ *
+ * Not thread safe, the owner serializes access: TxStats under its lock, TerminalRenderer and the Terminal
+ * RX latency on the main thread.
+ */
+final class LatencyHistogram {
+
+    static final int BUCKETS = 32;      // Last bucket starts at 2^31 us, about 36 minutes
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sumMicros;
+    private long maxMicros;
+
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = micros < 2 ? 0 : Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+        counts[bucket]++;
+        count++;
+        sumMicros += micros;
+        if (micros > maxMicros) {
+            maxMicros = micros;
+        }
+    }
+
+    void reset() {
+        Arrays.fill(counts, 0);
+        count = sumMicros = maxMicros = 0;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * @param fraction Percentile as a fraction, e.g. 0.99
+     * @return Upper bound of the bucket holding the percentile in microseconds, 0 without samples
+     */
+    long percentile(double fraction) {
+        long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(2L << i, maxMicros);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return Summary such as "p50 1.02 ms, p90 4.10 ms, p99 8.19 ms, max 9.01 ms, mean 1.50 ms"
+     */
+    String summary() {
+        if (count == 0) {
+            return "no samples";
+        }
+        return String.format(Locale.getDefault(), "p50 %s, p90 %s, p99 %s, max %s, mean %s",
+                millis(percentile(0.5)), millis(percentile(0.9)), millis(percentile(0.99)),
+                millis(maxMicros), millis(sumMicros / count));
+    }
+
+    /**
+     * Append the non-empty buckets, one per line such as "  1.02 ms - 2.05 ms: 42"
+     */
+    void appendBuckets(StringBuilder out) {
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts[i] > 0) {
+                out.append("  ").append(i == 0 ? "0" : millis(1L << i)).append(" - ")
+                        .append(millis(2L << i)).append(": ").append(counts[i]).append('\n');
+            }
+        }
+    }
+
+    private static String millis(long micros) {
+        if (micros < 1000) {
+            return micros + " us";
+        }
+        return String.format(Locale.getDefault(), "%.2f ms", micros / 1000.0);
+    }
+}
@@ -0,0 +1,104 @@
+package com.bluetooth.ble_terminal;
+
+import java.util.Arrays;
+
+/**
+ * Length-prefixed frames: an unsigned LEB128 varint with the frame length, CRC trailer included, followed
+ * by the frame bytes unchanged. There is no escaping overhead and a frame received in one piece is reported
+ * in place in the input, without copying.
+ *
+ * A length prefix has no delimiter to resynchronize on: a length above MAX_FRAME is dropped and decoding
+ * restarts at the next byte, a corrupted length within range is caught by the CRC. Use it with a CRC.
+ */
+final class LengthPrefixCodec extends FrameCodec {
+
+    // Decoder state: length being read (shift >= 0) or frame bytes still expected (shift < 0)
+    private int length;
+    private int shift;
+
+    LengthPrefixCodec(int crcLength) {
+        super(crcLength);
+    }
+
+    @Override
+    protected int maxFrameLength(int frameLength) {
+        return frameLength + 5;
+    }
+
+    @Override
+    protected int beginFrame(byte[] dst, int pos, int frameLength) {
+        int value = frameLength;
+        while (value >= 0x80) {
+            dst[pos++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        dst[pos++] = (byte) value;
+        return pos;
+    }
+
+    @Override
+    protected int put(byte[] src, int offset, int length, byte[] dst, int pos) {
+        System.arraycopy(src, offset, dst, pos, length);
+        return pos + length;
+    }
+
+    @Override
+    protected int endFrame(byte[] dst, int pos) {
+        return pos;
+    }
+
+    @Override
+    void decode(byte[] src, int offset, int length, Listener listener) {
+        int i = offset;
+        int end = offset + length;
+        while (i < end) {
+            if (shift >= 0) {
+                int b = src[i++] & 0xFF;
+                this.length |= (b & 0x7F) << shift;
+                shift += 7;
+                if ((b & 0x80) != 0) {
+                    if (shift > 21) {
+                        // Longer than any valid prefix
+                        corrupt(listener);
+                        reset();
+                    }
+                    continue;
+                }
+                if (this.length > MAX_FRAME) {
+                    corrupt(listener);
+                    reset();
+                } else if (this.length == 0) {
+                    deliver(src, i, 0, listener);
+                    reset();
+                } else {
+                    shift = -1;
+                    frameLength = 0;
+                }
+            } else if (frameLength == 0 && end - i >= this.length) {
+                // The whole frame is in the input
+                deliver(src, i, this.length, listener);
+                i += this.length;
+                reset();
+            } else {
+                int count = Math.min(this.length - frameLength, end - i);
+                if (frame.length < this.length) {
+                    frame = Arrays.copyOf(frame, Math.max(this.length, Math.min(MAX_FRAME, frame.length * 2)));
+                }
+                System.arraycopy(src, i, frame, frameLength, count);
+                frameLength += count;
+                i += count;
+                if (frameLength == this.length) {
+                    deliver(frame, 0, frameLength, listener);
+                    reset();
+                }
+            }
+        }
+    }
+
+    @Override
+    void reset() {
+        super.reset();
+        length = 0;
+        shift = 0;
+    }
+}
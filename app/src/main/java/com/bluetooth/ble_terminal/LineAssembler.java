@@ -0,0 +1,225 @@
+package com.bluetooth.ble_terminal;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reassembles received text into lines. Notification bytes are appended to a fixed-size ring buffer and
+ * scanned for the line ending, a complete line is decoded from UTF-8 in one pass. Characters and lines
+ * split across notifications therefore come out whole.
+ *
+ * CR and LF never occur inside a multi-byte UTF-8 sequence, so line endings are found on the raw bytes.
+ * Without a line ending (EOL_NONE, or a line longer than the ring) the pending text is emitted when no
+ * data arrived for the flush timeout or the ring is full. Such a partial emission keeps an incomplete
+ * trailing character in the ring until its remaining bytes arrive.
+ *
+ * With EOL_CRLF a flush can fall between the CR and the LF. A CR ending the flushed text is dropped
+ * rather than shown, and an LF arriving next completes the flushed line instead of starting a new one.
+ *
+ * The decoder, the ring and the character buffer are reused, emitting a line does not allocate. The
+ * CharSequence passed to the listener is only valid during the callback.
+ *
+ * Not thread safe, append from the thread the scheduler runs the flush timeout on.
+ */
+final class LineAssembler {
+
+    static final int EOL_NONE = 0;
+    static final int EOL_CR   = 1;
+    static final int EOL_LF   = 2;
+    static final int EOL_CRLF = 3;
+
+    /**
+     * Receiver of the reassembled text
+     */
+    interface Listener {
+        /**
+         * @param line     Text without the line ending
+         * @param complete True if the line ending was received, false for text emitted by a flush
+         */
+        void onLine(CharSequence line, boolean complete);
+    }
+
+    /**
+     * Runs the flush timeout, on the thread appending data. Implemented over a Handler by the activity.
+     */
+    interface Scheduler {
+        void postDelayed(Runnable task, long delay);
+
+        void removeCallbacks(Runnable task);
+    }
+
+    private final byte[] ring;
+    private final ByteBuffer ringView;
+    private final ByteBuffer wrapped;     // Linear copy of a line that wraps around the end of the ring
+    private final CharBuffer chars;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private final Scheduler scheduler;
+    private final long flushTimeout;
+    private final Listener listener;
+    private int eol = EOL_NONE;
+
+    private int head;       // Index of the first pending byte
+    private int size;       // Pending bytes
+    private int scanned;    // Pending bytes already searched for the line ending
+    private boolean crFlushed;  // Last emission was a flush ending on CR, a following LF completes it
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param capacity     Ring size in bytes, the longest line emitted whole
+     * @param scheduler    Runs the flush timeout on the thread appending data
+     * @param flushTimeout Time without data before pending text is emitted, in ms
+     */
+    LineAssembler(int capacity, Scheduler scheduler, long flushTimeout, Listener listener) {
+        this.ring = new byte[capacity];
+        this.ringView = ByteBuffer.wrap(ring);
+        this.wrapped = ByteBuffer.allocate(capacity);
+        this.chars = CharBuffer.allocate(capacity);
+        this.scheduler = scheduler;
+        this.flushTimeout = flushTimeout;
+        this.listener = listener;
+    }
+
+    /**
+     * @param eol EOL_NONE, EOL_CR, EOL_LF or EOL_CRLF
+     */
+    void setEol(int eol) {
+        this.eol = eol;
+        scanned = 0;
+        crFlushed = false;
+        scan();
+    }
+
+    /**
+     * Append received bytes, complete lines are emitted before returning
+     */
+    void append(byte[] data, int offset, int length) {
+        while (length > 0) {
+            if (size == ring.length) {
+                // Line longer than the ring, emit what is there
+                emit(size, 0, false);
+            }
+            int count = Math.min(length, ring.length - size);
+            int tail = (head + size) % ring.length;
+            int first = Math.min(count, ring.length - tail);
+            System.arraycopy(data, offset, ring, tail, first);
+            System.arraycopy(data, offset + first, ring, 0, count - first);
+            size += count;
+            offset += count;
+            length -= count;
+            scan();
+        }
+        scheduler.removeCallbacks(flushTask);
+        if (size > 0 && flushTimeout > 0) {
+            scheduler.postDelayed(flushTask, flushTimeout);
+        }
+    }
+
+    /**
+     * Emit the pending text as an incomplete line, an incomplete trailing character is kept
+     */
+    void flush() {
+        scheduler.removeCallbacks(flushTask);
+        if (size > 0) {
+            emit(size, 0, false);
+        }
+    }
+
+    /// Drop the pending bytes
+    void clear() {
+        scheduler.removeCallbacks(flushTask);
+        head = size = scanned = 0;
+        crFlushed = false;
+    }
+
+    private void scan() {
+        if (eol == EOL_NONE) {
+            scanned = size;
+            return;
+        }
+        if (crFlushed && size > 0) {
+            crFlushed = false;
+            if (ring[head] == '\n') {
+                // LF of a CRLF split by a flush, the text of the line was already emitted
+                head = (head + 1) % ring.length;
+                size--;
+                chars.clear();
+                chars.flip();
+                listener.onLine(chars, true);
+            }
+        }
+        byte end = eol == EOL_CR ? (byte) '\r' : (byte) '\n';
+        while (scanned < size) {
+            byte b = ring[(head + scanned) % ring.length];
+            scanned++;
+            if (b != end) {
+                continue;
+            }
+            int eolLength = 1;
+            if (eol == EOL_CRLF) {
+                if (scanned < 2 || ring[(head + scanned - 2) % ring.length] != '\r') {
+                    continue;
+                }
+                eolLength = 2;
+            }
+            emit(scanned - eolLength, eolLength, true);
+        }
+    }
+
+    /**
+     * Decode and emit the first count pending bytes, then drop eolLength more
+     * @param complete True to decode everything, false to keep an incomplete trailing character
+     */
+    private void emit(int count, int eolLength, boolean complete) {
+        boolean heldCr = !complete && eol == EOL_CRLF && ring[(head + count - 1) % ring.length] == '\r';
+        if (heldCr) {
+            // Possibly the first half of a CRLF, drop it with the text
+            count--;
+            eolLength = 1;
+        }
+        ByteBuffer in;
+        if (head + count <= ring.length) {
+            ringView.limit(head + count);
+            ringView.position(head);
+            in = ringView;
+        } else {
+            wrapped.clear();
+            wrapped.put(ring, head, ring.length - head);
+            wrapped.put(ring, 0, count - (ring.length - head));
+            wrapped.flip();
+            in = wrapped;
+        }
+        int start = in.position();
+        chars.clear();
+        decoder.reset();
+        decoder.decode(in, chars, complete);
+        if (complete) {
+            decoder.flush(chars);
+        }
+        int consumed = in.position() - start;
+        if (!complete && consumed == 0 && count == ring.length) {
+            // Only undecodable bytes in a full ring, drop them rather than stall
+            consumed = count;
+        }
+        chars.flip();
+        int removed = consumed + (consumed == count ? eolLength : 0);
+        head = (head + removed) % ring.length;
+        size -= removed;
+        scanned = Math.max(0, scanned - removed);
+        crFlushed = heldCr && consumed == count;
+        if (chars.length() > 0 || complete) {
+            listener.onLine(chars, complete);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.bluetooth.ble_terminal;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Connection parameters of the link to the terminal device. The throughput profile asks for the shortest
+ * connection interval and, from Android 8, the LE 2M PHY. When no data has been sent or received for the
+ * idle timeout the link falls back to balanced and the profile is requested again on the next traffic.
+ *
+ * Android does not report the resulting connection interval to applications, only PHY updates are
+ * observable (onPhyUpdate / onPhyRead).
+ */
+final class LinkProfile {
+
+    private static final String TAG = "Link Profile";
+
+    static final int THROUGHPUT = 0;
+    static final int BALANCED   = 1;
+    static final int LOW_POWER  = 2;
+
+    private static final String[] NAMES = {"Throughput", "Balanced", "Low power"};
+    private static final int[] PRIORITY = {
+            BluetoothGatt.CONNECTION_PRIORITY_HIGH,
+            BluetoothGatt.CONNECTION_PRIORITY_BALANCED,
+            BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER };
+
+    private final Handler handler;
+    private BluetoothGatt gatt;
+    private volatile int selected = THROUGHPUT;
+    private volatile int active = -1;
+    private long idleTimeout = 10000;
+    private volatile long lastTraffic;
+    // Set while a restore is posted, traffic does not post another one
+    private final AtomicBoolean restorePending = new AtomicBoolean();
+
+    // Last PHYs reported by the stack, 0 until reported
+    private volatile int txPhy;
+    private volatile int rxPhy;
+
+    private final Runnable idleCheck = new Runnable() {
+        @Override
+        public void run() {
+            long idle = SystemClock.elapsedRealtime() - lastTraffic;
+            if (active != selected) {
+                return;
+            }
+            if (idle >= idleTimeout) {
+                Log.d(TAG, "Link idle, back to balanced");
+                apply(BALANCED);
+            } else {
+                handler.postDelayed(this, idleTimeout - idle);
+            }
+        }
+    };
+
+    private final Runnable restore = new Runnable() {
+        @Override
+        public void run() {
+            restorePending.set(false);
+            // The link may have been closed after the restore was posted
+            if (gatt != null && active != -1 && active != selected) {
+                apply(selected);
+            }
+        }
+    };
+
+    /**
+     * @param handler Handler of the thread applying the profile and running the idle timer
+     */
+    LinkProfile(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Set the connection the profile applies to and request the selected profile
+     * @param gatt Connected GATT client, or null after a disconnection
+     */
+    void setGatt(final BluetoothGatt gatt) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                LinkProfile.this.gatt = gatt;
+                active = -1;
+                txPhy = rxPhy = 0;
+                handler.removeCallbacks(idleCheck);
+                if (gatt != null) {
+                    lastTraffic = SystemClock.elapsedRealtime();
+                    apply(selected);
+                }
+            }
+        });
+    }
+
+    /**
+     * Select the profile, applied immediately when connected
+     * @param profile THROUGHPUT, BALANCED or LOW_POWER
+     */
+    void select(final int profile) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                selected = profile;
+                lastTraffic = SystemClock.elapsedRealtime();
+                if (gatt != null) {
+                    apply(profile);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param millis Time without traffic before a throughput link falls back to balanced, 0 to never fall back
+     */
+    void setIdleTimeout(long millis) {
+        idleTimeout = millis;
+    }
+
+    /**
+     * Record data sent or received, restores the selected profile if the link fell back while idle.
+     * Cheap enough to call for every packet, any thread: at most one restore is posted at a time.
+     */
+    void onTraffic() {
+        lastTraffic = SystemClock.elapsedRealtime();
+        if (active != selected && active != -1 && restorePending.compareAndSet(false, true)) {
+            handler.post(restore);
+        }
+    }
+
+    /// PHYs reported by onPhyUpdate or onPhyRead
+    void onPhy(int txPhy, int rxPhy, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            this.txPhy = txPhy;
+            this.rxPhy = rxPhy;
+        }
+        Log.i(TAG, "PHY tx " + txPhy + " rx " + rxPhy + " status " + status);
+    }
+
+    /**
+     * @return Readout such as "Link: Throughput, PHY 2M/2M"
+     */
+    String describe() {
+        int current = active;
+        String text = "Link: " + (current >= 0 ? NAMES[current] : "-");
+        if (txPhy != 0) {
+            text += ", PHY " + phyName(txPhy) + "/" + phyName(rxPhy);
+        }
+        return text;
+    }
+
+    static String name(int profile) {
+        return NAMES[profile];
+    }
+
+    private void apply(int profile) {
+        if (!gatt.requestConnectionPriority(PRIORITY[profile])) {
+            Log.w(TAG, "Connection priority request rejected");
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            requestPhy(profile == THROUGHPUT ? BluetoothDevice.PHY_LE_2M_MASK : BluetoothDevice.PHY_LE_1M_MASK);
+        }
+        active = profile;
+        handler.removeCallbacks(idleCheck);
+        if (profile == THROUGHPUT && profile == selected && idleTimeout > 0) {
+            handler.postDelayed(idleCheck, idleTimeout);
+        }
+    }
+
+    @TargetApi(26)
+    private void requestPhy(int phyMask) {
+        // The device may not support 2M, the stack then keeps 1M and reports it through onPhyUpdate
+        gatt.setPreferredPhy(phyMask, phyMask, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        gatt.readPhy();
+    }
+
+    private static String phyName(int phy) {
+        switch (phy) {
+            case BluetoothDevice.PHY_LE_1M:
+                return "1M";
+            case BluetoothDevice.PHY_LE_2M:
+                return "2M";
+            case BluetoothDevice.PHY_LE_CODED:
+                return "Coded";
+            default:
+                return String.valueOf(phy);
+        }
+    }
+}
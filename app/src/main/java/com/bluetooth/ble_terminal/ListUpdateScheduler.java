@@ -0,0 +1,205 @@
+package com.bluetooth.ble_terminal;
+
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import java.util.Arrays;
+
+/**
+ * Collects row changes of a device list and publishes them at most once per display frame, or at
+ * a lower configurable rate. Repeated changes of the same row between two publications are merged
+ * so the list is rebound once no matter how many advertisements arrived in the meantime.
+ *
+ * Rows can be marked from any thread while holding the lock that guards the source list. Publication
+ * runs on the main thread: the listener first copies the changed rows into the list it shows while the
+ * lock is held, then updates the views after the lock is released.
+ */
+final class ListUpdateScheduler implements Choreographer.FrameCallback {
+
+    /**
+     * Receiver of the coalesced changes, normally the fragment showing the list
+     */
+    interface Listener {
+        /**
+         * Copy the changed rows from the source list, called with the lock held
+         * @param changes Rows changed since the last publication. Only valid during the call.
+         */
+        void onSnapshot(ChangeSet changes);
+
+        /**
+         * Update the views after the snapshot, called without the lock
+         * @param changes Rows changed since the last publication. Only valid during the call.
+         */
+        void onRowsChanged(ChangeSet changes);
+    }
+
+    /**
+     * Set of rows changed since the last publication
+     */
+    static final class ChangeSet {
+        private int[] rows = new int[16];
+        private int count;
+        private int firstInserted = -1;
+
+        /// Number of changed rows
+        int size() {
+            return count;
+        }
+
+        /// Position of the i-th changed row, in the order the rows first changed
+        int row(int i) {
+            return rows[i];
+        }
+
+        /// True if rows were added to the list, positions from {@link #firstInserted()} are new
+        boolean hasInsertions() {
+            return firstInserted >= 0;
+        }
+
+        int firstInserted() {
+            return firstInserted;
+        }
+
+        private void add(int row) {
+            if (count == rows.length) {
+                rows = Arrays.copyOf(rows, count << 1);
+            }
+            rows[count++] = row;
+        }
+
+        private void clear() {
+            count = 0;
+            firstInserted = -1;
+        }
+    }
+
+    private final Object lock;
+    private final Listener listener;
+    private final Choreographer choreographer;
+    private ChangeSet pending = new ChangeSet();
+    private ChangeSet published = new ChangeSet();
+    // Rows already present in the pending change set, indexed by position
+    private boolean[] dirty = new boolean[64];
+    private boolean scheduled;
+    private long minIntervalMs;
+    private long lastPublished;
+
+    // Statistics
+    private long deliveredCount;
+    private long coalescedCount;
+
+    /**
+     * Must be created on the main thread
+     * @param lock     Lock guarding the source list, held when rows are marked
+     * @param listener Receiver of the changes
+     */
+    ListUpdateScheduler(Object lock, Listener listener) {
+        this.lock = lock;
+        this.listener = listener;
+        this.choreographer = Choreographer.getInstance();
+    }
+
+    /**
+     * Limit the publication rate below the display refresh rate
+     * @param minIntervalMs Minimum time between two publications, 0 to publish on every frame
+     */
+    void setMinInterval(long minIntervalMs) {
+        this.minIntervalMs = minIntervalMs;
+    }
+
+    /**
+     * Mark an existing row as changed
+     * @param position Position of the row in the list
+     */
+    void rowChanged(int position) {
+        synchronized (lock) {
+            markChanged(position);
+        }
+    }
+
+    /**
+     * Mark a row as newly added to the list
+     * @param position Position of the new row
+     */
+    void rowInserted(int position) {
+        synchronized (lock) {
+            if (pending.firstInserted < 0 || position < pending.firstInserted) {
+                pending.firstInserted = position;
+            }
+            markChanged(position);
+        }
+    }
+
+    private void markChanged(int position) {
+        if (position >= dirty.length) {
+            dirty = Arrays.copyOf(dirty, Math.max(dirty.length << 1, position + 1));
+        }
+        if (dirty[position]) {
+            coalescedCount++;
+            return;
+        }
+        dirty[position] = true;
+        pending.add(position);
+        if (!scheduled) {
+            // Choreographer accepts callbacks from any thread, they run on the main thread
+            scheduled = true;
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Drop pending changes, e.g. when the list is no longer shown
+     */
+    void cancel() {
+        synchronized (lock) {
+            if (scheduled) {
+                choreographer.removeFrameCallback(this);
+                scheduled = false;
+            }
+            for (int i = 0; i < pending.count; i++) {
+                dirty[pending.rows[i]] = false;
+            }
+            pending.clear();
+        }
+    }
+
+    /// Number of change sets handed to the listener
+    long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    /// Number of row changes merged into an already pending change set
+    long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        ChangeSet changes;
+        synchronized (lock) {
+            scheduled = false;
+            if (pending.count == 0) {
+                return;
+            }
+            long now = SystemClock.uptimeMillis();
+            long wait = lastPublished + minIntervalMs - now;
+            if (wait > 0) {
+                scheduled = true;
+                choreographer.postFrameCallbackDelayed(this, wait);
+                return;
+            }
+            lastPublished = now;
+            deliveredCount++;
+            listener.onSnapshot(pending);
+            for (int i = 0; i < pending.count; i++) {
+                dirty[pending.rows[i]] = false;
+            }
+            // Rows marked from now on go to the other set while the views are updated
+            changes = pending;
+            pending = published;
+            published = changes;
+            pending.clear();
+        }
+        listener.onRowsChanged(changes);
+    }
+}
@@ -0,0 +1,61 @@
+package com.bluetooth.ble_terminal;
+
+import java.util.Locale;
+
+/**
+ * Smoothed transfer rate for progress readouts. Sampled with the running byte count, e.g. from a
+ * periodic UI update, and averaged exponentially so the rate and the ETA derived from it do not jump
+ * with every connection event.
+ *
+ * Not thread safe, sample from one thread.
+ */
+final class RateEstimator {
+
+    private static final long MIN_INTERVAL = 250000000L;    // ns between samples used for the rate
+    private static final double SMOOTHING = 0.3;            // Weight of the newest sample
+
+    private long lastBytes = -1;
+    private long lastNanos;
+    private double rate;
+
+    /// Start over from a byte count, e.g. when a transfer is resumed
+    void reset(long bytes) {
+        lastBytes = bytes;
+        lastNanos = System.nanoTime();
+        rate = 0;
+    }
+
+    /**
+     * @param bytes Total bytes transferred so far
+     * @return Smoothed rate in bytes per second
+     */
+    double sample(long bytes) {
+        long now = System.nanoTime();
+        if (lastBytes < 0) {
+            reset(bytes);
+        } else if (now - lastNanos >= MIN_INTERVAL) {
+            double current = (bytes - lastBytes) * 1e9 / (now - lastNanos);
+            rate = rate == 0 ? current : rate + SMOOTHING * (current - rate);
+            lastBytes = bytes;
+            lastNanos = now;
+        }
+        return rate;
+    }
+
+    /// Smoothed rate of the last sample in bytes per second
+    double getRate() {
+        return rate;
+    }
+
+    /**
+     * @param remaining Bytes left to transfer
+     * @return Estimated time left as m:ss, "-" while no rate is known
+     */
+    String eta(long remaining) {
+        if (rate < 1) {
+            return "-";
+        }
+        long seconds = (long) (remaining / rate);
+        return String.format(Locale.getDefault(), "%d:%02d", seconds / 60, seconds % 60);
+    }
+}
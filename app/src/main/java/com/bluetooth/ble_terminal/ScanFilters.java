@@ -0,0 +1,102 @@
+package com.bluetooth.ble_terminal;
+
+import android.bluetooth.le.ScanFilter;
+import android.os.ParcelUuid;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Builds the ScanFilters handed to the Bluetooth stack so that only advertisements the application
+ * shows (iBeacons, our company beacons and devices running the terminal service) wake the process.
+ * Filtering is done by the controller when it supports offloaded filtering, otherwise by the stack.
+ */
+final class ScanFilters {
+
+    /// Company ID used by iBeacon frames
+    static final int APPLE_COMPANY_ID = 0x004C;
+    private static final byte[] IBEACON_PREFIX      = {0x02, 0x15};
+    private static final byte[] IBEACON_PREFIX_MASK = {(byte) 0xFF, (byte) 0xFF};
+
+    private ScanFilters() {
+    }
+
+    /**
+     * @param companyId   Company ID of our beacons
+     * @param serviceUuid Service UUID advertised by terminal devices, null to skip
+     * @return Filters matching any of the advertisements the application is interested in
+     */
+    static List<ScanFilter> build(int companyId, UUID serviceUuid) {
+        List<ScanFilter> filters = new ArrayList<>();
+
+        // iBeacon: type and length header, the hardware filter needs the Apple company ID
+        filters.add(new ScanFilter.Builder()
+                .setManufacturerData(APPLE_COMPANY_ID, IBEACON_PREFIX, IBEACON_PREFIX_MASK)
+                .build());
+
+        // Company beacons: manufacturer data under our company ID only. The stack matches a filter payload
+        // as a prefix, so the all-zero mask accepts any content of at least COMPANY_BEACON_LENGTH bytes;
+        // longer payloads pass too and are rejected by the parser's exact length check
+        byte[] payload = new byte[AdvertisementParser.COMPANY_BEACON_LENGTH];
+        filters.add(new ScanFilter.Builder()
+                .setManufacturerData(companyId, payload, new byte[payload.length])
+                .build());
+
+        if (serviceUuid != null) {
+            filters.add(new ScanFilter.Builder()
+                    .setServiceUuid(new ParcelUuid(serviceUuid))
+                    .build());
+        }
+        return filters;
+    }
+
+    /**
+     * Estimates how many scan callbacks the filters avoid. While scanning without filters it counts
+     * the results the filters would have rejected and keeps the ratio of wanted results, which is
+     * then used to extrapolate the unfiltered callback count while filters are active.
+     */
+    static final class Stats {
+        private long unfilteredResults;
+        private long unfilteredWanted;
+        private long filteredResults;
+
+        /**
+         * Record a scan result delivered to the application
+         * @param filtered True if the scan was started with the filters
+         * @param wanted   True if the result is one the filters let through
+         */
+        void onResult(boolean filtered, boolean wanted) {
+            if (filtered) {
+                filteredResults++;
+            } else {
+                unfilteredResults++;
+                if (wanted) {
+                    unfilteredWanted++;
+                }
+            }
+        }
+
+        /// Callbacks delivered while scanning with filters
+        long getFilteredResults() {
+            return filteredResults;
+        }
+
+        /**
+         * @return Callbacks not delivered thanks to the filters. Measured directly during unfiltered
+         * scanning and extrapolated from the observed ratio of wanted results during filtered scanning,
+         * or -1 if no unfiltered scan has been observed yet to estimate the ratio.
+         */
+        long getAvoidedCallbacks() {
+            long avoided = unfilteredResults - unfilteredWanted;
+            if (filteredResults == 0) {
+                return avoided;
+            }
+            if (unfilteredWanted == 0) {
+                return -1;
+            }
+            double ratio = (double) unfilteredResults / unfilteredWanted;
+            return avoided + Math.round(filteredResults * (ratio - 1));
+        }
+    }
+}
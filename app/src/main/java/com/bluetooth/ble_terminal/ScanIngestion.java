@@ -0,0 +1,119 @@
+package com.bluetooth.ble_terminal;
+
+import android.bluetooth.le.ScanResult;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves scan result processing off the scan callback thread. The callback only enqueues the result,
+ * a background worker thread takes results from the queue and processes them. When results arrive
+ * faster than the worker handles them the queue fills up and new results are dropped: advertisements
+ * repeat, so a dropped result is replaced by the next advertisement of the same device.
+ */
+final class ScanIngestion implements Runnable {
+
+    private static final String TAG = "Scan Ingestion";
+
+    /**
+     * Processing done on the worker thread
+     */
+    interface Consumer {
+        void process(ScanResult result);
+    }
+
+    private final SpscQueue<ScanResult> queue;
+    private final Consumer consumer;
+    private volatile Thread worker;
+    private volatile boolean waiting;
+
+    // Statistics, written by the producer and read for logging only
+    private long submitted;
+    private long dropped;
+    private int highWatermark;
+
+    /**
+     * @param capacity Number of results the queue holds before dropping
+     * @param consumer Processing run on the worker thread for every result
+     */
+    ScanIngestion(int capacity, Consumer consumer) {
+        this.queue = new SpscQueue<>(capacity);
+        this.consumer = consumer;
+    }
+
+    /// Start the worker thread
+    void start() {
+        if (worker == null) {
+            worker = new Thread(this, TAG);
+            worker.start();
+        }
+    }
+
+    /// Stop the worker thread, queued results are discarded
+    void stop() {
+        Thread thread = worker;
+        worker = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Hand a result to the worker, from the scan callback thread only
+     * @return False if the queue was full and the result was dropped
+     */
+    boolean submit(ScanResult result) {
+        submitted++;
+        if (!queue.offer(result)) {
+            dropped++;
+            return false;
+        }
+        int size = queue.size();
+        if (size > highWatermark) {
+            highWatermark = size;
+        }
+        if (waiting) {
+            LockSupport.unpark(worker);
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        Thread self = Thread.currentThread();
+        while (worker == self) {
+            ScanResult result = queue.poll();
+            if (result == null) {
+                waiting = true;
+                // Check again after publishing the flag, a result offered in between would not wake us
+                if (queue.size() == 0) {
+                    LockSupport.park(this);
+                }
+                waiting = false;
+                continue;
+            }
+            try {
+                consumer.process(result);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to process scan result", e);
+            }
+        }
+    }
+
+    /// Results handed to the worker
+    long getSubmittedCount() {
+        return submitted;
+    }
+
+    /// Results dropped because the queue was full
+    long getDroppedCount() {
+        return dropped;
+    }
+
+    /// Largest number of results waiting in the queue
+    int getHighWatermark() {
+        return highWatermark;
+    }
+}
@@ -0,0 +1,218 @@
+package com.bluetooth.ble_terminal;
+
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Duty cycles scanning based on the discovery rate. Scanning starts continuous in low latency mode,
+ * after a quiet period without new devices it backs off to balanced mode with short idle windows, then
+ * to low power mode with long idle windows. A new device brings it straight back to low latency.
+ *
+ * Android silently ignores scans started more than 5 times in 30 seconds by the same application,
+ * every start is recorded and starts that would exceed the limit are postponed.
+ *
+ * Runs on the thread of the handler, scan results must be reported on the same thread.
+ */
+final class ScanScheduler implements Runnable {
+
+    /**
+     * Turns the scanner on and off
+     */
+    interface Radio {
+        void startRadio(int scanMode);
+        void stopRadio();
+    }
+
+    // Levels, from the most to the least aggressive
+    static final int ACTIVE      = 0;
+    static final int BALANCED    = 1;
+    static final int LOW_POWER   = 2;
+    static final int LEVEL_COUNT = 3;
+
+    private static final int[] SCAN_MODE = {
+            ScanSettings.SCAN_MODE_LOW_LATENCY,
+            ScanSettings.SCAN_MODE_BALANCED,
+            ScanSettings.SCAN_MODE_LOW_POWER };
+    // Scan and idle windows per level in ms, a scan window of 0 scans until the quiet period elapses
+    private static final long[] SCAN_WINDOW = {0, 10000, 4000};
+    private static final long[] IDLE_WINDOW = {0, 5000, 26000};
+
+    // Android start scan limit, with a margin for the timer resolution of the stack
+    private static final int MAX_STARTS = 5;
+    private static final long START_LIMIT_WINDOW = 30000 + 500;
+
+    private final Handler handler;
+    private final Radio radio;
+    private long quietPeriod = 10000;
+
+    private boolean running;
+    private boolean radioOn;
+    private int level;
+    private long lastDiscovery;
+    private long radioOnSince;
+
+    // Ring of the last start times
+    private final long[] starts = new long[MAX_STARTS];
+    private int startIndex;
+    private int startCount;
+
+    // Statistics per level
+    private final long[] radioOnMillis = new long[LEVEL_COUNT];
+    private final long[] callbacks = new long[LEVEL_COUNT];
+    private final long[] results = new long[LEVEL_COUNT];
+    private long postponedStarts;
+
+    ScanScheduler(Handler handler, Radio radio) {
+        this.handler = handler;
+        this.radio = radio;
+    }
+
+    /**
+     * @param millis Time without new devices before scanning backs off one level
+     */
+    void setQuietPeriod(long millis) {
+        quietPeriod = millis;
+    }
+
+    /// Start scanning at the most aggressive level
+    void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        level = ACTIVE;
+        long now = SystemClock.elapsedRealtime();
+        lastDiscovery = now;
+        scanNow(now);
+    }
+
+    /// Stop scanning and cancel the pending windows
+    void stop() {
+        running = false;
+        handler.removeCallbacks(this);
+        if (radioOn) {
+            radioOff(SystemClock.elapsedRealtime());
+        }
+    }
+
+    /**
+     * Record a scan callback
+     * @param resultCount Number of results delivered by the callback
+     */
+    void onScanResults(int resultCount) {
+        callbacks[level]++;
+        results[level] += resultCount;
+    }
+
+    /**
+     * Record devices seen for the first time
+     * @param discovered Number of new devices
+     */
+    void onDiscoveries(int discovered) {
+        if (discovered > 0 && running) {
+            long now = SystemClock.elapsedRealtime();
+            lastDiscovery = now;
+            if (level != ACTIVE) {
+                // Ramp up, the scan mode can only be changed by restarting the scan
+                handler.removeCallbacks(this);
+                if (radioOn) {
+                    radioOff(now);
+                }
+                level = ACTIVE;
+                scanNow(now);
+            }
+        }
+    }
+
+    /// Called at the end of a scan or idle window
+    @Override
+    public void run() {
+        if (!running) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (!radioOn) {
+            scanNow(now);
+            return;
+        }
+        int next = level;
+        if (now - lastDiscovery >= quietPeriod && level < LOW_POWER) {
+            next = level + 1;
+        } else if (SCAN_WINDOW[level] == 0) {
+            // Continuous scan still discovering devices
+            handler.postDelayed(this, lastDiscovery + quietPeriod - now);
+            return;
+        }
+        radioOff(now);
+        level = next;
+        long idle = IDLE_WINDOW[level];
+        if (idle > 0) {
+            handler.postDelayed(this, idle);
+        } else {
+            scanNow(now);
+        }
+    }
+
+    private void scanNow(long now) {
+        long wait = startDelay(now);
+        if (wait > 0) {
+            postponedStarts++;
+            handler.postDelayed(this, wait);
+            return;
+        }
+        starts[startIndex] = now;
+        startIndex = (startIndex + 1) % MAX_STARTS;
+        if (startCount < MAX_STARTS) {
+            startCount++;
+        }
+        radio.startRadio(SCAN_MODE[level]);
+        radioOn = true;
+        radioOnSince = now;
+        long window = SCAN_WINDOW[level];
+        handler.postDelayed(this, window > 0 ? window : Math.max(0, lastDiscovery + quietPeriod - now));
+    }
+
+    private void radioOff(long now) {
+        radio.stopRadio();
+        radioOn = false;
+        radioOnMillis[level] += now - radioOnSince;
+    }
+
+    // Time until one more scan can be started without exceeding the start limit
+    private long startDelay(long now) {
+        if (startCount < MAX_STARTS) {
+            return 0;
+        }
+        return Math.max(0, starts[startIndex] + START_LIMIT_WINDOW - now);
+    }
+
+    /// Current level, ACTIVE, BALANCED or LOW_POWER
+    int getLevel() {
+        return level;
+    }
+
+    /// Time the scanner was on at a level in ms
+    long getRadioOnMillis(int level) {
+        long millis = radioOnMillis[level];
+        if (radioOn && level == this.level) {
+            millis += SystemClock.elapsedRealtime() - radioOnSince;
+        }
+        return millis;
+    }
+
+    /// Scan callbacks received at a level
+    long getCallbackCount(int level) {
+        return callbacks[level];
+    }
+
+    /// Scan results received at a level, batch callbacks deliver several results
+    long getResultCount(int level) {
+        return results[level];
+    }
+
+    /// Starts postponed to stay within the start scan limit
+    long getPostponedStarts() {
+        return postponedStarts;
+    }
+}
@@ -0,0 +1,199 @@
+package com.bluetooth.ble_terminal;
+
+import java.util.ArrayDeque;
+
+/**
+ * Append-only terminal scrollback. The text of all messages is one character stream stored in fixed-size
+ * chunks, a message is a start position in the stream and a direction. Appending copies the new characters
+ * into the last chunk, evicting from the head frees whole chunks, both are O(1) per chunk regardless of
+ * the length of the messages.
+ *
+ * The size is capped by a memory budget rather than a message count: once the budget is used, the oldest
+ * chunk is recycled for new text and messages that lay entirely in it are dropped. The oldest remaining
+ * message may then start part way through. The number of retained messages is capped as well, by
+ * MAX_MESSAGES.
+ *
+ * Message text is copied out of the chunks with getChars(), a range at a time, so a view can show the end
+ * of a long message without copying all of it.
+ *
+ * Not thread safe, use from the UI thread.
+ */
+final class Scrollback {
+
+    static final int CHUNK_SIZE = 4096;         // Characters per chunk
+    static final int MAX_MESSAGES = 4096;
+
+    private final int maxChunks;
+    private final char[][] chunks;              // Ring of chunks indexed by absolute chunk number
+    private final ArrayDeque<char[]> freeChunks = new ArrayDeque<>();
+    private int allocatedChunks;
+
+    // Retained text is the absolute character range [start, end)
+    private long start;
+    private long end;
+
+    // Ring of the retained messages, absolute message number firstMessage is at index head
+    private final long[] messageStart = new long[MAX_MESSAGES];
+    private final char[] messageDirection = new char[MAX_MESSAGES];
+    private int head;
+    private int count;
+    private long firstMessage;
+
+    /**
+     * @param budgetBytes Memory for message text, at least two chunks are kept
+     */
+    Scrollback(int budgetBytes) {
+        maxChunks = Math.max(2, budgetBytes / (2 * CHUNK_SIZE));
+        chunks = new char[maxChunks + 1][];
+    }
+
+    /**
+     * Start a new message, further text is appended to it
+     * @param direction Direction tag, e.g. 'R' or 'T'
+     */
+    void newMessage(char direction) {
+        if (count == MAX_MESSAGES) {
+            dropFirstMessage();
+        }
+        int index = (head + count) % MAX_MESSAGES;
+        messageStart[index] = end;
+        messageDirection[index] = direction;
+        count++;
+    }
+
+    /**
+     * Append text to the last message, starting a message tagged '.' if there is none
+     */
+    void append(CharSequence text) {
+        if (count == 0) {
+            newMessage('.');
+        }
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            int offset = (int) (end % CHUNK_SIZE);
+            if (offset == 0) {
+                addChunk();
+            }
+            char[] chunk = chunks[(int) ((end / CHUNK_SIZE) % chunks.length)];
+            int n = Math.min(length - i, CHUNK_SIZE - offset);
+            if (text instanceof String) {
+                ((String) text).getChars(i, i + n, chunk, offset);
+            } else {
+                for (int j = 0; j < n; j++) {
+                    chunk[offset + j] = text.charAt(i + j);
+                }
+            }
+            i += n;
+            end += n;
+        }
+    }
+
+    /// Drop all messages, the chunks are kept for reuse
+    void clear() {
+        firstMessage += count;
+        head = count = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            if (chunks[i] != null) {
+                freeChunks.add(chunks[i]);
+                chunks[i] = null;
+            }
+        }
+        start = end = 0;
+    }
+
+    /// Number of retained messages
+    int getCount() {
+        return count;
+    }
+
+    /// Absolute number of the first retained message, increases as messages are evicted
+    long getFirstMessageId() {
+        return firstMessage;
+    }
+
+    char getDirection(int position) {
+        return messageDirection[(head + position) % MAX_MESSAGES];
+    }
+
+    /// Retained length of a message, the oldest message may have lost its head
+    int getLength(int position) {
+        return (int) (messageEnd(position) - messageBegin(position));
+    }
+
+    /**
+     * Copy characters of a message, like String.getChars()
+     * @param begin Offset in the retained text of the message
+     * @param end   Offset after the last character, at most getLength(position)
+     */
+    void getChars(int position, int begin, int end, char[] destination, int destinationBegin) {
+        long from = messageBegin(position) + begin;
+        long to = messageBegin(position) + end;
+        while (from < to) {
+            int offset = (int) (from % CHUNK_SIZE);
+            int n = (int) Math.min(to - from, CHUNK_SIZE - offset);
+            System.arraycopy(chunks[(int) ((from / CHUNK_SIZE) % chunks.length)], offset, destination, destinationBegin, n);
+            destinationBegin += n;
+            from += n;
+        }
+    }
+
+    /// Characters retained
+    long getLength() {
+        return end - start;
+    }
+
+    /// Chunks allocated since creation, bounded by the budget
+    int getAllocatedChunks() {
+        return allocatedChunks;
+    }
+
+    private long messageBegin(int position) {
+        return Math.max(start, messageStart[(head + position) % MAX_MESSAGES]);
+    }
+
+    private long messageEnd(int position) {
+        return position + 1 < count ? messageStart[(head + position + 1) % MAX_MESSAGES] : end;
+    }
+
+    private void addChunk() {
+        long number = end / CHUNK_SIZE;
+        if (number - start / CHUNK_SIZE >= maxChunks) {
+            // Budget used, recycle the oldest chunk
+            freeFirstChunk();
+        }
+        char[] chunk = freeChunks.poll();
+        if (chunk == null) {
+            chunk = new char[CHUNK_SIZE];
+            allocatedChunks++;
+        }
+        chunks[(int) (number % chunks.length)] = chunk;
+    }
+
+    private void freeFirstChunk() {
+        long number = start / CHUNK_SIZE;
+        int slot = (int) (number % chunks.length);
+        if (chunks[slot] != null) {
+            freeChunks.add(chunks[slot]);
+            chunks[slot] = null;
+        }
+        start = Math.min(end, (number + 1) * CHUNK_SIZE);
+        // Drop the messages that ended in the freed chunk, the last message is always kept
+        while (count > 1 && messageStart[(head + 1) % MAX_MESSAGES] <= start) {
+            head = (head + 1) % MAX_MESSAGES;
+            count--;
+            firstMessage++;
+        }
+    }
+
+    private void dropFirstMessage() {
+        head = (head + 1) % MAX_MESSAGES;
+        count--;
+        firstMessage++;
+        long next = messageStart[head];
+        while (start / CHUNK_SIZE < next / CHUNK_SIZE) {
+            freeFirstChunk();
+        }
+        start = Math.max(start, next);
+    }
+}
@@ -0,0 +1,210 @@
+package com.bluetooth.ble_terminal;
+
+import java.util.Arrays;
+
+/**
+ * Time series of the readings of the company beacons. Every beacon gets a fixed size ring buffer with
+ * one primitive column per sensor field, so appending a sample is O(1) and does not allocate once the
+ * buffer exists. The number of beacons recorded is bounded by a memory budget, beacons seen after the
+ * budget is exhausted are not recorded.
+ *
+ * Reception times are SystemClock.elapsedRealtime() milliseconds, which never go back, so the samples of
+ * a beacon stay in time order when the wall clock is changed. Convert them to wall time only for display.
+ * They are kept as TIME_UNIT steps since the first sample of the beacon in an int, a sample takes
+ * BYTES_PER_SAMPLE = 26 bytes.
+ *
+ * Not thread safe, the owner serializes access: DeviceSelection appends on the scan ingestion worker
+ * while holding its ingest lock, readers hold the same lock.
+ */
+final class SensorHistory {
+
+    // Sensor columns
+    static final int TEMP        = 0;
+    static final int HUM         = 1;
+    static final int LIGHT       = 2;
+    static final int CO2         = 3;
+    static final int AIR         = 4;
+    static final int SOUND       = 5;
+    static final int ACC_X       = 6;
+    static final int ACC_Y       = 7;
+    static final int ACC_Z       = 8;
+    static final int ELECTRIC    = 9;
+    static final int TX_POWER    = 10;
+    static final int FIELD_COUNT = 11;
+
+    /// Memory used by one sample: timestamp and one short per field
+    static final int BYTES_PER_SAMPLE = 4 + 2 * FIELD_COUNT;
+
+    /// Resolution of the reception times in milliseconds, an int covers about 6.8 years
+    static final long TIME_UNIT = 100;
+
+    private final int capacity;
+    private final int maxSeries;
+    private Series[] series = new Series[16];
+    private int seriesCount;
+    private long droppedSamples;
+
+    /**
+     * @param memoryBudget      Maximum memory used by the sample buffers, in bytes
+     * @param samplesPerBeacon  Number of samples kept per beacon, older samples are overwritten
+     */
+    SensorHistory(long memoryBudget, int samplesPerBeacon) {
+        this.capacity = samplesPerBeacon;
+        this.maxSeries = (int) Math.min(Integer.MAX_VALUE, memoryBudget / ((long) samplesPerBeacon * BYTES_PER_SAMPLE));
+    }
+
+    /**
+     * Record the readings of a company beacon advertisement. Repeated advertisements of the same
+     * sample (same sequence number) are ignored.
+     * @param beacon    Position of the beacon in the BeaconRegistry
+     * @param time      Reception time, SystemClock.elapsedRealtime() milliseconds
+     * @param telemetry Decoded advertisement
+     */
+    void append(int beacon, long time, BeaconTelemetry telemetry) {
+        Series s = series(beacon);
+        if (s == null) {
+            droppedSamples++;
+            return;
+        }
+        if (s.size > 0 && s.lastSequence == telemetry.sequence) {
+            return;
+        }
+        if (s.size == 0) {
+            s.base = time;
+        }
+        int i = s.head;
+        s.times[i] = (int) ((time - s.base) / TIME_UNIT);
+        short[][] c = s.columns;
+        c[TEMP][i] = telemetry.temp;
+        c[HUM][i] = telemetry.hum;
+        c[LIGHT][i] = telemetry.light;
+        c[CO2][i] = telemetry.co2;
+        c[AIR][i] = telemetry.air;
+        c[SOUND][i] = telemetry.sound;
+        c[ACC_X][i] = telemetry.accX;
+        c[ACC_Y][i] = telemetry.accY;
+        c[ACC_Z][i] = telemetry.accZ;
+        c[ELECTRIC][i] = telemetry.electric;
+        c[TX_POWER][i] = telemetry.txPower;
+        s.lastSequence = telemetry.sequence;
+        s.head = i + 1 == capacity ? 0 : i + 1;
+        if (s.size < capacity) {
+            s.size++;
+        }
+    }
+
+    /**
+     * Select the samples of a beacon received in a time range. The range is a view on the ring buffer,
+     * it stays valid until more than capacity - size samples are appended to the beacon. Times are
+     * compared at TIME_UNIT resolution.
+     * @param beacon Position of the beacon in the BeaconRegistry
+     * @param from   Start of the range, elapsedRealtime() milliseconds, inclusive
+     * @param to     End of the range, elapsedRealtime() milliseconds, exclusive
+     * @param out    Range updated with the result
+     * @return Number of samples in the range
+     */
+    int query(int beacon, long from, long to, Range out) {
+        Series s = beacon < series.length ? series[beacon] : null;
+        out.series = s;
+        out.start = 0;
+        out.size = 0;
+        if (s == null || s.size == 0) {
+            return 0;
+        }
+        int first = lowerBound(s, from);
+        int end = lowerBound(s, to);
+        out.start = first;
+        out.size = Math.max(0, end - first);
+        return out.size;
+    }
+
+    /// Samples not recorded because the memory budget was exhausted
+    long getDroppedSamples() {
+        return droppedSamples;
+    }
+
+    /// Memory currently allocated for sample buffers, in bytes
+    long getAllocatedBytes() {
+        return (long) seriesCount * capacity * BYTES_PER_SAMPLE;
+    }
+
+    private Series series(int beacon) {
+        if (beacon >= series.length) {
+            series = Arrays.copyOf(series, Math.max(series.length << 1, beacon + 1));
+        }
+        Series s = series[beacon];
+        if (s == null) {
+            if (seriesCount >= maxSeries) {
+                return null;
+            }
+            s = new Series(capacity);
+            series[beacon] = s;
+            seriesCount++;
+        }
+        return s;
+    }
+
+    // First logical index (0 = oldest sample) with a timestamp >= time, samples arrive in time order
+    private int lowerBound(Series s, long time) {
+        // Smallest stored time at or after time
+        long key = time - s.base;
+        key = key > 0 ? (key + TIME_UNIT - 1) / TIME_UNIT : key / TIME_UNIT;
+        int low = 0;
+        int high = s.size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (s.times[s.physical(mid)] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Ring buffer of the samples of one beacon
+     */
+    private static final class Series {
+        final int[] times;      // TIME_UNIT steps since base
+        final short[][] columns;
+        long base;              // Reception time of the first sample, elapsedRealtime() milliseconds
+        int head;               // Next write position
+        int size;
+        short lastSequence;
+
+        Series(int capacity) {
+            times = new int[capacity];
+            columns = new short[FIELD_COUNT][capacity];
+        }
+
+        // Position in the arrays of the sample at logical index i (0 = oldest)
+        int physical(int i) {
+            int p = head - size + i;
+            return p < 0 ? p + times.length : p;
+        }
+    }
+
+    /**
+     * View on a range of samples of one beacon, reusable between queries
+     */
+    static final class Range {
+        private Series series;
+        private int start;
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        /// Reception time of the i-th sample of the range, elapsedRealtime() milliseconds
+        long time(int i) {
+            return series.base + series.times[series.physical(start + i)] * TIME_UNIT;
+        }
+
+        /// Raw value of a sensor field (TEMP, HUM, ...) for the i-th sample of the range
+        short value(int field, int i) {
+            return series.columns[field][series.physical(start + i)];
+        }
+    }
+}
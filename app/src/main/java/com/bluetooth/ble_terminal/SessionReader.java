@@ -0,0 +1,172 @@
+package com.bluetooth.ble_terminal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.UUID;
+
+/**
+ * Reads the records of a capture written by SessionRecorder, in order. The closed segments are taken
+ * from the index, a last segment missing from it (capture not closed) is read up to its end marker.
+ * Each segment is mapped read-only while it is read.
+ *
+ * Not thread safe.
+ */
+final class SessionReader {
+
+    private final File directory;
+    private final ArrayList<Integer> segments = new ArrayList<>();
+    private final UUID[] uuids = new UUID[SessionRecorder.NO_UUID];
+    private long indexedRecords;
+    private long firstTimestamp;
+    private long lastTimestamp;
+
+    private int nextSegment;
+    private ByteBuffer buffer;
+
+    // Current record
+    private int type;
+    private UUID uuid;
+    private long timestamp;
+    private int length;
+    private int payload;
+
+    /**
+     * Open a capture, reads the index only
+     */
+    SessionReader(File directory) throws IOException {
+        this.directory = directory;
+        int number = 0;
+        File index = new File(directory, SessionRecorder.INDEX_NAME);
+        if (index.exists()) {
+            ByteBuffer entries = ByteBuffer.allocate((int) index.length());
+            FileInputStream in = new FileInputStream(index);
+            try {
+                in.getChannel().read(entries);
+            } finally {
+                in.close();
+            }
+            entries.flip();
+            while (entries.remaining() >= SessionRecorder.INDEX_ENTRY) {
+                number = entries.getInt();
+                entries.getInt();
+                long first = entries.getLong();
+                long last = entries.getLong();
+                entries.getLong();
+                int count = entries.getInt();
+                if (segments.isEmpty()) {
+                    firstTimestamp = first;
+                }
+                lastTimestamp = last;
+                indexedRecords += count;
+                segments.add(number++);
+            }
+        }
+        // Segments written after the last index entry
+        while (new File(directory, SessionRecorder.segmentName(number)).exists()) {
+            segments.add(number++);
+        }
+        if (segments.isEmpty()) {
+            throw new IOException("No session in " + directory);
+        }
+    }
+
+    /// Number of segments
+    int getSegmentCount() {
+        return segments.size();
+    }
+
+    /// Records in the indexed segments, the capture holds more if it was not closed
+    long getIndexedRecords() {
+        return indexedRecords;
+    }
+
+    /// Duration of the indexed segments in nanoseconds
+    long getIndexedDuration() {
+        return lastTimestamp - firstTimestamp;
+    }
+
+    /**
+     * Move to the next record
+     * @return False at the end of the capture
+     */
+    boolean next() throws IOException {
+        while (buffer == null || !buffer.hasRemaining() || buffer.get(buffer.position()) == 0) {
+            if (nextSegment == segments.size()) {
+                buffer = null;
+                return false;
+            }
+            buffer = map(segments.get(nextSegment++));
+        }
+        if (buffer.remaining() < SessionRecorder.RECORD_HEADER) {
+            throw new IOException("Truncated record in segment " + segments.get(nextSegment - 1));
+        }
+        type = buffer.get();
+        int index = buffer.get() & 0xFF;
+        length = buffer.getShort() & 0xFFFF;
+        timestamp = buffer.getLong();
+        payload = buffer.position();
+        if (buffer.remaining() < length) {
+            throw new IOException("Truncated record in segment " + segments.get(nextSegment - 1));
+        }
+        buffer.position(payload + length);
+        if (type == SessionRecorder.UUID_DEFINITION) {
+            uuids[index] = new UUID(buffer.getLong(payload), buffer.getLong(payload + 8));
+        }
+        uuid = index != SessionRecorder.NO_UUID ? uuids[index] : null;
+        return true;
+    }
+
+    /// SessionRecorder record type
+    int getType() {
+        return type;
+    }
+
+    /// UUID of the record, null if it has none
+    UUID getUuid() {
+        return uuid;
+    }
+
+    /// SystemClock.elapsedRealtimeNanos() when the record was captured
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * Copy the payload of the current record
+     * @param destination At least getLength() bytes
+     */
+    void getPayload(byte[] destination) {
+        int end = buffer.position();
+        buffer.position(payload);
+        buffer.get(destination, 0, length);
+        buffer.position(end);
+    }
+
+    private MappedByteBuffer map(int number) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(new File(directory, SessionRecorder.segmentName(number)), "r");
+        try {
+            // The mapping stays valid after the file is closed
+            MappedByteBuffer segment = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if (segment.remaining() < SessionRecorder.SEGMENT_HEADER || segment.getInt() != SessionRecorder.MAGIC) {
+                throw new IOException("Not a session segment: " + number);
+            }
+            if (segment.getShort() != SessionRecorder.VERSION) {
+                throw new IOException("Unsupported session version in segment " + number);
+            }
+            segment.getShort();
+            return segment;
+        } finally {
+            file.close();
+        }
+    }
+}
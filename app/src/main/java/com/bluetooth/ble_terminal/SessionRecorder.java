@@ -0,0 +1,342 @@
+package com.bluetooth.ble_terminal;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Captures the GATT traffic of a session into an append-only binary log: received notifications,
+ * written chunks, descriptor writes and connection state changes.
+ *
+ * The log is a directory of segments of SEGMENT_SIZE bytes, each a memory-mapped file. Recording a
+ * record copies it into the mapped buffer under a lock, there are no system calls on the calling thread.
+ * The next segment is mapped and its pages touched on a background thread while the current one is half
+ * full, and full segments are truncated and closed there as well.
+ *
+ * Segment layout (big endian):
+ *   header  magic "BLES" (4), version (2), segment number (2)
+ *   record  type (1), UUID index (1), payload length (2), SystemClock.elapsedRealtimeNanos() (8), payload
+ * A zero type byte marks the end of a segment that was not closed. A UUID_DEFINITION record assigns
+ * its 16 byte payload to its UUID index, the definitions are repeated at the start of every segment so
+ * each segment can be read on its own. Records without a UUID use NO_UUID.
+ *
+ * The index file holds one INDEX_ENTRY per closed segment: segment number (4), bytes used (4), first
+ * and last timestamp (8 + 8), number of the first record (8), record count (4). A capture can be listed
+ * and positioned by time from the index without reading the segments.
+ */
+final class SessionRecorder {
+
+    private static final String TAG = "Session Recorder";
+
+    // Record types
+    static final int RX              = 1;   // Notification or indication, the received value
+    static final int TX              = 2;   // Characteristic write, the chunk queued
+    static final int DESCRIPTOR      = 3;   // Descriptor write completed, status (1) and value
+    static final int CONNECTION      = 4;   // Connection state change, state (1) and status (1)
+    static final int UUID_DEFINITION = 5;   // UUID of the index, most then least significant bits
+
+    static final int NO_UUID = 0xFF;
+    static final int MAGIC = 0x424C4553;
+    static final int VERSION = 1;
+    static final int SEGMENT_HEADER = 8;
+    static final int RECORD_HEADER = 12;
+    static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    static final int INDEX_ENTRY = 36;
+    static final String INDEX_NAME = "index";
+    private static final int PAGE_SIZE = 4096;
+
+    private final File directory;
+    private final ExecutorService io;
+    private final UUID[] uuids = new UUID[NO_UUID];
+    private int uuidCount;
+
+    private Segment current;
+    private Future<Segment> spare;
+    private long records;
+    private long bytes;
+
+    /**
+     * Start a capture, the first segment is created before returning
+     * @param directory Directory receiving the segments and the index, created here and must not exist, so
+     *                  a capture never overwrites the segments of another one
+     */
+    SessionRecorder(File directory) throws IOException {
+        if (directory.exists()) {
+            throw new IOException(directory + " already exists");
+        }
+        if (!directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        this.directory = directory;
+        // Start an empty index, segments append their entries when retired
+        new FileOutputStream(new File(directory, INDEX_NAME), false).close();
+        this.io = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+            }
+        });
+        current = open(directory, 0);
+        current.firstRecord = 0;
+    }
+
+    static String segmentName(int number) {
+        return String.format(Locale.US, "%04d.seg", number);
+    }
+
+    /**
+     * Record a received value or a written chunk, any thread
+     * @param type      RX or TX
+     * @param timestamp SystemClock.elapsedRealtimeNanos() of the event
+     */
+    synchronized void record(int type, UUID uuid, byte[] data, long timestamp) {
+        ByteBuffer buffer = begin(type, uuid, data.length, timestamp);
+        if (buffer != null) {
+            buffer.put(data);
+        }
+    }
+
+    /// Record a completed descriptor write, uuid is the UUID of its characteristic
+    synchronized void recordDescriptor(UUID uuid, int status, byte[] value) {
+        int length = value != null ? value.length : 0;
+        ByteBuffer buffer = begin(DESCRIPTOR, uuid, 1 + length, SystemClock.elapsedRealtimeNanos());
+        if (buffer != null) {
+            buffer.put((byte) status);
+            if (value != null) {
+                buffer.put(value);
+            }
+        }
+    }
+
+    /// Record a connection state change
+    synchronized void recordConnection(int state, int status) {
+        ByteBuffer buffer = begin(CONNECTION, null, 2, SystemClock.elapsedRealtimeNanos());
+        if (buffer != null) {
+            buffer.put((byte) state).put((byte) status);
+        }
+    }
+
+    /**
+     * Stop the capture. The last segment is truncated and the index completed on the background thread.
+     */
+    synchronized void close() {
+        if (current == null) {
+            return;
+        }
+        retire(current);
+        current = null;
+        final Future<Segment> unused = spare;
+        spare = null;
+        io.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Mapped before the close was queued, the single thread already completed it
+                if (unused != null) {
+                    try {
+                        Segment segment = unused.get();
+                        segment.file.close();
+                        if (!new File(directory, segmentName(segment.number)).delete()) {
+                            Log.w(TAG, "Cannot delete unused segment " + segment.number);
+                        }
+                    } catch (InterruptedException | ExecutionException | IOException e) {
+                        Log.w(TAG, "Unused segment", e);
+                    }
+                }
+            }
+        });
+        io.shutdown();
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    synchronized boolean isRecording() {
+        return current != null;
+    }
+
+    /// Records captured, including UUID definitions
+    synchronized long getRecordCount() {
+        return records;
+    }
+
+    /// Bytes captured, headers included
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Start a record
+     * @return Buffer positioned at the payload, null if the capture is stopped
+     */
+    private ByteBuffer begin(int type, UUID uuid, int length, long timestamp) {
+        if (current == null) {
+            return null;
+        }
+        int index = uuid != null ? indexOf(uuid, timestamp) : NO_UUID;
+        if (current == null || (current.buffer.remaining() < RECORD_HEADER + length && !rotate(timestamp))) {
+            return null;
+        }
+        return header(type, index, length, timestamp);
+    }
+
+    private ByteBuffer header(int type, int index, int length, long timestamp) {
+        Segment segment = current;
+        if (segment.records == 0) {
+            segment.firstTimestamp = timestamp;
+        }
+        segment.lastTimestamp = timestamp;
+        segment.records++;
+        records++;
+        bytes += RECORD_HEADER + length;
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.put((byte) type).put((byte) index).putShort((short) length).putLong(timestamp);
+        if (spare == null && buffer.position() > SEGMENT_SIZE / 2) {
+            final int number = segment.number + 1;
+            spare = io.submit(new Callable<Segment>() {
+                @Override
+                public Segment call() throws IOException {
+                    return open(directory, number);
+                }
+            });
+        }
+        return buffer;
+    }
+
+    private int indexOf(UUID uuid, long timestamp) {
+        for (int i = 0; i < uuidCount; i++) {
+            if (uuids[i] == uuid || uuids[i].equals(uuid)) {
+                return i;
+            }
+        }
+        if (uuidCount == uuids.length) {
+            return NO_UUID;
+        }
+        int index = uuidCount++;
+        uuids[index] = uuid;
+        if (current.buffer.remaining() >= RECORD_HEADER + 16) {
+            define(index, timestamp);
+        } else {
+            // Defines all UUIDs at the start of the next segment
+            rotate(timestamp);
+        }
+        return index;
+    }
+
+    private void define(int index, long timestamp) {
+        header(UUID_DEFINITION, index, 16, timestamp)
+                .putLong(uuids[index].getMostSignificantBits())
+                .putLong(uuids[index].getLeastSignificantBits());
+    }
+
+    /**
+     * Continue in the next segment
+     * @return False if it could not be created, the capture is then stopped
+     */
+    private boolean rotate(long timestamp) {
+        Segment next;
+        try {
+            // Normally mapped already, only waits when the segment filled faster than a file is created
+            next = spare != null ? spare.get() : open(directory, current.number + 1);
+        } catch (InterruptedException | ExecutionException | IOException e) {
+            Log.e(TAG, "Cannot create segment " + (current.number + 1) + ", recording stopped", e);
+            retire(current);
+            current = null;
+            spare = null;
+            io.shutdown();
+            return false;
+        }
+        spare = null;
+        retire(current);
+        next.firstRecord = records;
+        current = next;
+        for (int i = 0; i < uuidCount; i++) {
+            define(i, timestamp);
+        }
+        return true;
+    }
+
+    /// Truncate and close a segment and add its index entry, on the background thread
+    private void retire(final Segment segment) {
+        final int used = segment.buffer.position();
+        io.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    segment.buffer.force();
+                    segment.file.setLength(used);
+                    segment.file.close();
+                    ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+                    entry.putInt(segment.number).putInt(used)
+                            .putLong(segment.firstTimestamp).putLong(segment.lastTimestamp)
+                            .putLong(segment.firstRecord).putInt(segment.records);
+                    FileOutputStream index = new FileOutputStream(new File(directory, INDEX_NAME), true);
+                    try {
+                        index.write(entry.array());
+                    } finally {
+                        index.close();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot close segment " + segment.number, e);
+                }
+            }
+        });
+    }
+
+    private static Segment open(File directory, int number) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(new File(directory, segmentName(number)), "rw");
+        try {
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            // Touch every page so the recording thread does not take the page faults
+            for (int i = SEGMENT_HEADER; i < SEGMENT_SIZE; i += PAGE_SIZE) {
+                buffer.put(i, (byte) 0);
+            }
+            buffer.putInt(MAGIC).putShort((short) VERSION).putShort((short) number);
+            return new Segment(number, file, buffer);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Mapped segment file, with the figures of its index entry
+     */
+    private static final class Segment {
+        final int number;
+        final RandomAccessFile file;
+        final MappedByteBuffer buffer;
+        long firstRecord;
+        long firstTimestamp;
+        long lastTimestamp;
+        int records;
+
+        Segment(int number, RandomAccessFile file, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+}
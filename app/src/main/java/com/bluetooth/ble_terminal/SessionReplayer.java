@@ -0,0 +1,190 @@
+package com.bluetooth.ble_terminal;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays the notifications of a capture into the RX path of the service, with the UUIDs and values
+ * they were received with, so the terminal processes them exactly like live traffic. Replay runs on its
+ * own thread, as the GATT callbacks do, at the captured pace, N times faster or as fast as the listeners
+ * take the data.
+ *
+ * At most WINDOW notifications are dispatched and not yet processed by all listeners, the replay waits
+ * for the listeners beyond that instead of queuing the capture on their threads. Throughput is measured
+ * up to the last notification the listeners processed.
+ *
+ * Each replayed notification is a new array stamped with the time it is replayed, the listeners can
+ * measure their latency the same way as for live notifications. Records other than RX are skipped.
+ */
+final class SessionReplayer implements Runnable {
+
+    private static final String TAG = "Session Replay";
+
+    /// Speed to replay without waiting between notifications
+    static final double MAX_SPEED = 0;
+
+    /// Notifications dispatched ahead of the listeners
+    static final int WINDOW = 64;
+
+    /**
+     * End of the replay, invoked on the replay thread
+     */
+    interface Listener {
+        /**
+         * @param error Failure reading the capture, null when the replay completed or was stopped
+         */
+        void onReplayFinished(SessionReplayer replayer, IOException error);
+    }
+
+    private final File directory;
+    private final BLEService service;
+    private final double speed;
+    private final Listener listener;
+    private volatile Thread worker;
+    private final Semaphore credits = new Semaphore(WINDOW);
+
+    // Progress, written by the replay thread
+    private volatile long skipped;
+    private volatile long startNanos;
+    private volatile long endNanos;
+
+    // Written by the listener thread processing a notification last, guarded by this
+    private long processed;
+    private long processedBytes;
+    private long lastProcessedNanos;
+
+    /**
+     * @param directory Capture directory written by SessionRecorder
+     * @param speed     Multiple of the captured pace, 1 for real time, MAX_SPEED for no pacing
+     */
+    SessionReplayer(File directory, BLEService service, double speed, Listener listener) {
+        this.directory = directory;
+        this.service = service;
+        this.speed = speed;
+        this.listener = listener;
+    }
+
+    void start() {
+        if (worker == null) {
+            worker = new Thread(this, TAG);
+            worker.start();
+        }
+    }
+
+    /// Stop replaying, the listener is still invoked
+    void stop() {
+        Thread thread = worker;
+        worker = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        Thread self = Thread.currentThread();
+        IOException error = null;
+        startNanos = System.nanoTime();
+        try {
+            SessionReader reader = new SessionReader(directory);
+            long base = -1;
+            while (worker == self && reader.next()) {
+                if (reader.getType() != SessionRecorder.RX || reader.getUuid() == null) {
+                    skipped++;
+                    continue;
+                }
+                if (base < 0) {
+                    base = reader.getTimestamp();
+                }
+                if (speed != MAX_SPEED) {
+                    long due = startNanos + (long) ((reader.getTimestamp() - base) / speed);
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0 && worker == self) {
+                        LockSupport.parkNanos(this, wait);
+                    }
+                }
+                credits.acquire();
+                // The listeners may keep the value, as they keep the one of a live notification
+                final byte[] data = new byte[reader.getLength()];
+                reader.getPayload(data);
+                service.dispatchReceived(reader.getUuid(), data, SystemClock.elapsedRealtimeNanos(), new Runnable() {
+                    @Override
+                    public void run() {
+                        onProcessed(data.length);
+                    }
+                });
+            }
+            // Wait for the listeners to process the last notifications
+            credits.acquire(WINDOW);
+            credits.release(WINDOW);
+        } catch (IOException e) {
+            error = e;
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+        synchronized (this) {
+            endNanos = processed > 0 ? lastProcessedNanos : System.nanoTime();
+        }
+        worker = null;
+        listener.onReplayFinished(this, error);
+    }
+
+    private synchronized void onProcessed(int length) {
+        processed++;
+        processedBytes += length;
+        lastProcessedNanos = System.nanoTime();
+        credits.release();
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    boolean isRunning() {
+        return worker != null;
+    }
+
+    /// Notifications processed by all listeners
+    synchronized long getNotificationCount() {
+        return processed;
+    }
+
+    /// Bytes of the notifications processed by all listeners
+    synchronized long getBytes() {
+        return processedBytes;
+    }
+
+    /// Records skipped, everything but notifications
+    long getSkippedCount() {
+        return skipped;
+    }
+
+    /// Time replaying so far, or until the last notification was processed once finished
+    long getElapsedNanos() {
+        long end = endNanos != 0 ? endNanos : System.nanoTime();
+        return startNanos != 0 ? end - startNanos : 0;
+    }
+
+    /// Bytes per second processed by the listeners
+    double getRate() {
+        long elapsed = getElapsedNanos();
+        return elapsed > 0 ? getBytes() * 1e9 / elapsed : 0;
+    }
+
+    static String speedName(double speed) {
+        return speed == MAX_SPEED ? "max speed" : String.format(Locale.US, "%.0fx", speed);
+    }
+
+    /**
+     * @return Readout such as "Replay 10x: 1520 notifications, 370.9 kB, 41.2 kB/s"
+     */
+    String describe() {
+        return String.format(Locale.getDefault(), "Replay %s: %d notifications, %.1f kB, %.1f kB/s",
+                speedName(speed), getNotificationCount(), getBytes() / 1000.0, getRate() / 1000);
+    }
+}
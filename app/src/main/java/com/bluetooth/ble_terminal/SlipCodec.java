@@ -0,0 +1,88 @@
+package com.bluetooth.ble_terminal;
+
+/**
+ * SLIP framing (RFC 1055): frames end with END, END and ESC bytes in the data are escaped. Each frame
+ * also starts with END to flush noise received before it, empty frames are ignored.
+ */
+final class SlipCodec extends FrameCodec {
+
+    private static final byte END     = (byte) 0xC0;
+    private static final byte ESC     = (byte) 0xDB;
+    private static final byte ESC_END = (byte) 0xDC;
+    private static final byte ESC_ESC = (byte) 0xDD;
+
+    private boolean escaped;
+
+    SlipCodec(int crcLength) {
+        super(crcLength);
+    }
+
+    @Override
+    protected int maxFrameLength(int frameLength) {
+        return 2 * frameLength + 2;
+    }
+
+    @Override
+    protected int beginFrame(byte[] dst, int pos, int frameLength) {
+        dst[pos] = END;
+        return pos + 1;
+    }
+
+    @Override
+    protected int put(byte[] src, int offset, int length, byte[] dst, int pos) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            byte b = src[i];
+            if (b == END) {
+                dst[pos++] = ESC;
+                dst[pos++] = ESC_END;
+            } else if (b == ESC) {
+                dst[pos++] = ESC;
+                dst[pos++] = ESC_ESC;
+            } else {
+                dst[pos++] = b;
+            }
+        }
+        return pos;
+    }
+
+    @Override
+    protected int endFrame(byte[] dst, int pos) {
+        dst[pos] = END;
+        return pos + 1;
+    }
+
+    @Override
+    void decode(byte[] src, int offset, int length, Listener listener) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            byte b = src[i];
+            if (b == END) {
+                if (discarding || escaped) {
+                    corrupt(listener);
+                } else if (frameLength > 0) {
+                    deliver(frame, 0, frameLength, listener);
+                }
+                reset();
+            } else if (escaped) {
+                escaped = false;
+                if (b == ESC_END) {
+                    append(END);
+                } else if (b == ESC_ESC) {
+                    append(ESC);
+                } else {
+                    // Invalid escape, drop the frame
+                    discarding = true;
+                }
+            } else if (b == ESC) {
+                escaped = true;
+            } else {
+                append(b);
+            }
+        }
+    }
+
+    @Override
+    void reset() {
+        super.reset();
+        escaped = false;
+    }
+}
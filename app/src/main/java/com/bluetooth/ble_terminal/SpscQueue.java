@@ -0,0 +1,75 @@
+package com.bluetooth.ble_terminal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer thread. Elements are kept in
+ * a power of two ring, the producer only writes the tail index and the consumer only writes the head
+ * index, so neither side blocks or allocates.
+ */
+final class SpscQueue<E> {
+
+    private final Object[] buffer;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();   // Next element to take, written by the consumer
+    private final AtomicLong tail = new AtomicLong();   // Next free slot, written by the producer
+    // Last index seen of the other side, avoids reading the shared counter on every call
+    private long cachedHead;
+    private long cachedTail;
+
+    /**
+     * @param capacity Maximum number of queued elements, rounded up to a power of two
+     */
+    SpscQueue(int capacity) {
+        int size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        buffer = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Add an element, producer thread only
+     * @return False if the queue is full
+     */
+    boolean offer(E element) {
+        long t = tail.get();
+        if (t - cachedHead >= buffer.length) {
+            cachedHead = head.get();
+            if (t - cachedHead >= buffer.length) {
+                return false;
+            }
+        }
+        buffer[(int) t & mask] = element;
+        // Volatile write, publishes the element and orders it before a following read of a wake up flag
+        tail.set(t + 1);
+        return true;
+    }
+
+    /**
+     * Take the oldest element, consumer thread only
+     * @return Element, or null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        long h = head.get();
+        if (h >= cachedTail) {
+            cachedTail = tail.get();
+            if (h >= cachedTail) {
+                return null;
+            }
+        }
+        int slot = (int) h & mask;
+        E element = (E) buffer[slot];
+        buffer[slot] = null;
+        head.lazySet(h + 1);
+        return element;
+    }
+
+    /// Number of queued elements, approximate while the other side is running
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    int capacity() {
+        return buffer.length;
+    }
+}
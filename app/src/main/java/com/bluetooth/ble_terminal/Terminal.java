@@ -1,12 +1,10 @@
 package com.bluetooth.ble_terminal;
 
-import android.app.Activity;
 import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
@@ -15,28 +13,42 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.SystemClock;
+import android.provider.OpenableColumns;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SimpleItemAnimator;
 import android.util.Log;
 import android.view.LayoutInflater;
+import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
-import android.widget.BaseAdapter;
 import android.widget.Button;
 import android.widget.EditText;
-import android.widget.ListView;
 import android.widget.PopupMenu;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 
 /**
  * This class presents a terminal-style UI to allow users to send and receive characters via BLE
@@ -52,16 +64,31 @@ public class Terminal extends AppCompatActivity {
 
     private final String TAG = "TerminalWindow";
     private static final int REQUEST_ENABLE_BT                  = 1;
+    private static final int REQUEST_SEND_FILE                  = 2;
+    private static final int REQUEST_RECEIVE_FILE               = 3;
 
     // Internal intent for notifying that our background thread finished sending our message
     private static final String ACTION_TX_FINISHED   = "com.bluetooth.ble_terminal.ACTION_TX_FINISHED";
     private static final String ACTION_TX_ERROR      = "com.bluetooth.ble_terminal.ACTION_TX_ERROR";
 
+    /// Boolean extra opening the terminal without a device to replay a recorded session \hideinitializer
+    public static final String EXTRA_REPLAY = "com.bluetooth.ble_terminal.REPLAY";
+
     private enum FORMAT {Ascii,Hex};
     private enum EOL_TYPE {None,CR,LF,CRLF};
 
     private static FORMAT   input_format = FORMAT.Ascii;
     private static EOL_TYPE eol_type     = EOL_TYPE.None;
+    private static int link_profile      = LinkProfile.THROUGHPUT;
+    private static int framing           = 0;       // Index in FRAMING_NAMES, 0 for raw data
+
+    // Framing options: codec type and CRC trailer
+    private static final String[] FRAMING_NAMES = {"None", "COBS", "COBS + CRC-16", "SLIP", "SLIP + CRC-16",
+            "Length + CRC-16", "Length + CRC-32"};
+    private static final int[] FRAMING_TYPES = {-1, FrameCodec.COBS, FrameCodec.COBS, FrameCodec.SLIP,
+            FrameCodec.SLIP, FrameCodec.LENGTH_PREFIX, FrameCodec.LENGTH_PREFIX};
+    private static final int[] FRAMING_CRCS = {FrameCodec.CRC_NONE, FrameCodec.CRC_NONE, FrameCodec.CRC_16,
+            FrameCodec.CRC_NONE, FrameCodec.CRC_16, FrameCodec.CRC_16, FrameCodec.CRC_32};
 
     // TODO
     /// Please edit here the different UUID for your specific device
@@ -74,15 +101,45 @@ public class Terminal extends AppCompatActivity {
     public static final UUID BATTERY_SERVICE_UUID = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
     public static final UUID BATTERY_LEVEL_UUID = UUID.fromString("00002a19-0000-1000-8000-00805f9b34fb");
 
-    private final int MAX_MESSAGE_COUNT = 20;   // Number of messages to show in UI
+    private static final int SCROLLBACK_BUDGET = 1024 * 1024;   // Bytes of message text kept for the UI
+    private static final int MAX_SHOWN_LENGTH = 8192;           // Characters of a message shown in its row
+    private static final int TX_WINDOW = 8;     // Chunks queued ahead of the stack by a write stream
+    private static final int TX_TEST_SIZE = 1024 * 1024;
+    private static final int RX_LINE_CAPACITY = 4096;   // Longest received line shown whole, in bytes
+    private static final long RX_FLUSH_TIMEOUT = 200;   // ms without data before a partial line is shown
     private String rxMessage;
 
     // UI
     private Handler mHandler=new Handler();
-    private ListView messagePane;
+    private RecyclerView messagePane;
+    private TextView throughputLabel;
+    private final ThroughputMeter txThroughput = new ThroughputMeter();
+    private TxExecutor txExecutor;
+    private final HexCodec hexDecoder = new HexCodec();
+    private byte[] hexBuffer = new byte[HexCodec.encodedLength(BLEService.MAX_MTU)];
+    private FileTransfer fileTransfer;
+    // Framing of the terminal messages, null for raw data
+    private FrameCodec txFramer;
+    private FrameCodec rxDeframer;
+    // Reassembles received Ascii text into lines
+    private LineAssembler lineAssembler;
+    private FileReceiver fileReceiver;
+    // Received data is written to the file on its own thread, the UI only shows progress and errors
+    private HandlerThread fileThread;
+    private Handler fileHandler;
+    private BLEService.RxListener fileRxListener;
+    // Replay of a recorded session into the RX path, null when not replaying
+    private SessionReplayer replayer;
+    // Time from the notification completing a line to the line shown, UI thread only
+    private final LatencyHistogram rxLineLatency = new LatencyHistogram();
+    private long rxTimestamp;
+    // Set in onDestroy, RX tasks already posted to the UI thread are dropped
+    private boolean destroyed;
+    // Opened to replay a session, there is no connected device and nothing is sent
+    private boolean replayOnly;
+    private static final long PROGRESS_INTERVAL = 500;     // ms between transfer progress updates
     private QueueAdapter messageAdapter;
-    private ArrayList<String> messageLog;
-    private ArrayList<Character> direction;
+    private Scrollback scrollback;
     private ArrayAdapter<CharSequence> inputFormatSelector, lineFinishSelector;
 
     // Bluetooth
@@ -107,6 +164,7 @@ public class Terminal extends AppCompatActivity {
         Log.d(TAG, "onCreate");
 
         setContentView(com.bluetooth.ble_terminal.R.layout.activity_terminal);
+        replayOnly = getIntent().getBooleanExtra(EXTRA_REPLAY, false);
 
         // Set Back button listener
         findViewById(com.bluetooth.ble_terminal.R.id.btn_back).setOnClickListener(new View.OnClickListener() {
@@ -132,7 +190,9 @@ public class Terminal extends AppCompatActivity {
     protected void onResume(){
         super.onResume();
         // When the activity resumes we should check that our connection/bluetooth states are still valid
-        checkBluetoothEnabled();
+        if (!replayOnly){
+            checkBluetoothEnabled();
+        }
     }
 
     /**
@@ -142,6 +202,17 @@ public class Terminal extends AppCompatActivity {
     protected void onDestroy(){
         super.onDestroy();
 
+        destroyed = true;
+        if (mService != null){
+            mService.removeRxListener(rxListener);
+        }
+        if (lineAssembler != null){
+            lineAssembler.clear();
+        }
+        if (messageAdapter != null){
+            messageAdapter.renderer.cancel();
+        }
+
         try { // In case receiver wasn't registered
             unregisterReceiver(messageReceiver);
         } catch (IllegalArgumentException e){Log.w(TAG,"MessageStatusRx eception");}
@@ -150,6 +221,14 @@ public class Terminal extends AppCompatActivity {
             unregisterReceiver(gattStatusReceiver);
         } catch (IllegalArgumentException e){Log.w(TAG,"GattStatusRx exception");}
 
+        if (txExecutor != null){
+            txExecutor.shutdown();
+        }
+        stopReceiving();
+        if (replayer != null){
+            replayer.stop();
+        }
+
         if (mBluetoothGatt != null){
             mBluetoothGatt.close();
             mBluetoothGatt.disconnect();
@@ -160,7 +239,8 @@ public class Terminal extends AppCompatActivity {
 
     /**
      * Interface to BLE service, registers receiver for GATT events (device connection, service discovery
-     * etc.) and requests connection to device. If connection fails the activity is terminated.
+     * etc.) and requests connection to device. If connection fails the activity is terminated. When opened
+     * for a replay only the message panel is initialised.
      */
     private ServiceConnection mServiceConnection = new ServiceConnection() {
 
@@ -168,6 +248,10 @@ public class Terminal extends AppCompatActivity {
             try {
                 mService = ((BLEService.LocalBinder) rawBinder).getService();
                 Log.d(TAG, "onServiceConnected mService= " + mService);
+                if (replayOnly) {
+                    replayInit();
+                    return;
+                }
 
                 // Register receiver for connection status events
                 IntentFilter filter = new IntentFilter();
@@ -219,44 +303,113 @@ public class Terminal extends AppCompatActivity {
     };
 
     /**
-     * Receiver for broadcasts related to GATT messages. Handles printing messages to UI.
-     *
-     * ACTION_DATA_RECEIVED     Notification of new data received from remote device.\n
-     * ACTION_TX_FINISHED       Notification from background thread that transmission is finished.\n
+     * Runs tasks on the UI thread in order
      */
-    BroadcastReceiver messageReceiver = new BroadcastReceiver() {
+    private final Executor uiExecutor = new Executor() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-            if (action.equals(BLEService.ACTION_DATA_RECEIVED)){
-
-                //Recieved battery level
-                if(intent.getSerializableExtra("CHAR").equals(BATTERY_LEVEL_UUID)){
-                    if (messageAdapter.getCurrentDirection() != 'B'){
-                        messageAdapter.newMessage('B');
-                    }
+        public void execute(Runnable command) {
+            mHandler.post(command);
+        }
+    };
 
-                    byte[] rx = intent.getByteArrayExtra("DATA");
-                    int battery_level = rx[0] & 0xFF;
-                    printMessageToScreen("Battery level: " + String.valueOf(battery_level)+" ");
-                    return;
+    /**
+     * Receives the notification data from the BLE service on the UI thread and prints it. While receiving
+     * to a file the data is written by fileRxListener instead and not shown.
+     */
+    private final BLEService.RxListener rxListener = new BLEService.RxListener() {
+        @Override
+        public void onDataReceived(UUID uuid, byte[] rx, long timestampNanos) {
+            if (destroyed){
+                return;
+            }
+            rxTimestamp = timestampNanos;
+            //Recieved battery level
+            if (uuid.equals(BATTERY_LEVEL_UUID)){
+                if (messageAdapter.getCurrentDirection() != 'B'){
+                    messageAdapter.newMessage('B');
                 }
 
-                if (messageAdapter.getCurrentDirection() != 'R'){
-                    messageAdapter.newMessage('R');
-                }
+                int battery_level = rx[0] & 0xFF;
+                printMessageToScreen("Battery level: " + String.valueOf(battery_level)+" ");
+                return;
+            }
 
-                byte[] rx = intent.getByteArrayExtra("DATA");
-                Log.i(TAG,"length:" + rx.length);
-                switch(input_format){
-                    case Hex:
-                        // Hex mode
-                        rx = ascii2hex(intent.getByteArrayExtra("DATA"));
-                        break;
-                }
+            if (fileReceiver != null){
+                // Receiving to a file, the data is not shown
+                return;
+            }
+
+            if (rxDeframer != null){
+                // Every complete frame is shown as its own message, partial frames wait for the next notification
+                rxDeframer.decode(rx, 0, rx.length, frameListener);
+                return;
+            }
 
-                printMessageToScreen(new String(rx));
+            if (input_format == FORMAT.Ascii){
+                lineAssembler.append(rx, 0, rx.length);
+                return;
             }
+
+            if (messageAdapter.getCurrentDirection() != 'R'){
+                messageAdapter.newMessage('R');
+            }
+            showReceived(rx, 0, rx.length);
+        }
+    };
+
+    /// Runs the flush timeout of the line assembler on the UI thread, where the data is appended
+    private final LineAssembler.Scheduler rxScheduler = new LineAssembler.Scheduler() {
+        @Override
+        public void postDelayed(Runnable task, long delay) {
+            mHandler.postDelayed(task, delay);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            mHandler.removeCallbacks(task);
+        }
+    };
+
+    private final LineAssembler.Listener lineListener = new LineAssembler.Listener() {
+        @Override
+        public void onLine(CharSequence line, boolean complete) {
+            if (messageAdapter.getCurrentDirection() != 'R'){
+                messageAdapter.newMessage('R');
+            }
+            printMessageToScreen(line);
+            if (complete) {
+                printMessageToScreen("\n");
+                rxLineLatency.record(SystemClock.elapsedRealtimeNanos() - rxTimestamp);
+            }
+        }
+    };
+
+    /**
+     * @return Line ending of the received text, the one selected for sending
+     */
+    private static int rxEol(){
+        switch(eol_type){
+            case CR:
+                return LineAssembler.EOL_CR;
+            case LF:
+                return LineAssembler.EOL_LF;
+            case CRLF:
+                return LineAssembler.EOL_CRLF;
+            default:
+                return LineAssembler.EOL_NONE;
+        }
+    }
+
+    /**
+     * Receiver for broadcasts related to sent messages. Handles printing messages to UI.
+     *
+     * ACTION_TX_FINISHED       Notification that the last packet of a message was sent.\n
+     * ACTION_TX_ERROR          Notification that a message could not be sent.\n
+     */
+    BroadcastReceiver messageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
             if (action.equals(ACTION_TX_FINISHED)){
                 // Finished transmitting, display to screen and clear message
                 if (messageAdapter.getCurrentDirection() != 'T'){
@@ -264,36 +417,46 @@ public class Terminal extends AppCompatActivity {
                 }
                 printMessageToScreen(intent.getStringExtra("MESSAGE"));
                 ((EditText) findViewById(com.bluetooth.ble_terminal.R.id.txt_txmessage)).setText("");
+                updateThroughputLabel();
             }
             if (action.equals(ACTION_TX_ERROR)){
                 // An error occurred during sending, display the message (don't clear text - allow user to edit)
                 Toast.makeText(getApplicationContext(),intent.getStringExtra("MESSAGE"),Toast.LENGTH_SHORT).show();
             }
+        }
+    };
 
-            if(action.equals(BLEService.ACTION_DESCRIPTOR_WROTE)){
+    private final FrameCodec.Listener frameListener = new FrameCodec.Listener() {
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            messageAdapter.newMessage('R');
+            showReceived(buffer, offset, length);
+        }
 
-                if (mBluetoothGatt.getService(DEVICE_SERVICE_UUID).getCharacteristic(INDICATION_CHARACTERISTIC_UUID) == null){
-                    Log.d(TAG, "Old version");
-                    // This version doesn't support latest characteristics
-                    return;
-                }
+        @Override
+        public void onCorruptFrame() {
+            Log.w(TAG, "Corrupt frame dropped");
+            updateThroughputLabel();
+        }
+    };
 
-                if(intent.getStringExtra("Type").equals("Notification")) {
-                    // Enable indication on receiving data
-                    mBluetoothGatt.setCharacteristicNotification(IndicationChar, true);
-                    BluetoothGattDescriptor indication_descriptor = IndicationChar.getDescriptor(CCCD);
-                    indication_descriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
-                    mBluetoothGatt.writeDescriptor(indication_descriptor);
-                }else if(intent.getStringExtra("Type").equals("Indication")){
-                    // Enable notification on receiving data
-                    mBluetoothGatt.setCharacteristicNotification(batteryLevelChar, true);
-                    BluetoothGattDescriptor notification_descriptor = batteryLevelChar.getDescriptor(CCCD);
-                    notification_descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                    mBluetoothGatt.writeDescriptor(notification_descriptor);
+    /**
+     * @brief Prints received data in the selected format to the current message
+     */
+    private void showReceived(byte[] data, int offset, int length){
+        switch(input_format){
+            case Hex:
+                // Hex mode, encoded into a buffer reused for every notification
+                int hexLength = HexCodec.encodedLength(length);
+                if (hexBuffer.length < hexLength) {
+                    hexBuffer = new byte[hexLength];
                 }
-            }
+                HexCodec.encode(data, offset, length, hexBuffer, 0);
+                printMessageToScreen(new String(hexBuffer, 0, hexLength));
+                return;
         }
-    };
+        printMessageToScreen(new String(data, offset, length));
+    }
 
     private View.OnClickListener menu_click_listener = new View.OnClickListener() {
         @Override
@@ -301,9 +464,29 @@ public class Terminal extends AppCompatActivity {
             PopupMenu popup = new PopupMenu(getApplicationContext(), view);
             popup.setOnMenuItemClickListener(menu_item_click_listener);
             MenuInflater inflater = popup.getMenuInflater();
-            inflater.inflate(R.menu.menu_items, popup.getMenu());
-            popup.getMenu().getItem(0).setTitle("Format: " + input_format.name());
-            popup.getMenu().getItem(1).setTitle("EOL: " + eol_type.name());
+            Menu menu = popup.getMenu();
+            inflater.inflate(R.menu.menu_items, menu);
+            menu.findItem(R.id.opt_inputformat).setTitle("Format: " + input_format.name());
+            menu.findItem(R.id.opt_eolselect).setTitle("EOL: " + eol_type.name());
+            menu.findItem(R.id.opt_linkprofile).setTitle("Link: " + LinkProfile.name(link_profile));
+            menu.findItem(R.id.opt_framing).setTitle("Framing: " + FRAMING_NAMES[framing]);
+            menu.findItem(R.id.opt_receivefile).setTitle(fileReceiver != null ? "Stop receiving to file" : "Receive to file");
+            menu.findItem(R.id.opt_record).setTitle(mService.getRecorder() != null ? "Stop recording" : "Record session");
+            menu.findItem(R.id.opt_replay).setTitle(replayer != null ? "Stop replay" : "Replay session");
+            if (fileTransfer != null && fileTransfer.getState() != FileTransfer.COMPLETE) {
+                menu.findItem(R.id.opt_pausetransfer).setTitle(fileTransfer.getState() == FileTransfer.SENDING ? "Pause file transfer" : "Resume file transfer");
+            } else {
+                menu.findItem(R.id.opt_pausetransfer).setVisible(false);
+            }
+            if (replayOnly) {
+                // Options of a connection
+                menu.findItem(R.id.opt_linkprofile).setVisible(false);
+                menu.findItem(R.id.opt_txtest).setVisible(false);
+                menu.findItem(R.id.opt_sendfile).setVisible(false);
+                menu.findItem(R.id.opt_pausetransfer).setVisible(false);
+                menu.findItem(R.id.opt_txstats).setVisible(false);
+                menu.findItem(R.id.opt_record).setVisible(false);
+            }
             popup.show();
         }
     };
@@ -323,6 +506,58 @@ public class Terminal extends AppCompatActivity {
                 case R.id.opt_eolselect:
                     showEOLSelect();
                     return true;
+                case R.id.opt_linkprofile:
+                    showLinkSelect();
+                    return true;
+                case R.id.opt_txtest:
+                    runThroughputTest();
+                    return true;
+                case R.id.opt_sendfile:
+                    if (fileTransfer != null && fileTransfer.getState() == FileTransfer.SENDING) {
+                        Toast.makeText(getApplicationContext(), "A file transfer is in progress", Toast.LENGTH_SHORT).show();
+                    } else {
+                        Intent open = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                        open.addCategory(Intent.CATEGORY_OPENABLE);
+                        open.setType("*/*");
+                        startActivityForResult(open, REQUEST_SEND_FILE);
+                    }
+                    return true;
+                case R.id.opt_receivefile:
+                    if (fileReceiver != null) {
+                        Toast.makeText(getApplicationContext(), "Received " + fileReceiver.getReceived() + " bytes", Toast.LENGTH_SHORT).show();
+                        stopReceiving();
+                    } else {
+                        Intent create = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+                        create.addCategory(Intent.CATEGORY_OPENABLE);
+                        create.setType("application/octet-stream");
+                        create.putExtra(Intent.EXTRA_TITLE, "received.bin");
+                        startActivityForResult(create, REQUEST_RECEIVE_FILE);
+                    }
+                    return true;
+                case R.id.opt_framing:
+                    showFramingSelect();
+                    return true;
+                case R.id.opt_txstats:
+                    showTxStats();
+                    return true;
+                case R.id.opt_record:
+                    toggleRecording();
+                    return true;
+                case R.id.opt_replay:
+                    if (replayer != null) {
+                        replayer.stop();
+                    } else {
+                        showReplaySelect();
+                    }
+                    return true;
+                case R.id.opt_pausetransfer:
+                    if (fileTransfer.getState() == FileTransfer.SENDING) {
+                        fileTransfer.pause();
+                    } else {
+                        fileTransfer.start(txExecutor);
+                        showProgress();
+                    }
+                    return true;
                 default:
                     return false;
             }
@@ -342,6 +577,8 @@ public class Terminal extends AppCompatActivity {
             @Override
             public void onClick(DialogInterface dialog, int which) {
                 input_format = FORMAT.values()[which];
+                // Show text still waiting for its line ending before switching
+                lineAssembler.flush();
                 ((Button)findViewById(R.id.btn_format)).setText(input_format.name());
             }
         });
@@ -361,28 +598,39 @@ public class Terminal extends AppCompatActivity {
             @Override
             public void onClick(DialogInterface dialog, int which) {
                 eol_type = EOL_TYPE.values()[which];
+                lineAssembler.setEol(rxEol());
                 ((Button)findViewById(R.id.btn_eol)).setText("EOL: " + eol_type.name());
             }
         });
         builder.show();
     }
 
+    /**
+     * Show an AlertDialog to select the link profile (Throughput, Balanced, Low power)
+     */
+    private void showLinkSelect(){
+
+        final CharSequence profiles[] = new CharSequence[]{"Throughput","Balanced","Low power"};
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Select link profile");
+        builder.setItems(profiles, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                link_profile = which;
+                mService.setLinkProfile(link_profile);
+            }
+        });
+        builder.show();
+    }
+
     /**
      * Initialises page elements upon successful device connection
      */
     private void pageInit(){
 
         ((TextView) findViewById(com.bluetooth.ble_terminal.R.id.lbl_subheading)).setText(mBluetoothGatt.getDevice().getName());
-
-        // Set options listener
-        (findViewById(R.id.btn_options_menu)).setOnClickListener(menu_click_listener);
-
-        // Configure the message panel
-        messageLog = new ArrayList<>();
-        direction = new ArrayList<>();
-        messagePane = (ListView) findViewById(com.bluetooth.ble_terminal.R.id.lv_messagepanel);
-        messageAdapter = new QueueAdapter(getApplicationContext(), messageLog, direction);
-        messagePane.setAdapter(messageAdapter);
+        mService.setLinkProfile(link_profile);
 
         // Set Send button listener
         findViewById(com.bluetooth.ble_terminal.R.id.btn_send).setOnClickListener(new View.OnClickListener() {
@@ -399,6 +647,61 @@ public class Terminal extends AppCompatActivity {
             }
         });
 
+        // Messages are sent in order from a single TX thread for the lifetime of the connection
+        if (txExecutor != null){
+            txExecutor.shutdown();
+        }
+        txExecutor = new TxExecutor(mService, WriteChar, TX_WINDOW);
+        panelInit();
+
+        // Register receiver for BLE service intents for message IO
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(ACTION_TX_FINISHED);
+        filter.addAction(ACTION_TX_ERROR);
+        registerReceiver(messageReceiver,filter);
+
+        // Enable notification on receiving data. The descriptor writes are queued by the service and
+        // sent one after the other
+        mService.enableNotification(NotificationChar, CCCD, false, null);
+        if (IndicationChar == null){
+            Log.d(TAG, "Old version");
+            // This version doesn't support latest characteristics
+            return;
+        }
+        mService.enableNotification(IndicationChar, CCCD, true, null);
+        mService.enableNotification(batteryLevelChar, CCCD, false, null);
+    }
+
+    /**
+     *  @brief Initialises the UI of a replay without a device, the send controls are hidden and the
+     *  session selection is shown
+     */
+    private void replayInit(){
+        ((TextView) findViewById(com.bluetooth.ble_terminal.R.id.lbl_subheading)).setText("Session replay");
+        findViewById(com.bluetooth.ble_terminal.R.id.btn_send).setVisibility(View.GONE);
+        findViewById(com.bluetooth.ble_terminal.R.id.txt_txmessage).setVisibility(View.GONE);
+        panelInit();
+        showReplaySelect();
+    }
+
+    /**
+     *  @brief Initialises the message panel, its options and the RX path, with or without a device
+     */
+    private void panelInit(){
+        throughputLabel = (TextView) findViewById(R.id.lbl_throughput);
+
+        // Set options listener
+        (findViewById(R.id.btn_options_menu)).setOnClickListener(menu_click_listener);
+
+        // Configure the message panel
+        scrollback = new Scrollback(SCROLLBACK_BUDGET);
+        messagePane = (RecyclerView) findViewById(com.bluetooth.ble_terminal.R.id.lv_messagepanel);
+        messagePane.setLayoutManager(new LinearLayoutManager(this));
+        // The current message is rebound as text streams in, skip the change cross-fade
+        ((SimpleItemAnimator) messagePane.getItemAnimator()).setSupportsChangeAnimations(false);
+        messageAdapter = new QueueAdapter(scrollback, messagePane);
+        messagePane.setAdapter(messageAdapter);
+
         // Set option buttons listeners
         findViewById(R.id.btn_format).setOnClickListener(new View.OnClickListener(){
             @Override
@@ -424,19 +727,12 @@ public class Terminal extends AppCompatActivity {
 
         rxMessage = "";
 
-        // Register receiver for BLE service intents for message IO
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(BLEService.ACTION_DATA_RECEIVED);
-        filter.addAction(ACTION_TX_FINISHED);
-        filter.addAction(ACTION_TX_ERROR);
-        filter.addAction(BLEService.ACTION_DESCRIPTOR_WROTE);
-        registerReceiver(messageReceiver,filter);
+        applyFraming();
+        lineAssembler = new LineAssembler(RX_LINE_CAPACITY, rxScheduler, RX_FLUSH_TIMEOUT, lineListener);
+        lineAssembler.setEol(rxEol());
 
-        // Enable notification on receiving data
-        mBluetoothGatt.setCharacteristicNotification(NotificationChar,true);
-        BluetoothGattDescriptor notification_descriptor = NotificationChar.getDescriptor(CCCD);
-        notification_descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-        mBluetoothGatt.writeDescriptor(notification_descriptor);
+        // Received data comes straight from the service, delivered in order on the UI thread
+        mService.addRxListener(rxListener, uiExecutor);
     }
 
     /**
@@ -444,276 +740,628 @@ public class Terminal extends AppCompatActivity {
      * @param message Message to transmit
      *
      * Message is converted to specified format (if non-Ascii) and transmitted to remote device using
-     * WriteChar characteristic. As BLE can only handle 20 byte data payloads, this function handles delivery
-     * of sequential packets until entire message is successfully transmitted. The selected line endings
-     * will be appended prior to transmission
-     *
-     * @note This function is called on a non-UI thread to avoid blocking user interaction.
+     * WriteChar characteristic. The message is queued on the TX executor behind previous messages, which
+     * splits it into packets of ATT MTU - 3 bytes, at most 512 (20 bytes before the MTU exchange). Each packet is sent as soon
+     * as the previous one has been accepted by the stack. The selected line endings will be appended prior to transmission
      */
     private void sendMessage(String message){
 
-        // Send message on a separate thread so we don't hold up the UI
-        class MessageSender implements Runnable {
-            String message;
-            private MessageSender(String string){this.message = string;}
-            public void run(){
+        // Append any line finishers
+        switch(eol_type){
+            case CR:
+                message += '\r';
+                break;
+            case LF:
+                message += '\n';
+                break;
+            case CRLF:
+                message += "\r\n";
+                break;
+        }
 
-                final int PACKET_SIZE = 20;
-                String error_msg = "";
+        // Convert our message to byte array in selected format
+        byte[] bMessage;
+        int messageLength;
+        try {
+            bMessage = message.getBytes("UTF-8");
+            messageLength = bMessage.length;
+        } catch (UnsupportedEncodingException e) {
+            Log.w(TAG, "Unsupported encoding exception");
+            return;
+        }
+        switch(input_format) {
+            case Hex:
+                byte[] decoded = new byte[HexCodec.maxDecodedLength(bMessage.length)];
+                hexDecoder.reset();
+                int length = hexDecoder.decode(bMessage, 0, bMessage.length, decoded, 0);
+                if (length < 0) {
+                    // Invalid message, the position counts UTF-8 bytes and matches the character for ASCII input
+                    int c = hexDecoder.getErrorChar();
+                    Toast.makeText(getApplicationContext(), "Invalid hex character "
+                            + (c < 0x80 ? "'" + (char) c + "' " : "") + "at position " + (hexDecoder.getErrorPosition() + 1),
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                length += hexDecoder.finish(decoded, length);
+                bMessage = decoded;
+                messageLength = length;
+                break;
+        }
 
-                try {
-                    // Append any line finishers
-                    switch(eol_type){
-                        case CR:
-                            message += '\r';
-                            break;
-                        case LF:
-                            message += '\n';
-                            break;
-                        case CRLF:
-                            message += "\r\n";
-                            break;
-                    }
+        if (txFramer != null) {
+            // One frame per message, the receiver gets the message boundary back
+            byte[] frame = new byte[txFramer.maxEncodedLength(messageLength)];
+            messageLength = txFramer.encode(bMessage, 0, messageLength, frame, 0);
+            bMessage = frame;
+        }
 
-                    // Convert our message to byte array in selected format
-                    byte[] bMessage = message.getBytes("UTF-8");
-                    switch(input_format) {
-                        case Hex:
-                            bMessage = hex2string(bMessage); // Requires NumberFormatException
-                            if (bMessage == null) {
-                                // Invalid message
-                                Toast.makeText(getApplicationContext(),"Invalid characters",Toast.LENGTH_SHORT).show();
-                                throw new NumberFormatException();
-                            }
-                            break;
-                    }
+        final String sent = message;
+        final int length = messageLength;
+        txExecutor.send(bMessage, length, new TxExecutor.Callback() {
+            @Override
+            public void onSent(long startNanos) {
+                txThroughput.record(length, startNanos);
+                Log.d(TAG, "Tx: " + sent);
+                Intent intent = new Intent(ACTION_TX_FINISHED);
+                intent.putExtra("MESSAGE", sent);
+                sendBroadcast(intent);
+            }
 
-                    // We can only transmit in packets of 20 bytes
-                    int packet_start = 0;
-                    while (packet_start < bMessage.length) {
+            @Override
+            public void onFailed(long sentBytes, IOException e) {
+                Intent intent = new Intent(ACTION_TX_ERROR);
+                intent.putExtra("MESSAGE","Failed to send data");
+                sendBroadcast(intent);
+            }
+        });
+        updateThroughputLabel();
+    }
 
-                        // Trim the packet length if we have less than 20 to send
-                        int packet_end = (bMessage.length < packet_start + PACKET_SIZE) ? bMessage.length : packet_start + PACKET_SIZE;
+    /**
+     * @brief Shows the transmit rate, TX queue depth and link state
+     */
+    private void updateThroughputLabel(){
+        String text;
+        if (txExecutor != null) {
+            text = txThroughput.format(mService.getMtu());
+            int depth = txExecutor.getQueueDepth();
+            if (depth > 0) {
+                text += ", queued " + depth;
+            }
+            text += "\n" + mService.getLinkProfile().describe();
+        } else {
+            text = "Not connected";
+        }
+        if (fileTransfer != null) {
+            text += "\n" + fileTransfer.describe();
+        }
+        if (fileReceiver != null) {
+            text += "\n" + fileReceiver.describe();
+        }
+        if (rxDeframer != null) {
+            text += "\nFrames: " + rxDeframer.getFrameCount() + " received, " + rxDeframer.getCorruptCount() + " corrupt";
+        }
+        if (replayer != null) {
+            text += "\n" + replayer.describe() + "\n" + messageAdapter.renderer.describe();
+        }
+        SessionRecorder recorder = mService.getRecorder();
+        if (recorder != null) {
+            text += String.format(Locale.getDefault(), "\nRecording %s: %d records, %.1f kB",
+                    recorder.getDirectory().getName(), recorder.getRecordCount(), recorder.getBytes() / 1000.0);
+        }
+        throughputLabel.setText(text);
+    }
 
-                        // Construct and send this packet
+    /**
+     * @return Directory holding the recorded sessions, one directory per session
+     */
+    private File sessionsDirectory(){
+        File directory = getExternalFilesDir("sessions");
+        return directory != null ? directory : new File(getFilesDir(), "sessions");
+    }
 
-                            byte[] chunk = new byte[packet_end - packet_start];
-                        for (int i = 0; i < chunk.length; i++) {
-                            chunk[i] = bMessage[i + packet_start];
-                        }
-                            WriteChar.setValue(chunk);
+    /**
+     * @brief Start capturing the GATT traffic into a new session directory, or stop the running capture
+     */
+    private void toggleRecording(){
+        SessionRecorder recorder = mService.getRecorder();
+        if (recorder != null) {
+            mService.stopRecording();
+            Toast.makeText(getApplicationContext(), "Recorded " + recorder.getRecordCount() + " records to "
+                    + recorder.getDirectory().getName(), Toast.LENGTH_SHORT).show();
+        } else {
+            String name = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS", Locale.US).format(new Date());
+            if (!mService.startRecording(new File(sessionsDirectory(), name))) {
+                Toast.makeText(getApplicationContext(), "Cannot record the session", Toast.LENGTH_SHORT).show();
+            }
+        }
+        updateThroughputLabel();
+    }
 
-                            if (!mBluetoothGatt.writeCharacteristic(WriteChar)) {
-                                throw new Exception(new Throwable());
-                            }
-                            packet_start += PACKET_SIZE;
-                            Thread.sleep(10);   // Requires InterruptedException
+    /**
+     * Show an AlertDialog to select a recorded session to replay, newest first
+     */
+    private void showReplaySelect(){
+        File[] sessions = sessionsDirectory().listFiles();
+        if (sessions == null || sessions.length == 0) {
+            Toast.makeText(getApplicationContext(), "No recorded sessions", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        Arrays.sort(sessions, Collections.reverseOrder());
+        final File[] choices = sessions;
+        CharSequence names[] = new CharSequence[choices.length];
+        for (int i = 0; i < choices.length; i++) {
+            names[i] = choices[i].getName();
+        }
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Replay session");
+        builder.setItems(names, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                showReplaySpeed(choices[which]);
+            }
+        });
+        builder.show();
+    }
+
+    /**
+     * Show an AlertDialog to select the replay speed of a session
+     */
+    private void showReplaySpeed(final File session){
+        final double speeds[] = {1, 2, 10, SessionReplayer.MAX_SPEED};
+        CharSequence names[] = new CharSequence[]{"Real time", "2x", "10x", "Max speed"};
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Replay speed");
+        builder.setItems(names, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                startReplay(session, speeds[which]);
+            }
+        });
+        builder.show();
+    }
 
+    /**
+     * @brief Replays a recorded session into the RX path, the data is processed like received data
+     */
+    private void startReplay(File session, double speed){
+        rxLineLatency.reset();
+        messageAdapter.renderer.resetStats();
+        replayer = new SessionReplayer(session, mService, speed, new SessionReplayer.Listener() {
+            @Override
+            public void onReplayFinished(final SessionReplayer finished, final IOException error) {
+                // Queued behind the replayed data, the report covers all of it
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        showReplayReport(finished, error);
                     }
+                });
+            }
+        });
+        replayer.start();
+        showProgress();
+    }
 
-                    Log.d(TAG, "Tx: " + message);
+    private void showReplayReport(SessionReplayer finished, IOException error){
+        if (replayer == finished) {
+            replayer = null;
+        }
+        String report = finished.describe()
+                + String.format(Locale.getDefault(), "\nElapsed %.2f s, %d records skipped",
+                        finished.getElapsedNanos() / 1e9, finished.getSkippedCount())
+                + "\nNotification to line: " + rxLineLatency.getCount() + " lines, " + rxLineLatency.summary()
+                + "\n" + messageAdapter.renderer.describe();
+        if (error != null) {
+            report += "\nReplay failed: " + error.getMessage();
+        }
+        Log.i(TAG, report);
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(finished.getDirectory().getName());
+        builder.setMessage(report);
+        builder.setPositiveButton("Close", null);
+        builder.show();
+        updateThroughputLabel();
+    }
 
-                } catch (UnsupportedEncodingException e) {
-                    Log.w(TAG, "Unsupported encoding exception");
-                } catch (InterruptedException e){
-                    Log.w(TAG, "Interrupted exception");
-                } catch (NumberFormatException e){
-                    error_msg = "Invalid message format";
-                } catch (Exception e){
-                    error_msg = "Failed to send data";
-                }
+    /**
+     * Show an AlertDialog to select the framing of the terminal messages
+     */
+    private void showFramingSelect(){
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Select framing");
+        builder.setItems(FRAMING_NAMES, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                framing = which;
+                applyFraming();
+            }
+        });
+        builder.show();
+    }
+
+    /**
+     * @brief Creates the codecs of the selected framing, a partially received frame is dropped
+     */
+    private void applyFraming(){
+        if (FRAMING_TYPES[framing] < 0) {
+            txFramer = rxDeframer = null;
+        } else {
+            txFramer = FrameCodec.create(FRAMING_TYPES[framing], FRAMING_CRCS[framing]);
+            rxDeframer = FrameCodec.create(FRAMING_TYPES[framing], FRAMING_CRCS[framing]);
+        }
+        updateThroughputLabel();
+    }
 
-                Intent intent;
-                if (!error_msg.equals("")) {
-                    intent = new Intent(ACTION_TX_ERROR);
-                    intent.putExtra("MESSAGE",error_msg);
-                } else {
-                    intent = new Intent(ACTION_TX_FINISHED);
-                    intent.putExtra("MESSAGE",message);
+    /**
+     * Show the TX statistics in a dialog refreshed while it is open, with reset and export actions
+     */
+    private void showTxStats(){
+        final TxStats stats = mService.getTxStats();
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("TX statistics");
+        builder.setMessage(txStatsReport(false));
+        builder.setNeutralButton("Reset", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                stats.reset();
+            }
+        });
+        builder.setPositiveButton("Export", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                Intent send = new Intent(Intent.ACTION_SEND);
+                send.setType("text/plain");
+                send.putExtra(Intent.EXTRA_SUBJECT, "BLE Terminal TX statistics");
+                send.putExtra(Intent.EXTRA_TEXT, txStatsReport(true));
+                startActivity(Intent.createChooser(send, "Export TX statistics"));
+            }
+        });
+        builder.setNegativeButton("Close", null);
+        final AlertDialog dialog = builder.show();
+        final Runnable refresh = new Runnable() {
+            @Override
+            public void run() {
+                if (dialog.isShowing()) {
+                    dialog.setMessage(txStatsReport(false));
+                    mHandler.postDelayed(this, PROGRESS_INTERVAL);
                 }
-                sendBroadcast(intent);
             }
-        }
-        Thread thread = new Thread(new MessageSender(message));
-        thread.start();
+        };
+        mHandler.postDelayed(refresh, PROGRESS_INTERVAL);
+        dialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
+            @Override
+            public void onDismiss(DialogInterface d) {
+                mHandler.removeCallbacks(refresh);
+            }
+        });
     }
 
     /**
-     * @brief Converts a byte array of ascii to hexadecimal
-     * @param bytes byte array of ascii
-     * @return Hex formatted string
+     * @param buckets True to list the histogram buckets
+     * @return TX statistics with the connection parameters they were measured with
      */
-    private byte[] ascii2hex(byte[] bytes){
+    private String txStatsReport(boolean buckets){
+        return "Device " + mBluetoothGatt.getDevice().getAddress() + ", MTU " + mService.getMtu() + "\n"
+                + mService.getLinkProfile().describe() + "\n"
+                + mService.getTxStats().report(buckets);
+    }
 
-        byte[] result = new byte[3*bytes.length];
-        int i=0;
-        for (byte b : bytes){
-            // Upper nibble
-            byte un = (byte)((b >> 4)&0xF);
-            result[i] = (byte)(un > 9 ? un + 0x37 : un + 0x30);
-            // Lower nibble
-            byte ln = (byte)(b&0xF);
-            result[i+1] = (byte)(ln > 9 ? ln + 0x37 : ln + 0x30);
-            result[i+2] = (byte)' ';
-            i+=3;
+    /**
+     * Refreshes the readout periodically while a file is sent or received
+     */
+    private final Runnable progressUpdate = new Runnable() {
+        @Override
+        public void run() {
+            updateThroughputLabel();
+            if ((fileTransfer != null && fileTransfer.getState() == FileTransfer.SENDING) || fileReceiver != null
+                    || replayer != null) {
+                mHandler.postDelayed(this, PROGRESS_INTERVAL);
+            }
         }
-        return result;
+    };
+
+    private void showProgress(){
+        mHandler.removeCallbacks(progressUpdate);
+        progressUpdate.run();
     }
 
     /**
-     * @brief Converts a byte array of hexadecimal values to characters
-     * @param bytes Byte array of hex values
-     * @return Ascii formatted string
+     * @brief Streams a document picked by the user to the write characteristic
+     * @param uri Document returned by ACTION_OPEN_DOCUMENT
      */
-    private byte[] hex2string(byte[] bytes){
-        ArrayList<Byte> in=new ArrayList<>(bytes.length+1);
+    private void sendFile(Uri uri){
+        String name = uri.getLastPathSegment();
+        long size = -1;
+        Cursor cursor = getContentResolver().query(uri, new String[]{OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE}, null, null, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    name = cursor.getString(cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME));
+                    int column = cursor.getColumnIndex(OpenableColumns.SIZE);
+                    if (!cursor.isNull(column)) {
+                        size = cursor.getLong(column);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        fileTransfer = new FileTransfer(getContentResolver(), uri, name, size, mService.getGattQueue(),
+                new FileTransfer.Listener() {
+                    @Override
+                    public void onTransferStopped(final FileTransfer transfer, final IOException error) {
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                String text;
+                                if (error != null) {
+                                    text = "Transfer failed at byte " + transfer.getPosition() + ": " + error.getMessage();
+                                } else if (transfer.getState() == FileTransfer.PAUSED) {
+                                    text = "Transfer paused at byte " + transfer.getPosition();
+                                } else {
+                                    text = transfer.getName() + " sent";
+                                }
+                                Toast.makeText(getApplicationContext(), text, Toast.LENGTH_SHORT).show();
+                                updateThroughputLabel();
+                            }
+                        });
+                    }
+                });
+        fileTransfer.start(txExecutor);
+        showProgress();
+    }
 
-        byte b;
-        // Validate input
-        for (int i = 0; i < bytes.length; i++) {
-            b=getValidHex(bytes[i]);
-            switch (b){
-                case (byte)0xFF:
-                    // Invalid character
-                    return null;
-                case (byte)0xFE:
-                    // Ignore character
-                    break;
-                default:
-                    // Valid
-                    in.add(Byte.valueOf(b));
+    /**
+     * @brief Writes received notification data to a document instead of the screen
+     * @param uri Document returned by ACTION_CREATE_DOCUMENT
+     */
+    private void receiveFile(Uri uri){
+        final FileReceiver receiver;
+        try {
+            receiver = FileReceiver.open(getContentResolver(), uri, displayName(uri));
+        } catch (IOException e) {
+            Toast.makeText(getApplicationContext(), "Cannot open file: " + e.getMessage(), Toast.LENGTH_LONG).show();
+            return;
+        }
+        fileThread = new HandlerThread("File receive");
+        fileThread.start();
+        fileHandler = new Handler(fileThread.getLooper());
+        final Handler handler = fileHandler;
+        fileRxListener = new BLEService.RxListener() {
+            @Override
+            public void onDataReceived(UUID uuid, byte[] rx, long timestampNanos) {
+                if (uuid.equals(BATTERY_LEVEL_UUID)){
+                    return;
+                }
+                try {
+                    receiver.write(rx);
+                } catch (final IOException e) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (fileReceiver == receiver) {
+                                Toast.makeText(getApplicationContext(), "File write failed: " + e.getMessage(), Toast.LENGTH_LONG).show();
+                                stopReceiving();
+                            }
+                        }
+                    });
+                }
+            }
+        };
+        fileReceiver = receiver;
+        mService.addRxListener(fileRxListener, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
             }
+        });
+        showProgress();
+    }
+
+    private void stopReceiving(){
+        if (fileReceiver == null) {
+            return;
         }
+        final FileReceiver receiver = fileReceiver;
+        fileReceiver = null;
+        if (mService != null) {
+            mService.removeRxListener(fileRxListener);
+        }
+        fileRxListener = null;
+        // Writes already queued go out first, data dispatched after the close is dropped by the receiver
+        fileHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    receiver.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Closing received file failed", e);
+                }
+            }
+        });
+        fileThread.quitSafely();
+        fileThread = null;
+        fileHandler = null;
+        updateThroughputLabel();
+    }
 
-        if ((in.size() & 1) == 1)
-            in.add(0,Byte.valueOf("0"));
+    /**
+     * @return Display name of a document, the last path segment if the provider has none
+     */
+    private String displayName(Uri uri){
+        String name = uri.getLastPathSegment();
+        Cursor cursor = getContentResolver().query(uri, new String[]{OpenableColumns.DISPLAY_NAME}, null, null, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                    name = cursor.getString(0);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return name;
+    }
 
-        // Construct bytes
-        byte[] out = new byte[in.size()/2];
-        for (int i = 0; i < out.length; i++) {
-            byte u = (byte)(in.get(i*2)<<4);
-            byte l = in.get(2*i+1);
-            out[i] = (byte)(u + l);
+    /**
+     * @brief Streams 1 MB of test data to the write without response characteristic and reports the
+     * sustained rate, from the first chunk until the stack accepted the last one.
+     */
+    private void runThroughputTest(){
+        Toast.makeText(getApplicationContext(), "Sending 1 MB", Toast.LENGTH_SHORT).show();
+        final byte[] data = new byte[TX_TEST_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('0' + i % 10);
         }
+        txExecutor.send(data, new TxExecutor.Callback() {
+            @Override
+            public void onSent(long startNanos) {
+                ThroughputMeter meter = new ThroughputMeter();
+                meter.record(TX_TEST_SIZE, startNanos);
+                String result = String.format(Locale.getDefault(), "1 MB test: %.1f kB/s, %d byte chunks",
+                        meter.getLastRate() / 1000, mService.getMaxWriteLength());
+                Log.i(TAG, result + ", busy refusals: " + mService.getGattQueue().getBusyCount()
+                        + ", chunk buffers: " + txExecutor.getAllocatedChunks());
+                showResult(result);
+            }
 
-        return out;
+            @Override
+            public void onFailed(long sentBytes, IOException e) {
+                showResult("1 MB test failed: " + e.getMessage());
+            }
+
+            private void showResult(final String text) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(getApplicationContext(), text, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        });
     }
 
     /**
-     * Checks if a character is a valid hexadecimal character
-     * @param b Hexadecimal value
-     * @return Ascii value of character, 0xFE if special character, 0xFF if invalid
+     * Cached view of a message row
      */
-    private byte getValidHex(byte b){
-        if (b < '0') return (byte)0xFE;
-        if ((b - '0') <= '9'-'0') return (byte)(b-'0');
-        if ((b - 'A') <= 'F'-'A') return (byte)(b-'A'+10);
-        if ((b - 'a') <= 'f'-'a') return (byte)(b-'a'+10);
-        return (byte)0xFF;
+    static class MessageHolder extends RecyclerView.ViewHolder {
+        final TextView contents;
+        // Text shown by contents, which keeps a reference to it instead of a copy
+        char[] text = new char[256];
+
+        MessageHolder(View itemView) {
+            super(itemView);
+            contents = (TextView) itemView.findViewById(com.bluetooth.ble_terminal.R.id.message_contents);
+        }
     }
 
     /**
      * The message Queue adapter.
      */
 // Adapter for displaying messages to and from connected device.
-    class QueueAdapter extends BaseAdapter {
-        /**
-         * The Context.
-         */
-        Context context;
+    class QueueAdapter extends RecyclerView.Adapter<MessageHolder> {
         /**
-         * The Messages.
+         * The Messages, with their direction.
          */
-        ArrayList<String> messages;
+        Scrollback messages;
         /**
-         * The Direction.
+         * Publishes the changes of the messages once per frame, the rows follow its snapshot.
          */
-        ArrayList<Character> direction;
-
-        int currentMessageIndex;
+        TerminalRenderer renderer;
 
         /**
          * Instantiates a new Queue adapter.
          *
-         * @param context   the context
          * @param messages  the messages
+         * @param pane      the panel showing them
          */
-        private QueueAdapter (Context context, ArrayList<String> messages, ArrayList<Character> direction){
-            this.context    = context;
+        private QueueAdapter (Scrollback messages, RecyclerView pane){
             this.messages   = messages;
-            this.direction  = direction;
-            this.currentMessageIndex = -1;
+            this.renderer   = new TerminalRenderer(messages, pane, this);
+            setHasStableIds(true);
         }
 
         @Override
-        public String getItem(int position) {
-            return messages.get(position);
+        public long getItemId(int position) {
+            // Messages dropped from the head are counted, the ID of a message stays stable
+            return renderer.getItemId(position);
         }
 
         @Override
-        public long getItemId(int position) {
-            return position;
+        public int getItemCount() {
+            return renderer.getItemCount();
         }
 
         @Override
-        public int getCount() {
-            return messages.size();
+        public int getItemViewType(int position) {
+            int message = renderer.getMessage(position);
+            char dir = message >= 0 ? messages.getDirection(message) : 'R';
+            return dir == 'R' || dir == 'B'
+                    ? com.bluetooth.ble_terminal.R.layout.message_default
+                    : com.bluetooth.ble_terminal.R.layout.message_bold;
         }
 
         @Override
-        public View getView(final int position, View convertView, ViewGroup parent) {
-            LayoutInflater mInflater = (LayoutInflater) context
-                    .getSystemService(Activity.LAYOUT_INFLATER_SERVICE);
-            if (direction.get(position) == 'R'||direction.get(position) == 'B') {
-                convertView = mInflater.inflate(com.bluetooth.ble_terminal.R.layout.message_default, null);
-            } else {
-                convertView = mInflater.inflate(com.bluetooth.ble_terminal.R.layout.message_bold, null);
+        public MessageHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            return new MessageHolder(LayoutInflater.from(parent.getContext()).inflate(viewType, parent, false));
+        }
+
+        @Override
+        public void onBindViewHolder(MessageHolder holder, int position) {
+            // Evicted since the last frame, the row is removed on the next one
+            int message = renderer.getMessage(position);
+            if (message < 0) {
+                holder.contents.setText(holder.text, 0, 0);
+                return;
+            }
+            // The tail row is rebound every frame while text streams in, a row shows the end of a long
+            // message so the copy and the layout stay bounded
+            int length = messages.getLength(message);
+            int shown = Math.min(length, MAX_SHOWN_LENGTH);
+            if (holder.text.length < shown) {
+                holder.text = new char[Math.min(MAX_SHOWN_LENGTH, Math.max(shown, holder.text.length * 2))];
             }
-            ((TextView) convertView.findViewById(com.bluetooth.ble_terminal.R.id.message_contents)).setText(this.getItem(position));
-            return convertView;
+            messages.getChars(message, length - shown, length, holder.text, 0);
+            if (shown < length) {
+                holder.text[0] = '\u2026';
+            }
+            holder.contents.setText(holder.text, 0, shown);
         }
 
         public void newMessage(char dir){
-            if (currentMessageIndex < MAX_MESSAGE_COUNT) {
-                currentMessageIndex++;
-            } else {
-                messageLog.remove(0);
-                direction.remove(0);
-            }
-            direction.add(dir);
-            messageLog.add("");
+            messages.newMessage(dir);
+            renderer.messageAdded();
+        }
+
+        /**
+         * Append text to the current message
+         */
+        public void append(CharSequence text){
+            long length = messages.getLength();
+            messages.append(text);
+            // Less text than appended is kept when the head of the oldest message was recycled
+            renderer.textAppended(messages.getLength() < length + text.length());
         }
 
         public char getCurrentDirection(){
-            if (currentMessageIndex < 0) // First message
+            if (messages.getCount() == 0) // First message
                 return '.';
-            return direction.get(currentMessageIndex);
+            return messages.getDirection(messages.getCount() - 1);
         }
 
         public void clearMessages(){
-            messageLog.clear();
-            direction.clear();
-            currentMessageIndex=-1;
-            messageAdapter.notifyDataSetChanged();
+            messages.clear();
+            renderer.reset();
         }
     }
 
     /**
-     * @brief Adds a message to the adapter and updates the display
-     * @param message String to display
+     * @brief Adds text to the current message, the display is updated on the next frame
+     * @param message Text to display, copied into the scrollback
      */
-    private void printMessageToScreen(String message){
-
-        try {
-            // Append to current stream output
-            String current = messageLog.get(messageAdapter.currentMessageIndex);
-            messageLog.set(messageAdapter.currentMessageIndex,current + message);
-        } catch (IndexOutOfBoundsException e){
-            // This is a new message
-            messageLog.add(message);
-        }
-        messageAdapter.notifyDataSetChanged();
-        messagePane.smoothScrollToPosition(messageAdapter.getCount() - 1);
+    private void printMessageToScreen(CharSequence message){
+        messageAdapter.append(message);
     }
 
     /**
@@ -738,6 +1386,17 @@ public class Terminal extends AppCompatActivity {
                     setResult(result, new Intent(DeviceSelection.REQUEST_ENABLE_BT_DENIED));
                     finish();
                 }
+                break;
+            case REQUEST_SEND_FILE:
+                if (result == RESULT_OK && data != null && txExecutor != null) {
+                    sendFile(data.getData());
+                }
+                break;
+            case REQUEST_RECEIVE_FILE:
+                if (result == RESULT_OK && data != null) {
+                    receiveFile(data.getData());
+                }
+                break;
         }
     }
 }
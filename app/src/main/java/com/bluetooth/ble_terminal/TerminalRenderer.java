@@ -0,0 +1,194 @@
+package com.bluetooth.ble_terminal;
+
+import android.support.v7.widget.RecyclerView;
+import android.view.Choreographer;
+
+import java.util.Locale;
+
+/**
+ * Shows the scrollback in the message panel at most once per display frame. The scrollback is updated
+ * as data arrives, the adapter sees a snapshot of it (first message and count) that is advanced on the
+ * next frame: messages evicted since then are removed, the row that was the tail is rebound if text was
+ * appended to it and new messages are inserted. The rows in between are never rebound.
+ *
+ * When the panel was scrolled to the bottom it jumps to the new last message, without animation, so a
+ * stream of notifications does not keep a smooth scroll running. A panel scrolled up stays where it is.
+ *
+ * Counts the frames it rendered in consecutive vsyncs and the janky ones, those arriving more than
+ * half a frame late. The frame period is the shortest interval seen, so any refresh rate is handled.
+ *
+ * Main thread only.
+ */
+final class TerminalRenderer implements Choreographer.FrameCallback {
+
+    private final Scrollback scrollback;
+    private final RecyclerView pane;
+    private final RecyclerView.Adapter<?> adapter;
+    private final Choreographer choreographer;
+
+    // Snapshot shown by the adapter
+    private long shownFirst;
+    private int shownCount;
+
+    // Changes since the snapshot
+    private boolean tailChanged;
+    private boolean headChanged;
+    private boolean scheduled;
+
+    // Frame statistics
+    private final LatencyHistogram frameTimes = new LatencyHistogram();
+    private long lastFrameNanos;
+    private long framePeriod = Long.MAX_VALUE;
+    private long frames;
+    private long jankFrames;
+    private long changes;
+
+    /**
+     * Must be created on the main thread
+     */
+    TerminalRenderer(Scrollback scrollback, RecyclerView pane, RecyclerView.Adapter<?> adapter) {
+        this.scrollback = scrollback;
+        this.pane = pane;
+        this.adapter = adapter;
+        this.choreographer = Choreographer.getInstance();
+        shownFirst = scrollback.getFirstMessageId();
+        shownCount = scrollback.getCount();
+    }
+
+    /// Text was appended to the last message, the oldest may have lost its head
+    void textAppended(boolean headTruncated) {
+        tailChanged = true;
+        headChanged |= headTruncated;
+        schedule();
+    }
+
+    /// A message was started, older ones may have been evicted
+    void messageAdded() {
+        schedule();
+    }
+
+    /// The scrollback was cleared, shown immediately
+    void reset() {
+        cancel();
+        shownFirst = scrollback.getFirstMessageId();
+        shownCount = scrollback.getCount();
+        tailChanged = headChanged = false;
+        adapter.notifyDataSetChanged();
+    }
+
+    /// Stop rendering, e.g. when the activity is destroyed
+    void cancel() {
+        if (scheduled) {
+            choreographer.removeFrameCallback(this);
+            scheduled = false;
+        }
+        lastFrameNanos = 0;
+    }
+
+    /// Number of rows shown by the adapter
+    int getItemCount() {
+        return shownCount;
+    }
+
+    /// Stable ID of a row
+    long getItemId(int position) {
+        return shownFirst + position;
+    }
+
+    /**
+     * @return Scrollback position of a row, -1 if the message was evicted after the snapshot
+     */
+    int getMessage(int position) {
+        long message = shownFirst + position - scrollback.getFirstMessageId();
+        return message >= 0 ? (int) message : -1;
+    }
+
+    /// Frames rendered
+    long getFrameCount() {
+        return frames;
+    }
+
+    /// Rendered frames that came one or more vsyncs late
+    long getJankCount() {
+        return jankFrames;
+    }
+
+    /// Model changes rendered, several per frame when data arrives faster than the display refreshes
+    long getChangeCount() {
+        return changes;
+    }
+
+    void resetStats() {
+        frameTimes.reset();
+        frames = jankFrames = changes = 0;
+        lastFrameNanos = 0;
+    }
+
+    /**
+     * @return Readout such as "Render: 1200 frames, 3 janky, 4800 changes, frame p99 33.3 ms"
+     */
+    String describe() {
+        return String.format(Locale.getDefault(), "Render: %d frames, %d janky, %d changes, frame p99 %.1f ms",
+                frames, jankFrames, changes, frameTimes.percentile(0.99) / 1000.0);
+    }
+
+    private void schedule() {
+        changes++;
+        if (!scheduled) {
+            scheduled = true;
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        scheduled = false;
+        long first = scrollback.getFirstMessageId();
+        int count = scrollback.getCount();
+        if (first == shownFirst && count == shownCount && !tailChanged && !headChanged) {
+            // Idle, the next frame is not consecutive
+            lastFrameNanos = 0;
+            return;
+        }
+        recordFrame(frameTimeNanos);
+
+        // Evaluated before the update, the rows below are about to change
+        boolean pinned = !pane.canScrollVertically(1);
+        int evicted = (int) Math.min(first - shownFirst, shownCount);
+        int kept = shownCount - evicted;
+        shownFirst = first;
+        shownCount = count;
+        if (evicted > 0) {
+            adapter.notifyItemRangeRemoved(0, evicted);
+        }
+        if (headChanged && kept > 1) {
+            adapter.notifyItemChanged(0);
+        }
+        if (tailChanged && kept > 0) {
+            adapter.notifyItemChanged(kept - 1);
+        }
+        if (count > kept) {
+            adapter.notifyItemRangeInserted(kept, count - kept);
+        }
+        tailChanged = headChanged = false;
+        if (pinned && count > 0) {
+            pane.scrollToPosition(count - 1);
+        }
+        // Keep measuring consecutive frames while data arrives
+        scheduled = true;
+        choreographer.postFrameCallback(this);
+    }
+
+    private void recordFrame(long frameTimeNanos) {
+        frames++;
+        if (lastFrameNanos != 0) {
+            long interval = frameTimeNanos - lastFrameNanos;
+            frameTimes.record(interval);
+            framePeriod = Math.min(framePeriod, interval);
+            if (interval > framePeriod + framePeriod / 2) {
+                jankFrames++;
+            }
+        }
+        lastFrameNanos = frameTimeNanos;
+    }
+}
@@ -0,0 +1,54 @@
+package com.bluetooth.ble_terminal;
+
+import java.util.Locale;
+
+/**
+ * Measures the transmit rate of terminal messages, from the moment the first packet of a message is queued
+ * until the stack accepted its last packet. Keeps the rate of the last message and the average over all messages, only
+ * counting the time messages were in flight so idle time between messages does not lower the average.
+ *
+ * Thread safe, messages complete on the TX thread and the readout is shown on the UI thread.
+ */
+final class ThroughputMeter {
+
+    private long lastBytes;
+    private long lastNanos;
+    private long totalBytes;
+    private long totalNanos;
+
+    /**
+     * Record a transmitted message
+     * @param bytes     Message size sent over the air
+     * @param startNanos System.nanoTime() when the first packet was queued
+     */
+    synchronized void record(long bytes, long startNanos) {
+        long elapsed = Math.max(1, System.nanoTime() - startNanos);
+        lastBytes = bytes;
+        lastNanos = elapsed;
+        totalBytes += bytes;
+        totalNanos += elapsed;
+    }
+
+    synchronized void reset() {
+        lastBytes = lastNanos = totalBytes = totalNanos = 0;
+    }
+
+    /// Rate of the last message in bytes per second
+    synchronized double getLastRate() {
+        return lastNanos > 0 ? lastBytes * 1e9 / lastNanos : 0;
+    }
+
+    /// Average rate of all messages in bytes per second
+    synchronized double getAverageRate() {
+        return totalNanos > 0 ? totalBytes * 1e9 / totalNanos : 0;
+    }
+
+    /**
+     * @param mtu Negotiated ATT MTU, shown with the rates
+     * @return Readout such as "TX 1.2 kB/s (avg 1.1 kB/s), MTU 247"
+     */
+    String format(int mtu) {
+        return String.format(Locale.getDefault(), "TX %.1f kB/s (avg %.1f kB/s), MTU %d",
+                getLastRate() / 1000, getAverageRate() / 1000, mtu);
+    }
+}
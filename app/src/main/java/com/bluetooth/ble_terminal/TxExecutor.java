@@ -0,0 +1,194 @@
+package com.bluetooth.ble_terminal;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the messages of a connection from one long-lived thread. Messages are sent in the order they
+ * were submitted, one after the other, so back-to-back sends never interleave their chunks. Each message
+ * is streamed through a single WriteStream whose chunk buffers come from a pool sized for the largest
+ * MTU, sending does not allocate once the pool is warm.
+ *
+ * A message is either a byte array or a Source read on the TX thread into a reused buffer, so a file is
+ * streamed without holding more than one read buffer and the window of chunks in memory.
+ *
+ * A message is reported sent when the stack accepted its last chunk. A failed message does not stop
+ * the executor, the next message is sent normally.
+ */
+final class TxExecutor {
+
+    private static final String TAG = "TX Executor";
+
+    /**
+     * Result of a message, invoked on the TX thread
+     */
+    interface Callback {
+        /**
+         * @param startNanos System.nanoTime() when the first chunk of the message was queued
+         */
+        void onSent(long startNanos);
+
+        /**
+         * @param sentBytes Bytes of the message accepted by the stack before the failure
+         */
+        void onFailed(long sentBytes, IOException e);
+    }
+
+    /**
+     * Data of a streamed message, read on the TX thread
+     */
+    interface Source {
+        /**
+         * @return Number of bytes read into buffer, -1 at the end of the message
+         */
+        int read(byte[] buffer) throws IOException;
+    }
+
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    private final ExecutorService executor;
+    private final WriteStream stream;
+    private final ChunkPool pool = new ChunkPool(BLEService.MAX_ATTRIBUTE_LENGTH);
+    private final AtomicInteger queuedMessages = new AtomicInteger();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    // Used by the TX thread only
+    private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+
+    /**
+     * @param service        Service owning the connection
+     * @param characteristic Characteristic the messages are written to
+     * @param window         Number of chunks queued ahead of the stack
+     */
+    TxExecutor(BLEService service, BluetoothGattCharacteristic characteristic, int window) {
+        this.stream = new WriteStream(service, characteristic, window, pool);
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+                        r.run();
+                    }
+                }, TAG);
+            }
+        });
+    }
+
+    /**
+     * Queue a message behind the ones already submitted
+     * @param data     Message, must not be modified until the callback is invoked
+     * @param callback Receiver of the result
+     * @return False if the executor was shut down
+     */
+    boolean send(byte[] data, Callback callback) {
+        return send(data, data.length, callback);
+    }
+
+    /**
+     * Queue the first length bytes of data as a message, e.g. a frame encoded into a larger buffer
+     * @return False if the executor was shut down
+     */
+    boolean send(final byte[] data, final int length, final Callback callback) {
+        queuedMessages.incrementAndGet();
+        queuedBytes.addAndGet(length);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    transmit(data, length, null, callback);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            queuedMessages.decrementAndGet();
+            queuedBytes.addAndGet(-length);
+            return false;
+        }
+    }
+
+    /**
+     * Queue a streamed message behind the ones already submitted
+     * @return False if the executor was shut down
+     */
+    boolean send(final Source source, final Callback callback) {
+        queuedMessages.incrementAndGet();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    transmit(null, 0, source, callback);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            queuedMessages.decrementAndGet();
+            return false;
+        }
+    }
+
+    /// Messages submitted and not yet sent, including the one being sent
+    int getQueueDepth() {
+        return queuedMessages.get();
+    }
+
+    /// Bytes of the byte array messages counted by getQueueDepth()
+    long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /// Chunk buffers allocated, stays constant once the pool is warm
+    int getAllocatedChunks() {
+        return pool.getAllocatedCount();
+    }
+
+    /// Stop the TX thread, the message being sent is interrupted and queued messages are discarded
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void transmit(byte[] data, int length, Source source, Callback callback) {
+        long start = System.nanoTime();
+        long completed = stream.getBytesCompleted();
+        try {
+            try {
+                if (data != null) {
+                    stream.write(data, 0, length);
+                } else {
+                    int read;
+                    while ((read = source.read(readBuffer)) >= 0) {
+                        stream.write(readBuffer, 0, read);
+                    }
+                }
+            } finally {
+                // Wait for the chunks in flight even after a failure, their buffers go back to the pool
+                stream.flush();
+            }
+            finished(length);
+            callback.onSent(start);
+        } catch (IOException e) {
+            finished(length);
+            Log.w(TAG, "Message failed: " + e.getMessage());
+            callback.onFailed(stream.getBytesCompleted() - completed, e);
+        } catch (InterruptedException e) {
+            finished(length);
+            Thread.currentThread().interrupt();
+            callback.onFailed(stream.getBytesCompleted() - completed, new InterruptedIOException("TX stopped"));
+        }
+    }
+
+    private void finished(int length) {
+        queuedBytes.addAndGet(-length);
+        queuedMessages.decrementAndGet();
+    }
+}
@@ -0,0 +1,95 @@
+package com.bluetooth.ble_terminal;
+
+import java.util.Locale;
+
+/**
+ * Instrumentation of the characteristic write path, fed by the GATT operation queue. For every chunk
+ * it records the time from being queued until the stack accepted writeCharacteristic, and from there
+ * until onCharacteristicWrite, in fixed-memory histograms, together with chunk and byte counts, busy
+ * refusals, retries and failures.
+ *
+ * Rates are computed over the active time only, the union of the intervals from a chunk being queued
+ * to its completion, so idle time between transfers does not dilute them. The service resets the
+ * statistics on every connection. Recording happens on the GATT operation thread, the report is read on
+ * the UI thread.
+ */
+final class TxStats {
+
+    private final LatencyHistogram queueToAccept = new LatencyHistogram();
+    private final LatencyHistogram acceptToComplete = new LatencyHistogram();
+    private long chunks;
+    private long bytes;
+    private long busyRefusals;
+    private long retries;
+    private long failures;
+    private long activeNanos;
+    private long lastCompletedNanos;
+
+    /// The stack accepted a chunk write, queuedNanos is the time it was queued
+    synchronized void onAccepted(long queuedNanos, long nanos) {
+        queueToAccept.record(nanos - queuedNanos);
+    }
+
+    synchronized void onBusy() {
+        busyRefusals++;
+    }
+
+    synchronized void onRetry() {
+        retries++;
+    }
+
+    /**
+     * A chunk write finished, writes complete in the order they were queued
+     * @param queuedNanos   Time the write was queued
+     * @param acceptedNanos Time of the last accepted attempt, 0 if it was never accepted
+     * @param success       True if completed with GATT_SUCCESS
+     */
+    synchronized void onCompleted(int length, long queuedNanos, long acceptedNanos, long nanos, boolean success) {
+        // Only the part of the interval not covered by the previous write, a gap is idle time
+        long start = Math.max(queuedNanos, lastCompletedNanos);
+        if (nanos > start) {
+            activeNanos += nanos - start;
+        }
+        lastCompletedNanos = nanos;
+        if (!success) {
+            failures++;
+            return;
+        }
+        if (acceptedNanos != 0) {
+            acceptToComplete.record(nanos - acceptedNanos);
+        }
+        chunks++;
+        bytes += length;
+    }
+
+    synchronized void reset() {
+        queueToAccept.reset();
+        acceptToComplete.reset();
+        chunks = bytes = busyRefusals = retries = failures = 0;
+        activeNanos = lastCompletedNanos = 0;
+    }
+
+    /**
+     * @param buckets True to include the histogram buckets
+     * @return Multi-line report of the counters, rates and latencies
+     */
+    synchronized String report(boolean buckets) {
+        double seconds = activeNanos / 1e9;
+        StringBuilder out = new StringBuilder();
+        out.append("Since connection or reset, rates while writing\n");
+        out.append(String.format(Locale.getDefault(), "Chunks %d, %.1f/s\n", chunks, seconds > 0 ? chunks / seconds : 0));
+        out.append(String.format(Locale.getDefault(), "Bytes %d, %.1f kB/s over %.1f s active\n",
+                bytes, seconds > 0 ? bytes / seconds / 1000 : 0, seconds));
+        out.append("Busy refusals ").append(busyRefusals).append(", retries ").append(retries)
+                .append(", failures ").append(failures).append('\n');
+        out.append("Queued to accepted: ").append(queueToAccept.summary()).append('\n');
+        if (buckets) {
+            queueToAccept.appendBuckets(out);
+        }
+        out.append("Accepted to completed: ").append(acceptToComplete.summary()).append('\n');
+        if (buckets) {
+            acceptToComplete.appendBuckets(out);
+        }
+        return out.toString();
+    }
+}
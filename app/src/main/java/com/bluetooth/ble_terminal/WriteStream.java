@@ -0,0 +1,122 @@
+package com.bluetooth.ble_terminal;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Streams data to a write without response characteristic with a credit window. Up to window chunks
+ * are handed to the GATT operation queue before the producer blocks, every completion callback returns
+ * one credit. The queue then always holds the next chunk when the stack accepts the previous one, so the
+ * stack can fill each connection event without waiting for the producer.
+ *
+ * Android accepts a single outstanding write per connection, the window is the number of chunks queued
+ * ahead of the stack rather than the number on air. The stack buffers accepted writes without response
+ * and sends several of them per connection event.
+ *
+ * Data is split into chunks of the current maximum write length, copied into buffers taken from a chunk
+ * pool and returned to it on completion. Completions arrive in queue order, so the in-flight buffers form
+ * a FIFO of at most window entries.
+ *
+ * Chunks are written in order and are not dropped: busy refusals are retried by the queue. A write failing
+ * for another reason (disconnection, error status) fails the stream, the next call throws. flush() waits
+ * for the in-flight chunks and clears the failure so the stream can be used for the next message.
+ */
+final class WriteStream implements GattOperationQueue.Callback {
+
+    private final BLEService service;
+    private final BluetoothGattCharacteristic characteristic;
+    private final int window;
+    private final Semaphore credits;
+    private final ChunkPool pool;
+    private final ArrayDeque<byte[]> inFlight;
+    private volatile int failedStatus = BluetoothGatt.GATT_SUCCESS;
+    private long bytesWritten;
+    // Bytes of the chunks accepted before the first failure, written by the completion callback only
+    private volatile long bytesCompleted;
+
+    /**
+     * @param service        Service owning the connection
+     * @param characteristic Write without response characteristic
+     * @param window         Number of chunks queued ahead of the stack
+     * @param pool           Source of the chunk buffers
+     */
+    WriteStream(BLEService service, BluetoothGattCharacteristic characteristic, int window, ChunkPool pool) {
+        this.service = service;
+        this.characteristic = characteristic;
+        this.window = window;
+        this.credits = new Semaphore(window);
+        this.pool = pool;
+        this.inFlight = new ArrayDeque<>(window);
+    }
+
+    /**
+     * Queue data in chunks, blocks while the window is full. The data is copied and can be reused on return.
+     * @throws IOException If a previous chunk failed
+     */
+    synchronized void write(byte[] data, int offset, int length) throws IOException, InterruptedException {
+        int end = offset + length;
+        while (offset < end) {
+            // Read per chunk, the MTU exchange may complete while a message is sent
+            int size = Math.min(service.getMaxWriteLength(), end - offset);
+            credits.acquire();
+            if (failedStatus != BluetoothGatt.GATT_SUCCESS) {
+                credits.release();
+                throw new IOException("Write failed, status " + failedStatus);
+            }
+            byte[] chunk = pool.obtain(size);
+            System.arraycopy(data, offset, chunk, 0, size);
+            synchronized (inFlight) {
+                inFlight.add(chunk);
+            }
+            service.writeCharacteristic(characteristic, chunk, this);
+            bytesWritten += size;
+            offset += size;
+        }
+    }
+
+    /**
+     * Wait until every queued chunk completed. A failure is reported once, the stream is usable again afterwards.
+     * @throws IOException If a chunk failed
+     */
+    synchronized void flush() throws IOException, InterruptedException {
+        credits.acquire(window);
+        credits.release(window);
+        int status = failedStatus;
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            failedStatus = BluetoothGatt.GATT_SUCCESS;
+            throw new IOException("Write failed, status " + status);
+        }
+    }
+
+    /// Bytes handed to the queue
+    synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /// Bytes accepted by the stack. Chunks completing after a failure are not counted, the data following
+    /// the failed chunk is then exactly the data to send again.
+    long getBytesCompleted() {
+        return bytesCompleted;
+    }
+
+    @Override
+    public void onComplete(int status) {
+        byte[] chunk;
+        synchronized (inFlight) {
+            chunk = inFlight.poll();
+        }
+        pool.release(chunk);
+        if (failedStatus == BluetoothGatt.GATT_SUCCESS) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                bytesCompleted += chunk.length;
+            } else {
+                failedStatus = status;
+            }
+        }
+        credits.release();
+    }
+}
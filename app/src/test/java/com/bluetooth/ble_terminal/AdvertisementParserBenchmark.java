@@ -0,0 +1,156 @@
+package com.bluetooth.ble_terminal;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares AdvertisementParser.classify with the checks it replaced in DeviceSelection. checkiBeacon is
+ * kept verbatim. checkBLEBeacon read ScanRecord.getManufacturerSpecificData, which is not available on
+ * the JVM, the reference walks the AD structures and copies the manufacturer data out the way
+ * ScanRecord.parseFromBytes does.
+ */
+public class AdvertisementParserBenchmark {
+
+    private static final int COMPANY = 0x0059;
+    private static final int REPEAT  = 1000;
+
+    //iBeacon prefix array
+    private static final short[] ibeacon_prefix = {0x02,0x01,0x06,0x1A,0xff,0x4C,0x00,0x02,0x15};
+
+    // Reference: DeviceSelection.checkiBeacon before AdvertisementParser
+    private static boolean checkiBeacon(byte[] scanRecord){
+        try {
+            for (int i = 0; i < 9; i++) {
+                //Company ID
+                if(i==5||i==6){
+                    continue;
+                }
+                if (!String.format("%02x",scanRecord[i]).equals(String.format("%02x",ibeacon_prefix[i]))) {
+                    return false;
+                }
+            }
+        }catch(ArrayIndexOutOfBoundsException e){
+            return false;
+        }
+
+        return true;
+    }
+
+    // Reference: DeviceSelection.checkBLEBeacon before AdvertisementParser
+    private static boolean checkBLEBeacon(byte[] scanRecord){
+        byte[] manufacturerData = getManufacturerSpecificData(scanRecord, COMPANY);
+        if (manufacturerData != null){
+            if(manufacturerData.length == 24){
+                // Specific Beacon contains 24 data
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Stand-in for ScanRecord.getManufacturerSpecificData
+    private static byte[] getManufacturerSpecificData(byte[] record, int company) {
+        int i = 0;
+        while (i < record.length && record[i] != 0) {
+            int length = record[i] & 0xFF;
+            if ((record[i + 1] & 0xFF) == 0xFF) {
+                int id = (record[i + 2] & 0xFF) | ((record[i + 3] & 0xFF) << 8);
+                if (id == company) {
+                    return Arrays.copyOfRange(record, i + 4, i + 1 + length);
+                }
+            }
+            i += 1 + length;
+        }
+        return null;
+    }
+
+    private static int reference(byte[] record) {
+        if (checkiBeacon(record)) {
+            return AdvertisementParser.ADV_IBEACON;
+        }
+        if (checkBLEBeacon(record)) {
+            return AdvertisementParser.ADV_COMPANY_BEACON;
+        }
+        return AdvertisementParser.ADV_OTHER;
+    }
+
+    private static byte[] iBeacon() {
+        byte[] record = new byte[30];
+        byte[] header = {0x02, 0x01, 0x06, 0x1A, (byte) 0xFF, 0x4C, 0x00, 0x02, 0x15};
+        System.arraycopy(header, 0, record, 0, header.length);
+        for (int i = header.length; i < record.length; i++) {
+            record[i] = (byte) i;
+        }
+        return record;
+    }
+
+    private static byte[] companyBeacon() {
+        byte[] record = new byte[31];
+        record[0] = 0x02;
+        record[1] = 0x01;
+        record[2] = 0x06;
+        record[3] = 27;
+        record[4] = (byte) 0xFF;
+        record[5] = (byte) COMPANY;
+        record[6] = (byte) (COMPANY >> 8);
+        for (int i = 7; i < record.length; i++) {
+            record[i] = (byte) i;
+        }
+        return record;
+    }
+
+    private static byte[] namedDevice() {
+        byte[] name = {'T', 'e', 'r', 'm', 'i', 'n', 'a', 'l'};
+        byte[] record = new byte[62];
+        record[0] = 0x02;
+        record[1] = 0x01;
+        record[2] = 0x06;
+        record[3] = (byte) (name.length + 1);
+        record[4] = 0x09;
+        System.arraycopy(name, 0, record, 5, name.length);
+        record[5 + name.length] = 17;
+        record[6 + name.length] = 0x07;
+        return record;
+    }
+
+    @Test
+    public void classify() {
+        final byte[][] records = {iBeacon(), companyBeacon(), namedDevice()};
+        final AdvertisementParser parser = new AdvertisementParser();
+        for (byte[] record : records) {
+            int type = parser.classify(record, COMPANY);
+            assertEquals(reference(record), type == AdvertisementParser.ADV_CONNECTABLE ? AdvertisementParser.ADV_OTHER : type);
+        }
+        assertEquals(AdvertisementParser.ADV_CONNECTABLE, parser.classify(records[2], COMPANY));
+
+        String[] names = {"iBeacon", "company beacon", "named device"};
+        for (int r = 0; r < records.length; r++) {
+            final byte[] record = records[r];
+            long reference = BenchmarkTimer.best(new BenchmarkTimer.Task() {
+                @Override
+                public long run() {
+                    long sum = 0;
+                    for (int i = 0; i < REPEAT; i++) {
+                        sum += reference(record);
+                    }
+                    return sum;
+                }
+            });
+            long single = BenchmarkTimer.best(new BenchmarkTimer.Task() {
+                @Override
+                public long run() {
+                    long sum = 0;
+                    for (int i = 0; i < REPEAT; i++) {
+                        sum += parser.classify(record, COMPANY);
+                    }
+                    return sum;
+                }
+            });
+            BenchmarkTimer.report("classify " + names[r] + ", checks", reference, REPEAT);
+            BenchmarkTimer.report("classify " + names[r] + ", parser", single, REPEAT);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.bluetooth.ble_terminal;
+
+import org.junit.Test;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Ingests one second of traffic from 10k beacons advertising 50 times per second each, in random order,
+ * into BeaconRegistry and into the list scan of DeviceSelection.addBeacon it replaced. The list scan is
+ * O(n) per advert, it is only timed on a slice of the traffic and reported per advert.
+ */
+public class BeaconRegistryBenchmark {
+
+    private static final int BEACONS          = 10000;
+    private static final int ADVERTS_PER_SECOND = 50;
+    private static final int ADVERTS          = BEACONS * ADVERTS_PER_SECOND;
+    private static final int REFERENCE_ADVERTS = 1000;
+
+    // Reference: Beacon fields used by addBeacon before BeaconRegistry
+    private static final class OldBeacon {
+        String name, macaddress, lastbeacontime;
+        int rssi;
+
+        OldBeacon(String name, String macaddress, String lastbeacontime, int rssi) {
+            this.name = name;
+            this.macaddress = macaddress;
+            this.lastbeacontime = lastbeacontime;
+            this.rssi = rssi;
+        }
+    }
+
+    // Reference: DeviceSelection.addBeacon before BeaconRegistry, without the adapter refresh
+    private static void addBeacon(ArrayList<OldBeacon> beaconsList, String name, String address, int rssi) {
+        DateFormat dateFormat = new SimpleDateFormat("HH:mm:ss", Locale.US);
+        for (OldBeacon b : beaconsList){
+            if(b.name.equals(name) && b.macaddress.equals(address)){
+//                Exists
+                b.rssi = rssi;
+                b.lastbeacontime = dateFormat.format(new Date());
+                return;
+            }
+        }
+        beaconsList.add(new OldBeacon(name, address, dateFormat.format(new Date()), rssi));
+    }
+
+    private static String address(long mac) {
+        StringBuilder text = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            if (text.length() > 0) {
+                text.append(':');
+            }
+            text.append(String.format(Locale.US, "%02X", (mac >> shift) & 0xFF));
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void tenThousandBeacons() {
+        Random random = new Random(1);
+        final long[] macs = new long[BEACONS];
+        final String[] addresses = new String[BEACONS];
+        final String[] names = new String[BEACONS];
+        for (int i = 0; i < BEACONS; i++) {
+            macs[i] = random.nextLong() & 0xFFFFFFFFFFFFL;
+            addresses[i] = address(macs[i]);
+            names[i] = "Beacon " + i;
+            assertEquals(macs[i], BeaconRegistry.parseMac(addresses[i]));
+        }
+        final int[] traffic = new int[ADVERTS];
+        for (int i = 0; i < ADVERTS; i++) {
+            traffic[i] = random.nextInt(BEACONS);
+        }
+
+        final ArrayList<Beacon> beacons = new ArrayList<>();
+        final BeaconRegistry registry = new BeaconRegistry(beacons);
+        final ArrayList<OldBeacon> oldBeacons = new ArrayList<>();
+        for (int i = 0; i < BEACONS; i++) {
+            assertEquals(i, registry.update(macs[i], names[i], addresses[i], -60, DeviceSelection.BLE_BEACON, null, 0));
+            addBeacon(oldBeacons, names[i], addresses[i], -60);
+        }
+
+        long indexed = BenchmarkTimer.best(new BenchmarkTimer.Task() {
+            @Override
+            public long run() {
+                long sum = 0;
+                for (int i = 0; i < ADVERTS; i++) {
+                    int b = traffic[i];
+                    sum += registry.update(BeaconRegistry.parseMac(addresses[b]), names[b], addresses[b], -50 - (i & 31),
+                            DeviceSelection.BLE_BEACON, null, i);
+                }
+                return sum;
+            }
+        });
+        long scan = BenchmarkTimer.best(new BenchmarkTimer.Task() {
+            @Override
+            public long run() {
+                for (int i = 0; i < REFERENCE_ADVERTS; i++) {
+                    int b = traffic[i];
+                    addBeacon(oldBeacons, names[b], addresses[b], -50 - (i & 31));
+                }
+                return oldBeacons.size();
+            }
+        });
+        assertEquals(BEACONS, registry.size());
+        assertEquals(BEACONS, oldBeacons.size());
+
+        BenchmarkTimer.report("10k beacons, list scan (per advert)", scan, REFERENCE_ADVERTS);
+        BenchmarkTimer.report("10k beacons, BeaconRegistry (per advert)", indexed, ADVERTS);
+        System.out.println(String.format(Locale.US, "10k beacons x 50 adverts/s: list scan %.1f s, BeaconRegistry %.1f ms per second",
+                (double) scan * ADVERTS / REFERENCE_ADVERTS / 1e9, indexed / 1e6));
+    }
+}
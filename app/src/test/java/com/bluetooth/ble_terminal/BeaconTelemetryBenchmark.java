@@ -0,0 +1,178 @@
+package com.bluetooth.ble_terminal;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Decode cost per advert of BeaconTelemetry compared with the parsers BeaconFragment ran on every row
+ * bind, which are kept here verbatim as the reference.
+ */
+public class BeaconTelemetryBenchmark {
+
+    private static final int REPEAT = 2000;
+
+    /// Decoded records are kept like the registry keeps them, so they are really allocated
+    private static final BeaconTelemetry[] stored = new BeaconTelemetry[256];
+
+    // Reference: parsing in BeaconFragment.CustomAdapter before BeaconTelemetry
+    private static final class OldParser {
+        private String P_UUID;
+        private String Major, Minor;
+        private String Measured_power;
+        private short typeId, sequence_num, temp, hum, light,co2, air, sound, accX, accY, accZ, electric, txpower;
+
+        private void parseiBeaconData(byte[] data){
+            // Data starts at the iBeacon type (0x02) and length (0x15) bytes
+            int i = 2;
+            P_UUID = "";
+
+            //Proximity UUID
+            while(i < 18){
+                P_UUID += String.format("%02x",data[i]);
+                i++;
+            }
+            //Major
+            Major = String.format("%02x",data[18]);
+            Major += String.format("%02x",data[19]);
+            //Minor
+            Minor = String.format("%02x",data[20]);
+            Minor += String.format("%02x",data[21]);
+            //Measured power
+            Measured_power = String.format("%02x",data[22]);
+        }
+
+
+        private void parseBLEBeaconData(byte[] data){
+            typeId = data[0];
+            sequence_num = parseBytesToInt_LittleEndian(Arrays.copyOfRange(data, 1,2+1));
+            temp = parseBytesToInt_LittleEndian(Arrays.copyOfRange(data, 3,4+1));
+            hum = parseBytesToInt_LittleEndian(Arrays.copyOfRange(data, 5,6+1));
+            light = parseBytesToInt_LittleEndian(Arrays.copyOfRange(data, 7,8+1));
+            co2 = parseBytesToInt_LittleEndian(Arrays.copyOfRange(data, 9,10+1));
+            air = parseBytesToInt_LittleEndian(Arrays.copyOfRange(data, 11,12+1));
+            sound = parseBytesToInt_LittleEndian(Arrays.copyOfRange(data, 13,14+1));
+            accX = parseBytesToInt_LittleEndian(Arrays.copyOfRange(data, 15,16+1));
+            accY = parseBytesToInt_LittleEndian(Arrays.copyOfRange(data, 17,18+1));
+            accZ = parseBytesToInt_LittleEndian(Arrays.copyOfRange(data, 19,20+1));
+            electric = parseBytesToInt_LittleEndian(Arrays.copyOfRange(data, 21,22+1));
+            txpower = data[23];
+        }
+
+        private short parseBytesToInt_LittleEndian(byte[] unparsed){
+            ByteBuffer wrapped = ByteBuffer.wrap(unparsed).order(ByteOrder.LITTLE_ENDIAN);
+            return wrapped.getShort();
+        }
+    }
+
+    private static byte[] payload(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 37 + 11);
+        }
+        return data;
+    }
+
+    @Test
+    public void companyBeacon() {
+        final byte[] data = payload(AdvertisementParser.COMPANY_BEACON_LENGTH);
+        final OldParser old = new OldParser();
+        old.parseBLEBeaconData(data);
+        BeaconTelemetry telemetry = BeaconTelemetry.decodeCompanyBeacon(data, 0);
+        assertEquals(old.typeId, telemetry.typeId);
+        assertEquals(old.sequence_num, telemetry.sequence);
+        assertEquals(old.temp, telemetry.temp);
+        assertEquals(old.hum, telemetry.hum);
+        assertEquals(old.light, telemetry.light);
+        assertEquals(old.co2, telemetry.co2);
+        assertEquals(old.air, telemetry.air);
+        assertEquals(old.sound, telemetry.sound);
+        assertEquals(old.accX, telemetry.accX);
+        assertEquals(old.accY, telemetry.accY);
+        assertEquals(old.accZ, telemetry.accZ);
+        assertEquals(old.electric, telemetry.electric);
+        assertEquals(old.txpower, telemetry.txPower);
+
+        long reference = BenchmarkTimer.best(new BenchmarkTimer.Task() {
+            @Override
+            public long run() {
+                long sum = 0;
+                for (int i = 0; i < REPEAT; i++) {
+                    old.parseBLEBeaconData(data);
+                    sum += old.temp;
+                }
+                return sum;
+            }
+        });
+        long decode = BenchmarkTimer.best(new BenchmarkTimer.Task() {
+            @Override
+            public long run() {
+                long sum = 0;
+                for (int i = 0; i < REPEAT; i++) {
+                    BeaconTelemetry decoded = BeaconTelemetry.decodeCompanyBeacon(data, 0);
+                    stored[i & 0xFF] = decoded;
+                    sum += decoded.temp;
+                }
+                return sum;
+            }
+        });
+        BenchmarkTimer.report("company beacon, parseBLEBeaconData", reference, REPEAT);
+        BenchmarkTimer.report("company beacon, BeaconTelemetry", decode, REPEAT);
+    }
+
+    @Test
+    public void iBeacon() {
+        final byte[] data = payload(23);
+        data[0] = 0x02;
+        data[1] = 0x15;
+        final OldParser old = new OldParser();
+        old.parseiBeaconData(data);
+        BeaconTelemetry telemetry = BeaconTelemetry.decodeIBeacon(data, 0);
+        assertEquals(old.P_UUID, telemetry.proximityUuidHex());
+        assertEquals(Integer.parseInt(old.Major, 16), telemetry.major);
+        assertEquals(Integer.parseInt(old.Minor, 16), telemetry.minor);
+        assertEquals((byte) Integer.parseInt(old.Measured_power, 16), telemetry.measuredPower);
+
+        long reference = BenchmarkTimer.best(new BenchmarkTimer.Task() {
+            @Override
+            public long run() {
+                long sum = 0;
+                for (int i = 0; i < REPEAT; i++) {
+                    old.parseiBeaconData(data);
+                    sum += old.P_UUID.length();
+                }
+                return sum;
+            }
+        });
+        long decode = BenchmarkTimer.best(new BenchmarkTimer.Task() {
+            @Override
+            public long run() {
+                long sum = 0;
+                for (int i = 0; i < REPEAT; i++) {
+                    BeaconTelemetry decoded = BeaconTelemetry.decodeIBeacon(data, 0);
+                    stored[i & 0xFF] = decoded;
+                    sum += decoded.major;
+                }
+                return sum;
+            }
+        });
+        final BeaconTelemetry row = telemetry;
+        long uuid = BenchmarkTimer.best(new BenchmarkTimer.Task() {
+            @Override
+            public long run() {
+                long sum = 0;
+                for (int i = 0; i < REPEAT; i++) {
+                    sum += row.proximityUuidHex().length();
+                }
+                return sum;
+            }
+        });
+        BenchmarkTimer.report("iBeacon, parseiBeaconData", reference, REPEAT);
+        BenchmarkTimer.report("iBeacon, BeaconTelemetry", decode, REPEAT);
+        BenchmarkTimer.report("iBeacon, proximityUuidHex on bind", uuid, REPEAT);
+    }
+}
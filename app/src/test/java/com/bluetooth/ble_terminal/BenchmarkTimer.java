@@ -0,0 +1,47 @@
+package com.bluetooth.ble_terminal;
+
+/**
+ * Minimal timing loop for the JVM benchmarks. Runs a task for a number of warm up rounds and at least 100 ms
+ * so the JIT compiles it, then reports the best of the measured rounds, which is the least disturbed by GC and
+ * other processes. The benchmarks print their results and only assert that compared implementations
+ * agree, timings are not asserted.
+ */
+final class BenchmarkTimer {
+
+    private static final int WARMUP_ROUNDS   = 5;
+    private static final long WARMUP_NANOS   = 100000000L;
+    private static final int MEASURE_ROUNDS  = 10;
+
+    /// Defeats dead code elimination, tasks return a value depending on their work
+    static volatile long sink;
+
+    interface Task {
+        /// One round of work
+        long run();
+    }
+
+    private BenchmarkTimer() {
+    }
+
+    /**
+     * @return Best round time in nanoseconds
+     */
+    static long best(Task task) {
+        long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+        for (int i = 0; i < WARMUP_ROUNDS || System.nanoTime() < warmupEnd; i++) {
+            sink += task.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            long start = System.nanoTime();
+            sink += task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    /// Print one result line as nanoseconds per operation
+    static void report(String name, long nanos, long operations) {
+        System.out.println(String.format("%-40s %10.2f ns/op", name, (double) nanos / operations));
+    }
+}
@@ -0,0 +1,251 @@
+package com.bluetooth.ble_terminal;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FrameCodecTest {
+
+    private static final int[] TYPES = {FrameCodec.COBS, FrameCodec.SLIP, FrameCodec.LENGTH_PREFIX};
+    private static final int[] CRCS  = {FrameCodec.CRC_NONE, FrameCodec.CRC_16, FrameCodec.CRC_32};
+
+    /// Copies the reported frames, they are only valid during the callback
+    private static final class Collector implements FrameCodec.Listener {
+        final List<byte[]> frames = new ArrayList<>();
+        int corrupt;
+
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            frames.add(Arrays.copyOfRange(buffer, offset, offset + length));
+        }
+
+        @Override
+        public void onCorruptFrame() {
+            corrupt++;
+        }
+    }
+
+    private static byte[] encode(FrameCodec codec, byte[] payload) {
+        byte[] dst = new byte[codec.maxEncodedLength(payload.length)];
+        return Arrays.copyOf(dst, codec.encode(payload, 0, payload.length, dst, 0));
+    }
+
+    private static Collector decode(FrameCodec codec, byte[] stream) {
+        Collector collector = new Collector();
+        codec.decode(stream, 0, stream.length, collector);
+        return collector;
+    }
+
+    private static byte[] ascii(String text) {
+        byte[] bytes = new byte[text.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) text.charAt(i);
+        }
+        return bytes;
+    }
+
+    /// Payloads hitting the special bytes of every codec and the COBS block boundaries
+    private static byte[][] payloads() {
+        Random random = new Random(1);
+        byte[] noise = new byte[1000];
+        random.nextBytes(noise);
+        byte[] run = new byte[254];
+        Arrays.fill(run, (byte) 0x55);
+        byte[] runThenZero = Arrays.copyOf(run, 255);
+        byte[] zeros = new byte[300];
+        return new byte[][]{
+                new byte[0],
+                {0},
+                {(byte) 0xC0, (byte) 0xDB, (byte) 0xDC, (byte) 0xDD},
+                ascii("Hello\r\n"),
+                run,
+                runThenZero,
+                Arrays.copyOf(noise, 508),
+                zeros,
+                noise,
+        };
+    }
+
+    @Test
+    public void roundTripsEveryChunkSize() {
+        byte[][] payloads = payloads();
+        for (int type : TYPES) {
+            for (int crc : CRCS) {
+                FrameCodec encoder = FrameCodec.create(type, crc);
+                ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                List<byte[]> expected = new ArrayList<>();
+                for (byte[] payload : payloads) {
+                    // SLIP ignores empty frames, an empty payload without CRC is not reported
+                    if (type != FrameCodec.SLIP || crc != FrameCodec.CRC_NONE || payload.length > 0) {
+                        expected.add(payload);
+                    }
+                    byte[] frame = encode(encoder, payload);
+                    assertEquals(true, frame.length <= encoder.maxEncodedLength(payload.length));
+                    stream.write(frame, 0, frame.length);
+                }
+                byte[] bytes = stream.toByteArray();
+
+                for (int chunk = 1; chunk <= 300; chunk += chunk < 20 ? 1 : 37) {
+                    FrameCodec decoder = FrameCodec.create(type, crc);
+                    Collector collector = new Collector();
+                    for (int i = 0; i < bytes.length; i += chunk) {
+                        decoder.decode(bytes, i, Math.min(chunk, bytes.length - i), collector);
+                    }
+                    String where = "type " + type + " crc " + crc + " chunk " + chunk;
+                    assertEquals(where, 0, collector.corrupt);
+                    assertEquals(where, expected.size(), collector.frames.size());
+                    for (int p = 0; p < expected.size(); p++) {
+                        assertArrayEquals(where, expected.get(p), collector.frames.get(p));
+                    }
+                    assertEquals(where, expected.size(), decoder.getFrameCount());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void roundTripsEverySplitPoint() {
+        byte[] payload = payloads()[5];
+        for (int type : TYPES) {
+            FrameCodec codec = FrameCodec.create(type, FrameCodec.CRC_16);
+            byte[] frame = encode(codec, payload);
+            for (int split = 0; split <= frame.length; split++) {
+                FrameCodec decoder = FrameCodec.create(type, FrameCodec.CRC_16);
+                Collector collector = new Collector();
+                decoder.decode(frame, 0, split, collector);
+                decoder.decode(frame, split, frame.length - split, collector);
+                assertEquals(1, collector.frames.size());
+                assertArrayEquals(payload, collector.frames.get(0));
+            }
+        }
+    }
+
+    @Test
+    public void crcCheckValues() {
+        byte[] check = ascii("123456789");
+        FrameCodec crc16 = FrameCodec.create(FrameCodec.LENGTH_PREFIX, FrameCodec.CRC_16);
+        byte[] frame = encode(crc16, check);
+        assertEquals(1 + 9 + 2, frame.length);
+        assertArrayEquals(new byte[]{0x29, (byte) 0xB1}, Arrays.copyOfRange(frame, 10, 12));
+
+        FrameCodec crc32 = FrameCodec.create(FrameCodec.LENGTH_PREFIX, FrameCodec.CRC_32);
+        frame = encode(crc32, check);
+        assertEquals(1 + 9 + 4, frame.length);
+        assertArrayEquals(new byte[]{(byte) 0xCB, (byte) 0xF4, 0x39, 0x26}, Arrays.copyOfRange(frame, 10, 14));
+    }
+
+    @Test
+    public void cobsFullBlocks() {
+        FrameCodec codec = FrameCodec.create(FrameCodec.COBS, FrameCodec.CRC_NONE);
+        byte[] run = payloads()[4];
+        byte[] frame = encode(codec, run);
+        // Full block of 254 bytes without an implied zero, then an empty last block and the delimiter
+        assertEquals(257, frame.length);
+        assertEquals((byte) 0xFF, frame[0]);
+        assertEquals(1, frame[255]);
+        assertEquals(0, frame[256]);
+        assertEquals(codec.maxEncodedLength(run.length), frame.length);
+
+        byte[] runThenZero = payloads()[5];
+        frame = encode(codec, runThenZero);
+        assertArrayEquals(new byte[]{(byte) 0xFF, 1, 1, 0}, new byte[]{frame[0], frame[255], frame[256], frame[257]});
+        for (int i = 0; i < frame.length - 1; i++) {
+            assertEquals(true, frame[i] != 0);
+        }
+    }
+
+    @Test
+    public void slipEscapes() {
+        FrameCodec codec = FrameCodec.create(FrameCodec.SLIP, FrameCodec.CRC_NONE);
+        byte[] frame = encode(codec, new byte[]{1, (byte) 0xC0, 2, (byte) 0xDB, 3});
+        assertArrayEquals(new byte[]{(byte) 0xC0, 1, (byte) 0xDB, (byte) 0xDC, 2, (byte) 0xDB, (byte) 0xDD, 3, (byte) 0xC0},
+                frame);
+
+        // Invalid escape and an escape right before END drop the frame, the next one decodes
+        byte[] stream = {(byte) 0xC0, 1, (byte) 0xDB, 5, 2, (byte) 0xC0, 3, (byte) 0xDB, (byte) 0xC0, 4, (byte) 0xC0};
+        Collector collector = decode(FrameCodec.create(FrameCodec.SLIP, FrameCodec.CRC_NONE), stream);
+        assertEquals(2, collector.corrupt);
+        assertEquals(1, collector.frames.size());
+        assertArrayEquals(new byte[]{4}, collector.frames.get(0));
+    }
+
+    @Test
+    public void lengthPrefixLimits() {
+        FrameCodec codec = FrameCodec.create(FrameCodec.LENGTH_PREFIX, FrameCodec.CRC_NONE);
+        assertArrayEquals(new byte[]{127}, Arrays.copyOf(encode(codec, new byte[127]), 1));
+        assertArrayEquals(new byte[]{(byte) 0x80, 1}, Arrays.copyOf(encode(codec, new byte[128]), 2));
+        assertArrayEquals(new byte[]{(byte) 0xFF, 0x7F}, Arrays.copyOf(encode(codec, new byte[16383]), 2));
+        assertArrayEquals(new byte[]{(byte) 0x80, (byte) 0x80, 1}, Arrays.copyOf(encode(codec, new byte[16384]), 3));
+
+        // The largest frame is accepted
+        byte[] largest = new byte[FrameCodec.MAX_FRAME];
+        Arrays.fill(largest, (byte) 7);
+        Collector collector = decode(codec, encode(codec, largest));
+        assertEquals(1, collector.frames.size());
+        assertArrayEquals(largest, collector.frames.get(0));
+
+        // MAX_FRAME + 1 is 0x80 0x80 0x04 + 1, four continuation bytes exceed any valid prefix
+        codec.reset();
+        collector = decode(codec, new byte[]{(byte) 0x81, (byte) 0x80, 0x04});
+        assertEquals(1, collector.corrupt);
+        codec.reset();
+        collector = decode(codec, new byte[]{(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80});
+        assertEquals(1, collector.corrupt);
+
+        // Decoding restarts after a rejected prefix
+        codec.reset();
+        collector = decode(codec, new byte[]{(byte) 0x81, (byte) 0x80, 0x04, 2, 'h', 'i'});
+        assertEquals(1, collector.corrupt);
+        assertEquals(1, collector.frames.size());
+        assertArrayEquals(ascii("hi"), collector.frames.get(0));
+    }
+
+    @Test
+    public void corruptFramesAreRejected() {
+        byte[] payload = ascii("temperature 21.5");
+        for (int type : TYPES) {
+            for (int crc : new int[]{FrameCodec.CRC_16, FrameCodec.CRC_32}) {
+                FrameCodec codec = FrameCodec.create(type, crc);
+                byte[] bad = encode(codec, payload);
+                // Flip a bit of a payload byte, away from the framing bytes
+                bad[5] ^= 0x04;
+                byte[] good = encode(codec, payload);
+                byte[] stream = Arrays.copyOf(bad, bad.length + good.length);
+                System.arraycopy(good, 0, stream, bad.length, good.length);
+
+                FrameCodec decoder = FrameCodec.create(type, crc);
+                Collector collector = decode(decoder, stream);
+                String where = "type " + type + " crc " + crc;
+                assertEquals(where, 1, collector.corrupt);
+                assertEquals(where, 1, decoder.getCorruptCount());
+                assertEquals(where, 1, collector.frames.size());
+                assertArrayEquals(where, payload, collector.frames.get(0));
+            }
+        }
+    }
+
+    @Test
+    public void oversizedFramesAreDropped() {
+        for (int type : new int[]{FrameCodec.COBS, FrameCodec.SLIP}) {
+            FrameCodec codec = FrameCodec.create(type, FrameCodec.CRC_NONE);
+            byte[] huge = new byte[FrameCodec.MAX_FRAME + 1];
+            Arrays.fill(huge, (byte) 1);
+            byte[] bad = encode(codec, huge);
+            byte[] good = encode(codec, new byte[]{9});
+            byte[] stream = Arrays.copyOf(bad, bad.length + good.length);
+            System.arraycopy(good, 0, stream, bad.length, good.length);
+
+            Collector collector = decode(FrameCodec.create(type, FrameCodec.CRC_NONE), stream);
+            assertEquals(1, collector.corrupt);
+            assertEquals(1, collector.frames.size());
+            assertArrayEquals(new byte[]{9}, collector.frames.get(0));
+        }
+    }
+}
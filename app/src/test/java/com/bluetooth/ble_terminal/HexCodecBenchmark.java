@@ -0,0 +1,153 @@
+package com.bluetooth.ble_terminal;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Compares HexCodec with the conversions it replaced in Terminal, which are kept here verbatim as the
+ * reference.
+ */
+public class HexCodecBenchmark {
+
+    private static final int LENGTH = 16 * 1024;
+    private static final int REPEAT = 20;
+
+    // Reference: Terminal.ascii2hex before HexCodec
+    private static byte[] ascii2hex(byte[] bytes){
+
+        byte[] result = new byte[3*bytes.length];
+        int i=0;
+        for (byte b : bytes){
+            // Upper nibble
+            byte un = (byte)((b >> 4)&0xF);
+            result[i] = (byte)(un > 9 ? un + 0x37 : un + 0x30);
+            // Lower nibble
+            byte ln = (byte)(b&0xF);
+            result[i+1] = (byte)(ln > 9 ? ln + 0x37 : ln + 0x30);
+            result[i+2] = (byte)' ';
+            i+=3;
+        }
+        return result;
+    }
+
+    // Reference: Terminal.hex2string before HexCodec
+    private static byte[] hex2string(byte[] bytes){
+        ArrayList<Byte> in=new ArrayList<>(bytes.length+1);
+
+        byte b;
+        // Validate input
+        for (int i = 0; i < bytes.length; i++) {
+            b=getValidHex(bytes[i]);
+            switch (b){
+                case (byte)0xFF:
+                    // Invalid character
+                    return null;
+                case (byte)0xFE:
+                    // Ignore character
+                    break;
+                default:
+                    // Valid
+                    in.add(Byte.valueOf(b));
+            }
+        }
+
+        if ((in.size() & 1) == 1)
+            in.add(0,Byte.valueOf("0"));
+
+        // Construct bytes
+        byte[] out = new byte[in.size()/2];
+        for (int i = 0; i < out.length; i++) {
+            byte u = (byte)(in.get(i*2)<<4);
+            byte l = in.get(2*i+1);
+            out[i] = (byte)(u + l);
+        }
+
+        return out;
+    }
+
+    private static byte getValidHex(byte b){
+        if (b < '0') return (byte)0xFE;
+        if ((b - '0') <= '9'-'0') return (byte)(b-'0');
+        if ((b - 'A') <= 'F'-'A') return (byte)(b-'A'+10);
+        if ((b - 'a') <= 'f'-'a') return (byte)(b-'a'+10);
+        return (byte)0xFF;
+    }
+
+    private static byte[] data() {
+        byte[] data = new byte[LENGTH];
+        new Random(1).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void encode() {
+        final byte[] data = data();
+        final byte[] text = new byte[HexCodec.encodedLength(LENGTH)];
+        HexCodec.encode(data, 0, LENGTH, text, 0);
+        assertArrayEquals(ascii2hex(data), text);
+
+        long reference = BenchmarkTimer.best(new BenchmarkTimer.Task() {
+            @Override
+            public long run() {
+                long sum = 0;
+                for (int i = 0; i < REPEAT; i++) {
+                    sum += ascii2hex(data)[i];
+                }
+                return sum;
+            }
+        });
+        long codec = BenchmarkTimer.best(new BenchmarkTimer.Task() {
+            @Override
+            public long run() {
+                long sum = 0;
+                for (int i = 0; i < REPEAT; i++) {
+                    sum += HexCodec.encode(data, 0, LENGTH, text, 0);
+                }
+                return sum;
+            }
+        });
+        BenchmarkTimer.report("hex encode, ascii2hex (per byte)", reference, (long) REPEAT * LENGTH);
+        BenchmarkTimer.report("hex encode, HexCodec (per byte)", codec, (long) REPEAT * LENGTH);
+    }
+
+    @Test
+    public void decode() {
+        byte[] data = data();
+        final byte[] text = new byte[HexCodec.encodedLength(LENGTH)];
+        HexCodec.encode(data, 0, LENGTH, text, 0);
+        final byte[] dst = new byte[HexCodec.maxDecodedLength(text.length)];
+        final HexCodec hex = new HexCodec();
+        assertArrayEquals(data, hex2string(text));
+        int n = hex.decode(text, 0, text.length, dst, 0);
+        assertArrayEquals(data, Arrays.copyOf(dst, n));
+
+        long reference = BenchmarkTimer.best(new BenchmarkTimer.Task() {
+            @Override
+            public long run() {
+                long sum = 0;
+                for (int i = 0; i < REPEAT; i++) {
+                    sum += hex2string(text)[i];
+                }
+                return sum;
+            }
+        });
+        long codec = BenchmarkTimer.best(new BenchmarkTimer.Task() {
+            @Override
+            public long run() {
+                long sum = 0;
+                for (int i = 0; i < REPEAT; i++) {
+                    hex.reset();
+                    sum += hex.decode(text, 0, text.length, dst, 0);
+                }
+                return sum;
+            }
+        });
+        BenchmarkTimer.report("hex decode, hex2string (per byte)", reference, (long) REPEAT * LENGTH);
+        BenchmarkTimer.report("hex decode, HexCodec (per byte)", codec, (long) REPEAT * LENGTH);
+    }
+}
@@ -0,0 +1,116 @@
+package com.bluetooth.ble_terminal;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class HexCodecTest {
+
+    private static byte[] ascii(String text) {
+        byte[] bytes = new byte[text.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) text.charAt(i);
+        }
+        return bytes;
+    }
+
+    private static byte[] decode(HexCodec codec, byte[] src) {
+        byte[] dst = new byte[HexCodec.maxDecodedLength(src.length)];
+        int n = codec.decode(src, 0, src.length, dst, 0);
+        assertEquals(true, n >= 0);
+        n += codec.finish(dst, n);
+        return Arrays.copyOf(dst, n);
+    }
+
+    @Test
+    public void encodesDigitPairsWithSpaces() {
+        byte[] dst = new byte[HexCodec.encodedLength(3)];
+        assertEquals(9, HexCodec.encode(new byte[]{0x1F, (byte) 0xA0, 0x00}, 0, 3, dst, 0));
+        assertArrayEquals(ascii("1F A0 00 "), dst);
+    }
+
+    @Test
+    public void roundTripsEveryByteValue() {
+        byte[] data = new byte[256];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        byte[] text = new byte[HexCodec.encodedLength(data.length)];
+        HexCodec.encode(data, 0, data.length, text, 0);
+        assertArrayEquals(data, decode(new HexCodec(), text));
+    }
+
+    @Test
+    public void decodesLowerCaseAndSeparators() {
+        assertArrayEquals(new byte[]{(byte) 0xAB, (byte) 0xCD, 0x01},
+                decode(new HexCodec(), ascii("ab,cD\r\n0 1")));
+    }
+
+    @Test
+    public void nonAsciiBytesAreSeparators() {
+        byte[] text = {'1', (byte) 0xC2, (byte) 0xA0, '2', (byte) 0x80, '3', (byte) 0xFF, '4'};
+        assertArrayEquals(new byte[]{0x12, 0x34}, decode(new HexCodec(), text));
+        byte[] bad = ascii("12 G");
+        assertEquals(-1, new HexCodec().decode(bad, 0, bad.length, new byte[4], 0));
+    }
+
+    @Test
+    public void loneDigitIsLowNibbleOfLastByte() {
+        assertArrayEquals(new byte[]{(byte) 0xAB, 0x0C}, decode(new HexCodec(), ascii("ABC")));
+    }
+
+    @Test
+    public void digitPairSplitAcrossChunks() {
+        byte[] text = ascii("12 34 5 6789 AB");
+        byte[] expected = {0x12, 0x34, 0x56, 0x78, (byte) 0x9A, 0x0B};
+        HexCodec codec = new HexCodec();
+        for (int split = 0; split <= text.length; split++) {
+            codec.reset();
+            byte[] dst = new byte[HexCodec.maxDecodedLength(text.length)];
+            int n = codec.decode(text, 0, split, dst, 0);
+            n += codec.decode(text, split, text.length - split, dst, n);
+            n += codec.finish(dst, n);
+            assertArrayEquals("split at " + split, expected, Arrays.copyOf(dst, n));
+        }
+    }
+
+    @Test
+    public void errorPositionCountsAcrossChunks() {
+        HexCodec codec = new HexCodec();
+        byte[] dst = new byte[16];
+        byte[] first = ascii("01 23 ");
+        byte[] second = ascii("4 5g6");
+        assertEquals(2, codec.decode(first, 0, first.length, dst, 0));
+        assertEquals(-1, codec.decode(second, 0, second.length, dst, 2));
+        assertEquals(first.length + 3, codec.getErrorPosition());
+        assertEquals('g', codec.getErrorChar());
+    }
+
+    @Test
+    public void errorStaysUntilReset() {
+        HexCodec codec = new HexCodec();
+        byte[] dst = new byte[16];
+        byte[] bad = ascii("0x12");
+        byte[] good = ascii("34");
+        assertEquals(-1, codec.decode(bad, 0, bad.length, dst, 0));
+        assertEquals(1, codec.getErrorPosition());
+        assertEquals(-1, codec.decode(good, 0, good.length, dst, 0));
+        assertEquals(0, codec.finish(dst, 0));
+
+        codec.reset();
+        assertEquals(-1, codec.getErrorPosition());
+        assertEquals(1, codec.decode(good, 0, good.length, dst, 0));
+        assertEquals(0x34, dst[0]);
+    }
+
+    @Test
+    public void decodesAtOffsets() {
+        byte[] text = ascii("xxFF 01yy");
+        byte[] dst = new byte[4];
+        assertEquals(2, new HexCodec().decode(text, 2, 5, dst, 1));
+        assertArrayEquals(new byte[]{0, (byte) 0xFF, 0x01, 0}, dst);
+    }
+}
@@ -0,0 +1,177 @@
+package com.bluetooth.ble_terminal;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class LineAssemblerTest {
+
+    private static final int CAPACITY = 4096;
+    private static final long TIMEOUT = 200;
+
+    /// Holds the pending flush task, run by the test in place of the timeout
+    private static final class FakeScheduler implements LineAssembler.Scheduler {
+        Runnable task;
+        long delay;
+
+        @Override
+        public void postDelayed(Runnable task, long delay) {
+            this.task = task;
+            this.delay = delay;
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            if (this.task == task) {
+                this.task = null;
+            }
+        }
+
+        void elapse() {
+            Runnable pending = task;
+            task = null;
+            pending.run();
+        }
+    }
+
+    /// Lines received, a flushed line is marked with a trailing '~'
+    private final List<String> lines = new ArrayList<>();
+    private final FakeScheduler scheduler = new FakeScheduler();
+    private final LineAssembler assembler = new LineAssembler(CAPACITY, scheduler, TIMEOUT,
+            new LineAssembler.Listener() {
+                @Override
+                public void onLine(CharSequence line, boolean complete) {
+                    lines.add(line + (complete ? "" : "~"));
+                }
+            });
+
+    private void append(String text) {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        assembler.append(data, 0, data.length);
+    }
+
+    @Test
+    public void crlfSplitAcrossReads() {
+        assembler.setEol(LineAssembler.EOL_CRLF);
+        append("first\r");
+        assertEquals(0, lines.size());
+        append("\nsec");
+        append("ond\r");
+        append("\n");
+        assertEquals(Arrays.asList("first", "second"), lines);
+        assertNull(scheduler.task);
+    }
+
+    @Test
+    public void lineEndingsOfTheOtherModesAreText() {
+        assembler.setEol(LineAssembler.EOL_LF);
+        append("a\r\nb\n");
+        assembler.setEol(LineAssembler.EOL_CR);
+        append("c\r\nd\r");
+        assertEquals(Arrays.asList("a\r", "b", "c", "\nd"), lines);
+    }
+
+    @Test
+    public void characterSplitAcrossReads() {
+        assembler.setEol(LineAssembler.EOL_LF);
+        byte[] data = "été\n".getBytes(StandardCharsets.UTF_8);
+        assembler.append(data, 0, 1);
+        assembler.append(data, 1, data.length - 1);
+        assertEquals(Arrays.asList("été"), lines);
+    }
+
+    @Test
+    public void lineLongerThanTheRingIsEmittedInParts() {
+        assembler.setEol(LineAssembler.EOL_LF);
+        char[] text = new char[CAPACITY + 10];
+        Arrays.fill(text, 'x');
+        append(new String(text) + "\n");
+        assertEquals(2, lines.size());
+        assertEquals(CAPACITY + 1, lines.get(0).length());
+        assertEquals(new String(text, 0, CAPACITY) + "~", lines.get(0));
+        assertEquals(new String(text, 0, 10), lines.get(1));
+    }
+
+    @Test
+    public void overflowKeepsIncompleteCharacter() {
+        assembler.setEol(LineAssembler.EOL_LF);
+        char[] text = new char[CAPACITY - 1];
+        Arrays.fill(text, 'x');
+        // The two byte character straddles the end of the ring
+        append(new String(text) + "é\n");
+        assertEquals(Arrays.asList(new String(text) + "~", "é"), lines);
+    }
+
+    @Test
+    public void timeoutFlushesPendingText() {
+        assembler.setEol(LineAssembler.EOL_LF);
+        append("partial");
+        assertEquals(TIMEOUT, scheduler.delay);
+        scheduler.elapse();
+        append(" rest\n");
+        assertEquals(Arrays.asList("partial~", " rest"), lines);
+        assertNull(scheduler.task);
+    }
+
+    @Test
+    public void timeoutKeepsIncompleteCharacter() {
+        assembler.setEol(LineAssembler.EOL_NONE);
+        byte[] data = "abé".getBytes(StandardCharsets.UTF_8);
+        assembler.append(data, 0, data.length - 1);
+        scheduler.elapse();
+        assembler.append(data, data.length - 1, 1);
+        scheduler.elapse();
+        assertEquals(Arrays.asList("ab~", "é~"), lines);
+    }
+
+    @Test
+    public void appendRestartsTheTimeout() {
+        assembler.setEol(LineAssembler.EOL_NONE);
+        append("a");
+        Runnable first = scheduler.task;
+        append("b");
+        assertSame(first, scheduler.task);
+        scheduler.elapse();
+        assertEquals(Arrays.asList("ab~"), lines);
+    }
+
+    @Test
+    public void flushBetweenCrAndLfCompletesTheLine() {
+        assembler.setEol(LineAssembler.EOL_CRLF);
+        append("line\r");
+        scheduler.elapse();
+        append("\nnext\r\n");
+        assertEquals(Arrays.asList("line~", "", "next"), lines);
+    }
+
+    @Test
+    public void crFlushedAloneIsDropped() {
+        assembler.setEol(LineAssembler.EOL_CRLF);
+        append("line");
+        scheduler.elapse();
+        append("\r");
+        scheduler.elapse();
+        append("\n");
+        append("x\r");
+        scheduler.elapse();
+        append("y\r\n");
+        assertEquals(Arrays.asList("line~", "", "x~", "y"), lines);
+    }
+
+    @Test
+    public void clearDropsPendingText() {
+        assembler.setEol(LineAssembler.EOL_LF);
+        append("dropped");
+        assembler.clear();
+        assertNull(scheduler.task);
+        append("kept\n");
+        assertEquals(Arrays.asList("kept"), lines);
+    }
+}
@@ -0,0 +1,97 @@
+package com.bluetooth.ble_terminal;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Soak of the terminal scrollback: an hour of received text at 10 KB/s, in 64 character lines with the
+ * direction changing every 16 lines, appended to a Scrollback with the 1 MB budget of Terminal. Memory
+ * must stay within the budget and the append cost of the last minutes must not exceed the first ones.
+ */
+public class ScrollbackBenchmark {
+
+    private static final int BUDGET            = 1024 * 1024;
+    private static final int BYTES_PER_SECOND  = 10 * 1024;
+    private static final int SECONDS           = 3600;
+    private static final int WARMUP_SECONDS    = 600;
+    private static final int LINE_LENGTH       = 64;
+    private static final int LINES_PER_SECOND  = BYTES_PER_SECOND / LINE_LENGTH;
+    private static final int LINES_PER_MESSAGE = 16;
+    private static final int WINDOW_MINUTES    = 10;
+
+    private final String[] lines = new String[10];
+
+    public ScrollbackBenchmark() {
+        for (int i = 0; i < lines.length; i++) {
+            char[] line = new char[LINE_LENGTH];
+            Arrays.fill(line, (char) ('0' + i));
+            line[LINE_LENGTH - 1] = '\n';
+            lines[i] = new String(line);
+        }
+    }
+
+    /**
+     * Append seconds of traffic, checking the budget after every simulated second
+     * @param minuteNanos Append time per simulated minute
+     * @return Lines appended
+     */
+    private long simulate(Scrollback scrollback, int seconds, long[] minuteNanos) {
+        long line = 0;
+        for (int second = 0; second < seconds; second++) {
+            long begin = System.nanoTime();
+            for (int n = 0; n < LINES_PER_SECOND; n++) {
+                if (line % LINES_PER_MESSAGE == 0) {
+                    scrollback.newMessage((line / LINES_PER_MESSAGE) % 2 == 0 ? 'R' : 'T');
+                }
+                scrollback.append(lines[(int) (line % lines.length)]);
+                line++;
+            }
+            minuteNanos[second / 60] += System.nanoTime() - begin;
+
+            assertTrue("Retained text over budget", scrollback.getLength() * 2 <= BUDGET);
+            assertTrue("Chunks over budget",
+                    (long) scrollback.getAllocatedChunks() * Scrollback.CHUNK_SIZE * 2 <= BUDGET);
+        }
+        return line;
+    }
+
+    @Test
+    public void hourAtTenKilobytesPerSecond() {
+        // Compile the append path before measuring
+        simulate(new Scrollback(BUDGET), WARMUP_SECONDS, new long[WARMUP_SECONDS / 60]);
+
+        Scrollback scrollback = new Scrollback(BUDGET);
+        long[] minuteNanos = new long[SECONDS / 60];
+        long line = simulate(scrollback, SECONDS, minuteNanos);
+        assertEquals((long) SECONDS * LINES_PER_SECOND, line);
+
+        // The newest message is intact
+        int last = scrollback.getCount() - 1;
+        int length = scrollback.getLength(last);
+        assertEquals(LINES_PER_MESSAGE * LINE_LENGTH, length);
+        char[] text = new char[LINE_LENGTH];
+        scrollback.getChars(last, length - LINE_LENGTH, length, text, 0);
+        assertArrayEquals(lines[(int) ((line - 1) % lines.length)].toCharArray(), text);
+
+        long early = median(Arrays.copyOfRange(minuteNanos, 0, WINDOW_MINUTES));
+        long late = median(Arrays.copyOfRange(minuteNanos, minuteNanos.length - WINDOW_MINUTES, minuteNanos.length));
+        long chars = 60L * LINES_PER_SECOND * LINE_LENGTH;
+        BenchmarkTimer.report("scrollback append, first 10 minutes (per char)", early, chars);
+        BenchmarkTimer.report("scrollback append, last 10 minutes (per char)", late, chars);
+        System.out.println("scrollback after an hour: " + scrollback.getLength() + " chars in "
+                + scrollback.getCount() + " messages, " + scrollback.getAllocatedChunks() + " chunks allocated");
+        // Generous margin for scheduling noise, a cost growing with the appended total would be far above it
+        assertTrue("Append cost grew from " + early + " to " + late + " ns per minute", late <= 3 * early);
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
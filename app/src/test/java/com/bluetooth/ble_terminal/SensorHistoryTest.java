@@ -0,0 +1,108 @@
+package com.bluetooth.ble_terminal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SensorHistoryTest {
+
+    private static final long T0 = 1500000000000L;
+
+    /// Company beacon payload with the given sequence number and temperature, other fields zero
+    private static BeaconTelemetry telemetry(int sequence, int temp) {
+        byte[] payload = new byte[24];
+        payload[1] = (byte) sequence;
+        payload[2] = (byte) (sequence >> 8);
+        payload[3] = (byte) temp;
+        payload[4] = (byte) (temp >> 8);
+        return BeaconTelemetry.decodeCompanyBeacon(payload, 0);
+    }
+
+    @Test
+    public void queryReturnsSamplesInRange() {
+        SensorHistory history = new SensorHistory(1024 * 1024, 100);
+        for (int i = 0; i < 10; i++) {
+            history.append(0, T0 + i * 1000, telemetry(i, 2000 + i));
+        }
+        SensorHistory.Range range = new SensorHistory.Range();
+        assertEquals(3, history.query(0, T0 + 2000, T0 + 5000, range));
+        assertEquals(T0 + 2000, range.time(0));
+        assertEquals(2004, range.value(SensorHistory.TEMP, 2));
+        assertEquals(10, history.query(0, 0, Long.MAX_VALUE / 2, range));
+        assertEquals(0, history.query(0, T0 + 20000, T0 + 30000, range));
+        assertEquals(0, history.query(1, 0, Long.MAX_VALUE / 2, range));
+    }
+
+    @Test
+    public void repeatedSequenceIsIgnored() {
+        SensorHistory history = new SensorHistory(1024 * 1024, 100);
+        history.append(0, T0, telemetry(7, 100));
+        history.append(0, T0 + 100, telemetry(7, 100));
+        SensorHistory.Range range = new SensorHistory.Range();
+        assertEquals(1, history.query(0, T0, T0 + 1000, range));
+    }
+
+    @Test
+    public void ringOverwritesOldestSamples() {
+        SensorHistory history = new SensorHistory(1024 * 1024, 4);
+        for (int i = 0; i < 10; i++) {
+            history.append(0, T0 + i * 1000, telemetry(i, i));
+        }
+        SensorHistory.Range range = new SensorHistory.Range();
+        assertEquals(4, history.query(0, T0, T0 + 20000, range));
+        assertEquals(T0 + 6000, range.time(0));
+        assertEquals(9, range.value(SensorHistory.TEMP, 3));
+    }
+
+    @Test
+    public void timesHaveTimeUnitResolution() {
+        SensorHistory history = new SensorHistory(1024 * 1024, 10);
+        history.append(0, T0 + 50, telemetry(1, 0));
+        history.append(0, T0 + 299, telemetry(2, 0));
+        SensorHistory.Range range = new SensorHistory.Range();
+        // Stored 200 ms after the first sample
+        assertEquals(1, history.query(0, T0 + 250, T0 + 1000, range));
+        assertEquals(T0 + 250, range.time(0));
+        assertEquals(2, history.query(0, T0 + 50, T0 + 251, range));
+    }
+
+    @Test
+    public void budgetLimitsBeacons() {
+        int samples = 100;
+        SensorHistory history = new SensorHistory(3L * samples * SensorHistory.BYTES_PER_SAMPLE, samples);
+        for (int beacon = 0; beacon < 5; beacon++) {
+            history.append(beacon, T0, telemetry(1, 0));
+        }
+        assertEquals(3L * samples * SensorHistory.BYTES_PER_SAMPLE, history.getAllocatedBytes());
+        assertEquals(2, history.getDroppedSamples());
+    }
+
+    @Test
+    public void fillingPastBudgetEvictsOldestAndDropsNewBeacons() {
+        int samples = 50;
+        int beacons = 4;
+        long budget = (long) beacons * samples * SensorHistory.BYTES_PER_SAMPLE;
+        SensorHistory history = new SensorHistory(budget, samples);
+        // Ten beacons, each sending three times the samples its ring holds
+        for (int n = 0; n < 3 * samples; n++) {
+            for (int beacon = 0; beacon < 10; beacon++) {
+                history.append(beacon, T0 + n * 1000, telemetry(n, n));
+                assertEquals(true, history.getAllocatedBytes() <= budget);
+            }
+        }
+        assertEquals(budget, history.getAllocatedBytes());
+        assertEquals(6L * 3 * samples, history.getDroppedSamples());
+
+        SensorHistory.Range range = new SensorHistory.Range();
+        for (int beacon = 0; beacon < beacons; beacon++) {
+            // Only the newest samples are kept, the oldest were overwritten
+            assertEquals(samples, history.query(beacon, 0, Long.MAX_VALUE / 2, range));
+            assertEquals(T0 + 2 * samples * 1000, range.time(0));
+            assertEquals(3 * samples - 1, range.value(SensorHistory.TEMP, samples - 1));
+            assertEquals(0, history.query(beacon, T0, T0 + 2 * samples * 1000, range));
+        }
+        for (int beacon = beacons; beacon < 10; beacon++) {
+            assertEquals(0, history.query(beacon, 0, Long.MAX_VALUE / 2, range));
+        }
+    }
+}